@@ -0,0 +1,225 @@
+/*
+ * Copyright 2021 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.ic4j.candid.gson.benchmark;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.ic4j.candid.parser.IDLArgs;
+import org.ic4j.candid.parser.IDLType;
+import org.ic4j.candid.parser.IDLValue;
+import org.ic4j.candid.types.Label;
+import org.ic4j.candid.types.Type;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+
+/*
+ * SimpleNode, SimpleArrayNode and TradeArrayNode shapes from GsonTest resources, scaled to the requested number of elements.
+ * SimpleNode is a single record, it is scaled as that many separate values converted one by one.
+ */
+public enum BenchmarkData {
+	SIMPLE_NODE, SIMPLE_ARRAY_NODE, TRADE_ARRAY_NODE;
+
+	static final String[] SELLERS = { "rrkah-fqaaa-aaaaa-aaaaq-cai", "22w4c-cyaaa-aaaab-qacka-cai" };
+
+	public IDLType getIDLType() {
+		switch (this) {
+		case SIMPLE_NODE:
+			return getSimpleIDLType();
+		case SIMPLE_ARRAY_NODE:
+			return IDLType.createType(Type.VEC, getSimpleIDLType());
+		default:
+			return IDLType.createType(Type.VEC, getTradeIDLType());
+		}
+	}
+
+	// POJO path type, TradeArrayNode items are tuples, so POJOs cover the offer record only
+	public IDLType getPojoIDLType() {
+		switch (this) {
+		case SIMPLE_NODE:
+			return getSimpleIDLType();
+		case SIMPLE_ARRAY_NODE:
+			return IDLType.createType(Type.VEC, getSimpleIDLType());
+		default:
+			return IDLType.createType(Type.VEC, getOfferIDLType());
+		}
+	}
+
+	public Class<?> getPojoClass() {
+		switch (this) {
+		case SIMPLE_NODE:
+			return SimplePojo.class;
+		case SIMPLE_ARRAY_NODE:
+			return SimplePojo[].class;
+		default:
+			return OfferPojo[].class;
+		}
+	}
+
+	// values converted in a single benchmark operation
+	public JsonElement[] getJsonValues(int size) {
+		if (this == SIMPLE_NODE) {
+			JsonElement[] values = new JsonElement[size];
+
+			for (int i = 0; i < size; i++)
+				values[i] = getSimpleJson(i);
+
+			return values;
+		}
+
+		JsonArray arrayNode = new JsonArray(size);
+
+		for (int i = 0; i < size; i++)
+			arrayNode.add(this == SIMPLE_ARRAY_NODE ? getSimpleJson(i) : getTradeJson(i));
+
+		return new JsonElement[] { arrayNode };
+	}
+
+	public Object[] getPojoValues(int size) {
+		if (this == SIMPLE_NODE) {
+			Object[] values = new Object[size];
+
+			for (int i = 0; i < size; i++)
+				values[i] = getSimplePojo(i);
+
+			return values;
+		}
+
+		if (this == SIMPLE_ARRAY_NODE) {
+			SimplePojo[] arrayValue = new SimplePojo[size];
+
+			for (int i = 0; i < size; i++)
+				arrayValue[i] = getSimplePojo(i);
+
+			return new Object[] { arrayValue };
+		}
+
+		OfferPojo[] arrayValue = new OfferPojo[size];
+
+		for (int i = 0; i < size; i++)
+			arrayValue[i] = getOfferPojo(i);
+
+		return new Object[] { arrayValue };
+	}
+
+	// Candid wire round trip, so values carry id labels the same way as real responses
+	public static IDLValue[] decode(IDLValue[] values) {
+		IDLValue[] result = new IDLValue[values.length];
+
+		for (int i = 0; i < values.length; i++)
+			result[i] = decode(values[i]);
+
+		return result;
+	}
+
+	public static IDLValue decode(IDLValue value) {
+		List<IDLValue> args = new ArrayList<IDLValue>();
+		args.add(value);
+
+		return IDLArgs.fromBytes(IDLArgs.create(args).toBytes()).getArgs().get(0);
+	}
+
+	static IDLType getSimpleIDLType() {
+		Map<Label, IDLType> typeMap = new TreeMap<Label, IDLType>();
+
+		typeMap.put(Label.createNamedLabel("bar"), IDLType.createType(Type.BOOL));
+		typeMap.put(Label.createNamedLabel("foo"), IDLType.createType(Type.INT));
+
+		return IDLType.createType(Type.RECORD, typeMap);
+	}
+
+	static IDLType getOfferIDLType() {
+		Map<Label, IDLType> offerRecord = new TreeMap<Label, IDLType>();
+
+		offerRecord.put(Label.createNamedLabel("locked"), IDLType.createType(Type.OPT, IDLType.createType(Type.INT64)));
+		offerRecord.put(Label.createNamedLabel("seller"), IDLType.createType(Type.PRINCIPAL));
+		offerRecord.put(Label.createNamedLabel("price"), IDLType.createType(Type.NAT64));
+
+		return IDLType.createType(Type.RECORD, offerRecord);
+	}
+
+	static IDLType getTradeIDLType() {
+		Map<Label, IDLType> rootRecord = new TreeMap<Label, IDLType>();
+		rootRecord.put(Label.createUnnamedLabel(0l), IDLType.createType(Type.NAT32));
+		rootRecord.put(Label.createUnnamedLabel(1l), getOfferIDLType());
+
+		Map<Label, IDLType> nonfungibleRecord = new TreeMap<Label, IDLType>();
+		nonfungibleRecord.put(Label.createNamedLabel("metadata"), IDLType.createType(Type.OPT, IDLType.createType(Type.TEXT)));
+
+		Map<Label, IDLType> typeVariant = new TreeMap<Label, IDLType>();
+		typeVariant.put(Label.createNamedLabel("nonfungible"), IDLType.createType(Type.RECORD, nonfungibleRecord));
+
+		rootRecord.put(Label.createUnnamedLabel(2l), IDLType.createType(Type.VARIANT, typeVariant));
+
+		return IDLType.createType(Type.RECORD, rootRecord);
+	}
+
+	static JsonElement getSimpleJson(int i) {
+		JsonObject objectNode = new JsonObject();
+
+		objectNode.addProperty("bar", i % 2 == 0);
+		objectNode.addProperty("foo", BigInteger.valueOf(42 + i));
+
+		return objectNode;
+	}
+
+	static JsonElement getTradeJson(int i) {
+		JsonObject offerNode = new JsonObject();
+
+		offerNode.add("locked", JsonNull.INSTANCE);
+		offerNode.addProperty("seller", SELLERS[i % SELLERS.length]);
+		offerNode.addProperty("price", 44000000000l + i);
+
+		JsonObject nonfungibleNode = new JsonObject();
+		nonfungibleNode.add("metadata", JsonNull.INSTANCE);
+
+		JsonObject variantNode = new JsonObject();
+		variantNode.add("nonfungible", nonfungibleNode);
+
+		JsonArray tradeNode = new JsonArray(3);
+
+		tradeNode.add(1024 + i);
+		tradeNode.add(offerNode);
+		tradeNode.add(variantNode);
+
+		return tradeNode;
+	}
+
+	static SimplePojo getSimplePojo(int i) {
+		SimplePojo pojo = new SimplePojo();
+
+		pojo.bar = i % 2 == 0;
+		pojo.foo = BigInteger.valueOf(42 + i);
+
+		return pojo;
+	}
+
+	static OfferPojo getOfferPojo(int i) {
+		OfferPojo pojo = new OfferPojo();
+
+		pojo.seller = SELLERS[i % SELLERS.length];
+		pojo.price = 44000000000l + i;
+
+		return pojo;
+	}
+}
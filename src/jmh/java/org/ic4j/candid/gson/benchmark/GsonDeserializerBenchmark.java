@@ -0,0 +1,98 @@
+/*
+ * Copyright 2021 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.ic4j.candid.gson.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.ic4j.candid.gson.GsonDeserializer;
+import org.ic4j.candid.gson.GsonSerializer;
+import org.ic4j.candid.parser.IDLValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.gson.JsonElement;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+@State(Scope.Benchmark)
+public class GsonDeserializerBenchmark {
+	@Param({ "SIMPLE_NODE", "SIMPLE_ARRAY_NODE", "TRADE_ARRAY_NODE" })
+	BenchmarkData shape;
+
+	@Param({ "1000", "100000", "1000000" })
+	int size;
+
+	GsonDeserializer jsonDeserializer;
+	GsonDeserializer pojoDeserializer;
+
+	Class<?> pojoClass;
+
+	// decoded from Candid bytes, as received from the network
+	IDLValue[] jsonIdlValues;
+	IDLValue[] pojoIdlValues;
+
+	@Setup
+	public void setup() {
+		this.jsonDeserializer = GsonDeserializer.create(this.shape.getIDLType());
+		this.pojoDeserializer = GsonDeserializer.create(this.shape.getPojoIDLType());
+
+		this.pojoClass = this.shape.getPojoClass();
+
+		GsonSerializer jsonSerializer = GsonSerializer.create(this.shape.getIDLType());
+		GsonSerializer pojoSerializer = GsonSerializer.create(this.shape.getPojoIDLType());
+
+		JsonElement[] jsonValues = this.shape.getJsonValues(this.size);
+		Object[] pojoValues = this.shape.getPojoValues(this.size);
+
+		this.jsonIdlValues = new IDLValue[jsonValues.length];
+		this.pojoIdlValues = new IDLValue[pojoValues.length];
+
+		for (int i = 0; i < jsonValues.length; i++)
+			this.jsonIdlValues[i] = jsonSerializer.serialize(jsonValues[i]);
+
+		for (int i = 0; i < pojoValues.length; i++)
+			this.pojoIdlValues[i] = pojoSerializer.serialize(pojoValues[i]);
+
+		this.jsonIdlValues = BenchmarkData.decode(this.jsonIdlValues);
+		this.pojoIdlValues = BenchmarkData.decode(this.pojoIdlValues);
+	}
+
+	@Benchmark
+	public void deserializeJson(Blackhole blackhole) {
+		for (IDLValue idlValue : this.jsonIdlValues)
+			blackhole.consume(this.jsonDeserializer.deserialize(idlValue, JsonElement.class));
+	}
+
+	@Benchmark
+	public void deserializePojo(Blackhole blackhole) {
+		for (IDLValue idlValue : this.pojoIdlValues)
+			blackhole.consume(this.pojoDeserializer.deserialize(idlValue, this.pojoClass));
+	}
+}
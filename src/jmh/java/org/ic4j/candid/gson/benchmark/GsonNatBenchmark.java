@@ -0,0 +1,140 @@
+/*
+ * Copyright 2021 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.candid.gson.benchmark;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.math.BigInteger;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.ic4j.candid.gson.GsonDeserializer;
+import org.ic4j.candid.gson.GsonSerializer;
+import org.ic4j.candid.parser.IDLType;
+import org.ic4j.candid.parser.IDLValue;
+import org.ic4j.candid.types.Label;
+import org.ic4j.candid.types.Type;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/*
+ * Vec of transfer records with nat amounts and ids, as ledger responses have. LONG values fit in long
+ * and take the fast path, BIG values are above 2^64 and go through BigInteger on both conversion paths.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+@State(Scope.Benchmark)
+public class GsonNatBenchmark {
+	static final String[] FIELDS = { "id", "block", "amount", "fee", "created" };
+
+	static final BigInteger BIG_OFFSET = BigInteger.ONE.shiftLeft(64);
+
+	@Param({ "LONG", "BIG" })
+	String magnitude;
+
+	@Param({ "1000", "100000" })
+	int size;
+
+	GsonSerializer serializer;
+	GsonDeserializer deserializer;
+
+	JsonElement jsonValue;
+	String jsonText;
+
+	IDLValue idlValue;
+
+	@Setup
+	public void setup() {
+		Map<Label, IDLType> typeMap = new TreeMap<Label, IDLType>();
+
+		for (String field : FIELDS)
+			typeMap.put(Label.createNamedLabel(field), IDLType.createType(Type.NAT));
+
+		IDLType idlType = IDLType.createType(Type.VEC, IDLType.createType(Type.RECORD, typeMap));
+
+		this.serializer = GsonSerializer.create(idlType);
+		this.deserializer = GsonDeserializer.create(idlType);
+
+		JsonArray arrayNode = new JsonArray(this.size);
+
+		for (int i = 0; i < this.size; i++) {
+			JsonObject objectNode = new JsonObject();
+
+			for (int j = 0; j < FIELDS.length; j++) {
+				BigInteger value = BigInteger.valueOf(1000000000l * (j + 1) + i);
+
+				if (this.magnitude.equals("BIG"))
+					value = value.add(BIG_OFFSET);
+
+				objectNode.addProperty(FIELDS[j], value);
+			}
+
+			arrayNode.add(objectNode);
+		}
+
+		this.jsonText = arrayNode.toString();
+
+		// parsed from text, numbers are LazilyParsedNumber as in real input
+		this.jsonValue = JsonParser.parseString(this.jsonText);
+
+		this.idlValue = BenchmarkData.decode(this.serializer.serialize(this.jsonValue));
+	}
+
+	@Benchmark
+	public void serializeJson(Blackhole blackhole) {
+		blackhole.consume(this.serializer.serialize(this.jsonValue));
+	}
+
+	@Benchmark
+	public void serializeReader(Blackhole blackhole) {
+		blackhole.consume(this.serializer.serialize(new StringReader(this.jsonText)));
+	}
+
+	@Benchmark
+	public void deserializeJson(Blackhole blackhole) {
+		blackhole.consume(this.deserializer.deserialize(this.idlValue, JsonElement.class));
+	}
+
+	@Benchmark
+	public void deserializeWriter(Blackhole blackhole) {
+		StringWriter writer = new StringWriter(this.jsonText.length());
+
+		this.deserializer.deserialize(this.idlValue, writer);
+
+		blackhole.consume(writer);
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2021 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.ic4j.candid.gson.benchmark;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.ic4j.candid.gson.GsonDeserializer;
+import org.ic4j.candid.gson.GsonSerializer;
+import org.ic4j.candid.parser.IDLValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.JsonElement;
+
+// parallel VEC conversion scaled by number of ForkJoinPool threads, 1 thread is sequential
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+@State(Scope.Benchmark)
+public class GsonParallelBenchmark {
+	@Param({ "SIMPLE_ARRAY_NODE", "TRADE_ARRAY_NODE" })
+	BenchmarkData shape;
+
+	@Param({ "100000", "1000000" })
+	int size;
+
+	@Param({ "1", "2", "4", "8" })
+	int threads;
+
+	@Param({ "1000" })
+	int threshold;
+
+	ForkJoinPool pool;
+
+	GsonSerializer serializer;
+	GsonDeserializer deserializer;
+
+	JsonElement jsonValue;
+	IDLValue idlValue;
+
+	@Setup
+	public void setup() {
+		this.pool = new ForkJoinPool(this.threads);
+
+		this.serializer = GsonSerializer.create(this.shape.getIDLType());
+		this.serializer.setParallelism(this.threshold, this.pool);
+
+		this.deserializer = GsonDeserializer.create(this.shape.getIDLType());
+		this.deserializer.setParallelism(this.threshold, this.pool);
+
+		this.jsonValue = this.shape.getJsonValues(this.size)[0];
+		this.idlValue = BenchmarkData.decode(this.serializer.serialize(this.jsonValue));
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.pool.shutdown();
+	}
+
+	@Benchmark
+	public IDLValue serializeJson() {
+		return this.serializer.serialize(this.jsonValue);
+	}
+
+	@Benchmark
+	public JsonElement deserializeJson() {
+		return this.deserializer.deserialize(this.idlValue, JsonElement.class);
+	}
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2021 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.ic4j.candid.gson.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.ic4j.candid.gson.GsonDeserializer;
+import org.ic4j.candid.gson.GsonSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.gson.JsonElement;
+
+// JSON and POJO to Candid bytes and back
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xms4g", "-Xmx4g" })
+@State(Scope.Benchmark)
+public class GsonRoundTripBenchmark {
+	@Param({ "SIMPLE_NODE", "SIMPLE_ARRAY_NODE", "TRADE_ARRAY_NODE" })
+	BenchmarkData shape;
+
+	@Param({ "1000", "100000", "1000000" })
+	int size;
+
+	GsonSerializer jsonSerializer;
+	GsonSerializer pojoSerializer;
+	GsonDeserializer jsonDeserializer;
+	GsonDeserializer pojoDeserializer;
+
+	Class<?> pojoClass;
+
+	JsonElement[] jsonValues;
+	Object[] pojoValues;
+
+	@Setup
+	public void setup() {
+		this.jsonSerializer = GsonSerializer.create(this.shape.getIDLType());
+		this.pojoSerializer = GsonSerializer.create(this.shape.getPojoIDLType());
+		this.jsonDeserializer = GsonDeserializer.create(this.shape.getIDLType());
+		this.pojoDeserializer = GsonDeserializer.create(this.shape.getPojoIDLType());
+
+		this.pojoClass = this.shape.getPojoClass();
+
+		this.jsonValues = this.shape.getJsonValues(this.size);
+		this.pojoValues = this.shape.getPojoValues(this.size);
+	}
+
+	@Benchmark
+	public void roundTripJson(Blackhole blackhole) {
+		for (JsonElement jsonValue : this.jsonValues)
+			blackhole.consume(BenchmarkData.decode(this.jsonSerializer.serialize(jsonValue)).getValue(this.jsonDeserializer, JsonElement.class));
+	}
+
+	@Benchmark
+	public void roundTripPojo(Blackhole blackhole) {
+		for (Object pojoValue : this.pojoValues)
+			blackhole.consume(BenchmarkData.decode(this.pojoSerializer.serialize(pojoValue)).getValue(this.pojoDeserializer, this.pojoClass));
+	}
+}
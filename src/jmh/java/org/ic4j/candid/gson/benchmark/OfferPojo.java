@@ -0,0 +1,14 @@
+package org.ic4j.candid.gson.benchmark;
+
+import com.google.gson.annotations.SerializedName;
+
+public class OfferPojo {
+	@SerializedName("locked")
+	public Long locked;
+
+	@SerializedName("seller")
+	public String seller;
+
+	@SerializedName("price")
+	public Long price;
+}
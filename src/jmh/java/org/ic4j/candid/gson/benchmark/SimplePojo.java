@@ -0,0 +1,13 @@
+package org.ic4j.candid.gson.benchmark;
+
+import java.math.BigInteger;
+
+import com.google.gson.annotations.SerializedName;
+
+public class SimplePojo {
+	@SerializedName("bar")
+	public Boolean bar;
+
+	@SerializedName("foo")
+	public BigInteger foo;
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright 2021 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.ic4j.candid.gson;
+
+/*
+ * JSON representation of blob (vec nat8 and vec int8) values written by GsonDeserializer.
+ * GsonSerializer reads both.
+ */
+public enum BlobFormat {
+	// Base64 encoded string
+	BASE64,
+	// array of numbers
+	ARRAY
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2021 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.ic4j.candid.gson;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+
+import org.ic4j.candid.CandidError;
+import org.ic4j.candid.types.Type;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/*
+ * Blob (vec nat8 and vec int8) conversions. JSON input is Base64 string or array of numbers,
+ * both are decoded straight into byte[]. Candid values can be byte[], Byte[] or ByteBuffer.
+ */
+final class Blobs {
+	static final char[] BASE64_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+	// bytes encoded per write, multiple of 3 so chunks do not need padding
+	static final int CHUNK_SIZE = 3 * 1024;
+
+	Blobs() {
+	}
+
+	static byte[] getBytes(JsonElement value) {
+		if (value.isJsonPrimitive()) {
+			JsonPrimitive primitive = (JsonPrimitive) value;
+
+			if (primitive.isString())
+				return decode(primitive.getAsString());
+		}
+
+		if (value.isJsonArray()) {
+			JsonArray arrayNode = (JsonArray) value;
+
+			byte[] bytes = new byte[arrayNode.size()];
+
+			for (int i = 0; i < bytes.length; i++)
+				bytes[i] = arrayNode.get(i).getAsNumber().byteValue();
+
+			return bytes;
+		}
+
+		throw CandidError.create(CandidError.CandidErrorCode.CUSTOM, "Cannot convert " + value + " to blob");
+	}
+
+	// reads Base64 string or array of numbers
+	static byte[] read(JsonReader reader) throws IOException {
+		JsonToken token = reader.peek();
+
+		if (token == JsonToken.STRING)
+			return decode(reader.nextString());
+
+		if (token != JsonToken.BEGIN_ARRAY)
+			throw CandidError.create(CandidError.CandidErrorCode.CUSTOM, "Cannot convert " + token.name() + " to blob");
+
+		reader.beginArray();
+
+		return readArray(reader);
+	}
+
+	// array is already open
+	static byte[] readArray(JsonReader reader) throws IOException {
+		byte[] bytes = new byte[32];
+		int size = 0;
+
+		while (reader.hasNext()) {
+			if (size == bytes.length)
+				bytes = Arrays.copyOf(bytes, size << 1);
+
+			bytes[size++] = (byte) PrimitiveArrays.nextInt(reader);
+		}
+
+		reader.endArray();
+
+		return Arrays.copyOf(bytes, size);
+	}
+
+	static byte[] decode(String value) {
+		try {
+			return Base64.getDecoder().decode(value);
+		} catch (IllegalArgumentException e) {
+			throw CandidError.create(CandidError.CandidErrorCode.CUSTOM, e, e.getLocalizedMessage());
+		}
+	}
+
+	static byte[] getBytes(Object value) {
+		if (value instanceof byte[])
+			return (byte[]) value;
+
+		if (value instanceof ByteBuffer) {
+			ByteBuffer buffer = ((ByteBuffer) value).duplicate();
+
+			if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0
+					&& buffer.remaining() == buffer.array().length)
+				return buffer.array();
+
+			byte[] bytes = new byte[buffer.remaining()];
+			buffer.get(bytes);
+
+			return bytes;
+		}
+
+		if (value instanceof Byte[]) {
+			Byte[] arrayValue = (Byte[]) value;
+
+			byte[] bytes = new byte[arrayValue.length];
+
+			for (int i = 0; i < bytes.length; i++)
+				bytes[i] = arrayValue[i];
+
+			return bytes;
+		}
+
+		throw CandidError.create(CandidError.CandidErrorCode.CUSTOM, "Cannot convert class " + value.getClass().getName() + " to blob");
+	}
+
+	// nat8 items are unsigned
+	static int getItem(Type innerType, byte value) {
+		if (innerType == Type.NAT8)
+			return value & 0xff;
+
+		return value;
+	}
+
+	static JsonElement getValue(Type innerType, BlobFormat format, Object value) {
+		byte[] bytes = getBytes(value);
+
+		if (format == BlobFormat.ARRAY) {
+			JsonArray arrayNode = new JsonArray(bytes.length);
+
+			for (byte item : bytes)
+				arrayNode.add(getItem(innerType, item));
+
+			return arrayNode;
+		}
+
+		return new JsonPrimitive(Base64.getEncoder().encodeToString(bytes));
+	}
+
+	static void write(Type innerType, BlobFormat format, Object value, JsonWriter writer) throws IOException {
+		byte[] bytes = getBytes(value);
+
+		if (format == BlobFormat.ARRAY) {
+			writer.beginArray();
+
+			for (byte item : bytes)
+				writer.value(getItem(innerType, item));
+
+			writer.endArray();
+		} else if (writer instanceof BlobJsonWriter)
+			((BlobJsonWriter) writer).writeBase64(bytes);
+		else
+			writer.value(Base64.getEncoder().encodeToString(bytes));
+	}
+
+	// JsonWriter over a known Writer, Base64 chars are written in chunks without building the whole string
+	static final class BlobJsonWriter extends JsonWriter {
+		final Writer out;
+
+		BlobJsonWriter(Writer out) {
+			super(out);
+			this.out = out;
+		}
+
+		void writeBase64(byte[] bytes) throws IOException {
+			// JsonWriter writes separator and opening quote, it does not buffer, so Base64 chars follow directly
+			this.jsonValue("\"");
+
+			char[] chars = new char[CHUNK_SIZE / 3 * 4];
+
+			for (int offset = 0; offset < bytes.length; offset += CHUNK_SIZE) {
+				int end = Math.min(bytes.length, offset + CHUNK_SIZE);
+
+				this.out.write(chars, 0, encode(bytes, offset, end, chars));
+			}
+
+			this.out.write('"');
+		}
+	}
+
+	// standard Base64 with padding, returns number of chars
+	static int encode(byte[] bytes, int offset, int end, char[] chars) {
+		int size = 0;
+		int i = offset;
+
+		for (; i + 2 < end; i += 3) {
+			int bits = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | (bytes[i + 2] & 0xff);
+
+			chars[size++] = BASE64_CHARS[bits >>> 18];
+			chars[size++] = BASE64_CHARS[bits >>> 12 & 0x3f];
+			chars[size++] = BASE64_CHARS[bits >>> 6 & 0x3f];
+			chars[size++] = BASE64_CHARS[bits & 0x3f];
+		}
+
+		if (i < end) {
+			int bits = (bytes[i] & 0xff) << 16;
+
+			if (i + 1 < end)
+				bits |= (bytes[i + 1] & 0xff) << 8;
+
+			chars[size++] = BASE64_CHARS[bits >>> 18];
+			chars[size++] = BASE64_CHARS[bits >>> 12 & 0x3f];
+			chars[size++] = i + 1 < end ? BASE64_CHARS[bits >>> 6 & 0x3f] : '=';
+			chars[size++] = '=';
+		}
+
+		return size;
+	}
+}
@@ -0,0 +1,498 @@
+/*
+ * Copyright 2021 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.candid.gson;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/*
+ * Generates IDLCodec for classes annotated with CandidRecord, with the schema GsonSerializer.getIDLType reflects
+ * and direct field access, and registers codecs as services. Field rules are the same as reflection:
+ * SerializedName and Expose are honored, static and transient fields are skipped. Fields are scalars, enums, POJOs,
+ * or Optional, List and arrays of them. Gson annotations are read by name, the processor does not need Gson.
+ * Scalar and enum types are generated as literals, POJO field types come from their own generated codecs,
+ * POJO classes without CandidRecord are reported with a warning, their schema is reflected at runtime.
+ */
+@SupportedAnnotationTypes("org.ic4j.candid.gson.CandidRecord")
+public final class CandidRecordProcessor extends AbstractProcessor {
+	static final String SERVICE_FILE = "META-INF/services/" + IDLCodec.class.getName();
+	static final String CODEC_SUFFIX = "_IDLCodec";
+
+	static final String SERIALIZED_NAME = "com.google.gson.annotations.SerializedName";
+	static final String EXPOSE = "com.google.gson.annotations.Expose";
+
+	// scalar classes and their types, the same as IDLType.createType of the class
+	static final Map<String, String> SCALAR_TYPES = new HashMap<String, String>();
+
+	static {
+		SCALAR_TYPES.put("java.lang.Boolean", "Type.BOOL");
+		SCALAR_TYPES.put("java.lang.Byte", "Type.INT8");
+		SCALAR_TYPES.put("java.lang.Short", "Type.INT16");
+		SCALAR_TYPES.put("java.lang.Integer", "Type.INT32");
+		SCALAR_TYPES.put("java.lang.Long", "Type.INT64");
+		SCALAR_TYPES.put("java.lang.Float", "Type.FLOAT32");
+		SCALAR_TYPES.put("java.lang.Double", "Type.FLOAT64");
+		SCALAR_TYPES.put("java.lang.String", "Type.TEXT");
+		SCALAR_TYPES.put("java.math.BigInteger", "Type.INT");
+		SCALAR_TYPES.put("org.ic4j.types.Principal", "Type.PRINCIPAL");
+	}
+
+	// generated codec class names, written to service file when processing is over
+	final Set<String> codecs = new TreeSet<String>();
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		if (roundEnv.processingOver()) {
+			if (!this.codecs.isEmpty())
+				this.writeServices();
+
+			return false;
+		}
+
+		for (Element element : roundEnv.getElementsAnnotatedWith(CandidRecord.class)) {
+			if (element.getKind() != ElementKind.CLASS) {
+				this.error("CandidRecord applies to classes only", element);
+				continue;
+			}
+
+			TypeElement typeElement = (TypeElement) element;
+
+			List<CodecField> fields = this.getFields(typeElement);
+
+			if (fields != null)
+				this.writeCodec(typeElement, fields);
+		}
+
+		return true;
+	}
+
+	static final class CodecField {
+		String name;
+		String fieldName;
+		// Java source of field class and item class literals, cast type and IDLType
+		String fieldClass;
+		String itemClass;
+		String castType;
+		String idlType;
+	}
+
+	// null if class cannot have generated codec, errors are reported
+	List<CodecField> getFields(TypeElement typeElement) {
+		boolean valid = true;
+
+		if (typeElement.getModifiers().contains(Modifier.ABSTRACT)) {
+			this.error("CandidRecord class cannot be abstract", typeElement);
+			valid = false;
+		}
+
+		for (Element enclosing = typeElement; enclosing instanceof TypeElement; enclosing = enclosing.getEnclosingElement()) {
+			if (enclosing.getModifiers().contains(Modifier.PRIVATE)) {
+				this.error("CandidRecord class cannot be private", typeElement);
+				valid = false;
+			}
+
+			if (enclosing.getEnclosingElement() instanceof TypeElement && !enclosing.getModifiers().contains(Modifier.STATIC)) {
+				this.error("CandidRecord nested class must be static", typeElement);
+				valid = false;
+			}
+		}
+
+		boolean constructor = false;
+
+		for (ExecutableElement executableElement : ElementFilter.constructorsIn(typeElement.getEnclosedElements()))
+			if (executableElement.getParameters().isEmpty() && !executableElement.getModifiers().contains(Modifier.PRIVATE))
+				constructor = true;
+
+		if (!constructor) {
+			this.error("CandidRecord class needs non private default constructor", typeElement);
+			valid = false;
+		}
+
+		List<CodecField> fields = new ArrayList<CodecField>();
+
+		for (VariableElement variableElement : ElementFilter.fieldsIn(typeElement.getEnclosedElements())) {
+			Set<Modifier> modifiers = variableElement.getModifiers();
+
+			// Gson does not write static and transient fields
+			if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.TRANSIENT))
+				continue;
+
+			AnnotationValue deserialize = this.getAnnotationValue(variableElement, EXPOSE, "deserialize");
+
+			if (deserialize != null && Boolean.FALSE.equals(deserialize.getValue()))
+				continue;
+
+			if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.FINAL)) {
+				this.error("CandidRecord field cannot be private or final", variableElement);
+				valid = false;
+				continue;
+			}
+
+			CodecField field = this.getField(variableElement);
+
+			if (field == null) {
+				this.error("Field type " + variableElement.asType() + " is not supported by CandidRecord", variableElement);
+				valid = false;
+				continue;
+			}
+
+			fields.add(field);
+		}
+
+		return valid ? fields : null;
+	}
+
+	// null if field type has no direct conversion
+	CodecField getField(VariableElement variableElement) {
+		CodecField field = new CodecField();
+
+		field.fieldName = variableElement.getSimpleName().toString();
+		field.name = field.fieldName;
+
+		AnnotationValue serializedName = this.getAnnotationValue(variableElement, SERIALIZED_NAME, "value");
+
+		if (serializedName != null)
+			field.name = (String) serializedName.getValue();
+
+		TypeMirror type = variableElement.asType();
+
+		field.itemClass = "null";
+
+		if (type.getKind().isPrimitive()) {
+			if (type.getKind() == TypeKind.CHAR)
+				return null;
+
+			field.fieldClass = type + ".class";
+			field.castType = this.processingEnv.getTypeUtils().boxedClass((PrimitiveType) type).getQualifiedName().toString();
+			field.idlType = "IDLType.createType(" + SCALAR_TYPES.get(field.castType) + ")";
+
+			return field;
+		}
+
+		field.castType = type.toString();
+
+		if (type.getKind() == TypeKind.ARRAY) {
+			String componentClass = this.getItemClass(((ArrayType) type).getComponentType());
+
+			if (componentClass == null)
+				return null;
+
+			field.fieldClass = componentClass + "[].class";
+			field.idlType = "IDLType.createType(Type.VEC, " + this.getIDLType(((ArrayType) type).getComponentType(), variableElement) + ")";
+
+			return field;
+		}
+
+		if (type.getKind() != TypeKind.DECLARED)
+			return null;
+
+		DeclaredType declaredType = (DeclaredType) type;
+		String className = ((TypeElement) declaredType.asElement()).getQualifiedName().toString();
+
+		if (className.equals("java.util.Optional") || className.equals("java.util.List") || className.equals("java.util.ArrayList")) {
+			if (declaredType.getTypeArguments().size() != 1)
+				return null;
+
+			String itemClass = this.getItemClass(declaredType.getTypeArguments().get(0));
+
+			if (itemClass == null)
+				return null;
+
+			field.fieldClass = className + ".class";
+			field.itemClass = itemClass + ".class";
+
+			String innerType = className.equals("java.util.Optional") ? "Type.OPT" : "Type.VEC";
+
+			field.idlType = "IDLType.createType(" + innerType + ", "
+					+ this.getIDLType(declaredType.getTypeArguments().get(0), variableElement) + ")";
+
+			return field;
+		}
+
+		String itemClass = this.getItemClass(type);
+
+		if (itemClass == null)
+			return null;
+
+		field.fieldClass = itemClass + ".class";
+		field.idlType = this.getIDLType(type, variableElement);
+
+		return field;
+	}
+
+	// Java source of IDLType of scalar, enum or POJO, classes without CandidRecord are reflected at runtime
+	String getIDLType(TypeMirror type, VariableElement variableElement) {
+		TypeElement typeElement = (TypeElement) ((DeclaredType) type).asElement();
+		String className = typeElement.getQualifiedName().toString();
+
+		if (SCALAR_TYPES.containsKey(className))
+			return "IDLType.createType(" + SCALAR_TYPES.get(className) + ")";
+
+		if (typeElement.getKind() == ElementKind.ENUM) {
+			String variant = this.getVariant(typeElement);
+
+			if (variant != null)
+				return variant;
+		} else if (typeElement.getAnnotation(CandidRecord.class) == null)
+			this.processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+					"Class " + className + " is not annotated with CandidRecord, its schema is reflected at runtime", variableElement);
+
+		return "GsonSerializer.getIDLType(" + className + ".class)";
+	}
+
+	// VARIANT of enum constants, null if enum has fields, reflection then adds them as labels
+	String getVariant(TypeElement typeElement) {
+		StringBuilder source = new StringBuilder("variant(\"").append(typeElement.getSimpleName()).append('"');
+
+		for (VariableElement variableElement : ElementFilter.fieldsIn(typeElement.getEnclosedElements())) {
+			if (variableElement.getKind() != ElementKind.ENUM_CONSTANT) {
+				if (!variableElement.getModifiers().contains(Modifier.STATIC) && !variableElement.getModifiers().contains(Modifier.TRANSIENT))
+					return null;
+
+				continue;
+			}
+
+			AnnotationValue serializedName = this.getAnnotationValue(variableElement, SERIALIZED_NAME, "value");
+
+			String name = serializedName != null ? (String) serializedName.getValue() : variableElement.getSimpleName().toString();
+
+			source.append(", ").append(this.processingEnv.getElementUtils().getConstantExpression(name));
+		}
+
+		return source.append(')').toString();
+	}
+
+	// class name of scalar, enum or POJO, null for other types
+	String getItemClass(TypeMirror type) {
+		if (type.getKind() != TypeKind.DECLARED || !((DeclaredType) type).getTypeArguments().isEmpty())
+			return null;
+
+		TypeElement typeElement = (TypeElement) ((DeclaredType) type).asElement();
+		String className = typeElement.getQualifiedName().toString();
+
+		if (SCALAR_TYPES.containsKey(className) || typeElement.getKind() == ElementKind.ENUM)
+			return className;
+
+		// JDK classes are written by Gson built-in adapters
+		if (typeElement.getKind() != ElementKind.CLASS || typeElement.getModifiers().contains(Modifier.ABSTRACT)
+				|| className.startsWith("java.") || className.startsWith("javax."))
+			return null;
+
+		return className;
+	}
+
+	AnnotationValue getAnnotationValue(Element element, String annotationName, String valueName) {
+		for (AnnotationMirror annotationMirror : element.getAnnotationMirrors()) {
+			if (!((TypeElement) annotationMirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(annotationName))
+				continue;
+
+			for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : annotationMirror.getElementValues().entrySet())
+				if (entry.getKey().getSimpleName().contentEquals(valueName))
+					return entry.getValue();
+		}
+
+		return null;
+	}
+
+	void writeCodec(TypeElement typeElement, List<CodecField> fields) {
+		String packageName = this.processingEnv.getElementUtils().getPackageOf(typeElement).getQualifiedName().toString();
+		String className = typeElement.getQualifiedName().toString();
+
+		String codecName = (packageName.isEmpty() ? className : className.substring(packageName.length() + 1)).replace('.', '_') + CODEC_SUFFIX;
+		String qualifiedCodecName = packageName.isEmpty() ? codecName : packageName + "." + codecName;
+
+		StringBuilder source = new StringBuilder();
+
+		if (!packageName.isEmpty())
+			source.append("package ").append(packageName).append(";\n\n");
+
+		source.append("import java.util.Map;\n");
+		source.append("import java.util.TreeMap;\n\n");
+		source.append("import org.ic4j.candid.gson.GsonSerializer;\n");
+		source.append("import org.ic4j.candid.gson.IDLCodec;\n");
+		source.append("import org.ic4j.candid.parser.IDLType;\n");
+		source.append("import org.ic4j.candid.types.Label;\n");
+		source.append("import org.ic4j.candid.types.Type;\n\n");
+
+		source.append("// generated by CandidRecordProcessor from ").append(className).append(", do not edit\n");
+		source.append("public final class ").append(codecName).append(" implements IDLCodec<").append(className).append("> {\n");
+
+		source.append("\tstatic final String[] NAMES = {");
+		for (int i = 0; i < fields.size(); i++)
+			source.append(i == 0 ? " " : ", ").append(this.processingEnv.getElementUtils().getConstantExpression(fields.get(i).name));
+		source.append(" };\n");
+
+		source.append("\tstatic final Class<?>[] FIELD_CLASSES = {");
+		for (int i = 0; i < fields.size(); i++)
+			source.append(i == 0 ? " " : ", ").append(fields.get(i).fieldClass);
+		source.append(" };\n");
+
+		source.append("\tstatic final Class<?>[] ITEM_CLASSES = {");
+		for (int i = 0; i < fields.size(); i++)
+			source.append(i == 0 ? " " : ", ").append(fields.get(i).itemClass);
+		source.append(" };\n\n");
+
+		source.append("\t@Override\n");
+		source.append("\tpublic Class<").append(className).append("> getValueClass() {\n");
+		source.append("\t\treturn ").append(className).append(".class;\n");
+		source.append("\t}\n\n");
+
+		source.append("\t@Override\n");
+		source.append("\tpublic IDLType getIDLType() {\n");
+		source.append("\t\tMap<Label, IDLType> typeMap = new TreeMap<Label, IDLType>();\n\n");
+		for (CodecField field : fields)
+			source.append("\t\ttypeMap.put(Label.createNamedLabel(")
+					.append(this.processingEnv.getElementUtils().getConstantExpression(field.name)).append("), ")
+					.append(field.idlType).append(");\n");
+		source.append("\n\t\tIDLType idlType = IDLType.createType(Type.RECORD, typeMap);\n");
+		source.append("\t\tidlType.setName(\"").append(typeElement.getSimpleName()).append("\");\n\n");
+		source.append("\t\treturn idlType;\n");
+		source.append("\t}\n\n");
+
+		source.append("\tstatic IDLType variant(String name, String... labels) {\n");
+		source.append("\t\tMap<Label, IDLType> typeMap = new TreeMap<Label, IDLType>();\n\n");
+		source.append("\t\tfor (String label : labels)\n");
+		source.append("\t\t\ttypeMap.put(Label.createNamedLabel(label), null);\n\n");
+		source.append("\t\tIDLType idlType = IDLType.createType(Type.VARIANT, typeMap);\n");
+		source.append("\t\tidlType.setName(name);\n\n");
+		source.append("\t\treturn idlType;\n");
+		source.append("\t}\n\n");
+
+		source.append("\t@Override\n");
+		source.append("\tpublic String[] getNames() {\n");
+		source.append("\t\treturn NAMES;\n");
+		source.append("\t}\n\n");
+
+		source.append("\t@Override\n");
+		source.append("\tpublic Class<?>[] getFieldClasses() {\n");
+		source.append("\t\treturn FIELD_CLASSES;\n");
+		source.append("\t}\n\n");
+
+		source.append("\t@Override\n");
+		source.append("\tpublic Class<?>[] getItemClasses() {\n");
+		source.append("\t\treturn ITEM_CLASSES;\n");
+		source.append("\t}\n\n");
+
+		source.append("\t@Override\n");
+		source.append("\tpublic ").append(className).append(" create() {\n");
+		source.append("\t\treturn new ").append(className).append("();\n");
+		source.append("\t}\n\n");
+
+		source.append("\t@Override\n");
+		source.append("\tpublic Object get(").append(className).append(" value, int index) {\n");
+		source.append("\t\tswitch (index) {\n");
+		for (int i = 0; i < fields.size(); i++)
+			source.append("\t\tcase ").append(i).append(":\n\t\t\treturn value.").append(fields.get(i).fieldName).append(";\n");
+		source.append("\t\tdefault:\n\t\t\tthrow new IndexOutOfBoundsException(String.valueOf(index));\n");
+		source.append("\t\t}\n");
+		source.append("\t}\n\n");
+
+		source.append("\t@Override\n");
+		source.append("\t@SuppressWarnings(\"unchecked\")\n");
+		source.append("\tpublic void set(").append(className).append(" value, int index, Object item) {\n");
+		source.append("\t\tswitch (index) {\n");
+		for (int i = 0; i < fields.size(); i++)
+			source.append("\t\tcase ").append(i).append(":\n\t\t\tvalue.").append(fields.get(i).fieldName)
+					.append(" = (").append(fields.get(i).castType).append(") item;\n\t\t\tbreak;\n");
+		source.append("\t\tdefault:\n\t\t\tthrow new IndexOutOfBoundsException(String.valueOf(index));\n");
+		source.append("\t\t}\n");
+		source.append("\t}\n");
+
+		source.append("}\n");
+
+		try (Writer writer = this.processingEnv.getFiler().createSourceFile(qualifiedCodecName, typeElement).openWriter()) {
+			writer.write(source.toString());
+		} catch (IOException e) {
+			this.error("Cannot write " + qualifiedCodecName + ": " + e.getLocalizedMessage(), typeElement);
+			return;
+		}
+
+		this.codecs.add(qualifiedCodecName);
+	}
+
+	// entries of earlier incremental compilations are kept
+	void writeServices() {
+		Set<String> services = new TreeSet<String>(this.codecs);
+
+		try {
+			FileObject existing = this.processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", SERVICE_FILE);
+
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(existing.openInputStream(), StandardCharsets.UTF_8))) {
+				String line;
+
+				while ((line = reader.readLine()) != null)
+					if (!line.trim().isEmpty())
+						services.add(line.trim());
+			}
+		} catch (IOException | IllegalArgumentException e) {
+			// no service file yet
+		}
+
+		try {
+			FileObject serviceFile = this.processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", SERVICE_FILE);
+
+			try (Writer writer = new OutputStreamWriter(serviceFile.openOutputStream(), StandardCharsets.UTF_8)) {
+				for (String service : services)
+					writer.write(service + "\n");
+			}
+		} catch (IOException e) {
+			this.processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Cannot write " + SERVICE_FILE + ": " + e.getLocalizedMessage());
+		}
+	}
+
+	void error(String message, Element element) {
+		this.processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2021 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.candid.gson;
+
+// depth, nodes and bytes of one guarded or measured call, not thread safe, converters do not split these calls into parallel tasks
+final class Counter {
+	final Limits limits;
+
+	int depth;
+	long nodes;
+	long bytes;
+
+	Counter(Limits limits) {
+		this.limits = limits;
+	}
+
+	// nested value with size items, size is 0 if items are counted one by one
+	void enter(int size) {
+		if (++this.depth > this.limits.maxDepth)
+			throw Limits.exceeded("depth", this.limits.maxDepth);
+
+		if (size > 0)
+			this.items(size);
+	}
+
+	void exit() {
+		this.depth--;
+	}
+
+	void items(int size) {
+		if (size > this.limits.maxElements)
+			throw Limits.exceeded("elements", this.limits.maxElements);
+
+		if ((this.nodes += size) > this.limits.maxNodes)
+			throw Limits.exceeded("nodes", this.limits.maxNodes);
+	}
+
+	// count is number of items read so far, including this one
+	void item(int count) {
+		if (count > this.limits.maxElements)
+			throw Limits.exceeded("elements", this.limits.maxElements);
+
+		if (++this.nodes > this.limits.maxNodes)
+			throw Limits.exceeded("nodes", this.limits.maxNodes);
+	}
+
+	void bytes(int length) {
+		if ((this.bytes += length) > this.limits.maxBytes)
+			throw Limits.exceeded("bytes", this.limits.maxBytes);
+	}
+}
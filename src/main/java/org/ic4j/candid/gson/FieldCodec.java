@@ -0,0 +1,177 @@
+/*
+ * Copyright 2021 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.candid.gson;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ic4j.candid.CandidError;
+import org.ic4j.candid.parser.IDLType;
+
+import com.google.gson.annotations.Expose;
+import com.google.gson.annotations.SerializedName;
+
+/*
+ * IDLCodec of classes without generated codec, constructor and field MethodHandles are resolved once
+ * and adapted to Object signatures. Fields follow the same rules as GsonSerializer.getIDLType.
+ */
+final class FieldCodec<T> implements IDLCodec<T> {
+	static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+	static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(Object.class);
+	static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+	static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+	final Class<T> valueClass;
+
+	MethodHandle constructor;
+
+	String[] names;
+	Class<?>[] fieldClasses;
+	Class<?>[] itemClasses;
+	MethodHandle[] getters;
+	MethodHandle[] setters;
+
+	FieldCodec(Class<T> valueClass) {
+		this.valueClass = valueClass;
+	}
+
+	// null if class has no default constructor or fields are not accessible
+	static <T> FieldCodec<T> create(Class<T> valueClass) {
+		FieldCodec<T> codec = new FieldCodec<T>(valueClass);
+
+		List<String> names = new ArrayList<String>();
+		List<Class<?>> fieldClasses = new ArrayList<Class<?>>();
+		List<Class<?>> itemClasses = new ArrayList<Class<?>>();
+		List<MethodHandle> getters = new ArrayList<MethodHandle>();
+		List<MethodHandle> setters = new ArrayList<MethodHandle>();
+
+		try {
+			Constructor<?> constructor = valueClass.getDeclaredConstructor();
+			constructor.setAccessible(true);
+
+			codec.constructor = LOOKUP.unreflectConstructor(constructor).asType(CONSTRUCTOR_TYPE);
+
+			for (Field field : valueClass.getDeclaredFields()) {
+				// Gson does not write static and transient fields
+				if (Modifier.isStatic(field.getModifiers()) || Modifier.isTransient(field.getModifiers()))
+					continue;
+
+				if (field.isAnnotationPresent(Expose.class) && !field.getAnnotation(Expose.class).deserialize())
+					continue;
+
+				String name = field.getName();
+
+				if (name.startsWith("this$") || name.startsWith("$VALUES") || name.startsWith("ENUM$VALUES"))
+					continue;
+
+				if (field.isAnnotationPresent(SerializedName.class))
+					name = field.getAnnotation(SerializedName.class).value();
+				else
+					name = IDLTypeCache.DEFAULT.getName(field);
+
+				Class<?> itemClass = null;
+
+				if (field.getGenericType() instanceof ParameterizedType) {
+					java.lang.reflect.Type itemType = ((ParameterizedType) field.getGenericType()).getActualTypeArguments()[0];
+
+					if (itemType instanceof Class)
+						itemClass = (Class<?>) itemType;
+				}
+
+				field.setAccessible(true);
+
+				names.add(name);
+				fieldClasses.add(field.getType());
+				itemClasses.add(itemClass);
+				getters.add(LOOKUP.unreflectGetter(field).asType(GETTER_TYPE));
+				setters.add(LOOKUP.unreflectSetter(field).asType(SETTER_TYPE));
+			}
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// Gson has its own ways
+			return null;
+		}
+
+		codec.names = names.toArray(new String[names.size()]);
+		codec.fieldClasses = fieldClasses.toArray(new Class<?>[fieldClasses.size()]);
+		codec.itemClasses = itemClasses.toArray(new Class<?>[itemClasses.size()]);
+		codec.getters = getters.toArray(new MethodHandle[getters.size()]);
+		codec.setters = setters.toArray(new MethodHandle[setters.size()]);
+
+		return codec;
+	}
+
+	@Override
+	public Class<T> getValueClass() {
+		return this.valueClass;
+	}
+
+	@Override
+	public IDLType getIDLType() {
+		return IDLTypeCache.DEFAULT.get(this.valueClass);
+	}
+
+	@Override
+	public String[] getNames() {
+		return this.names;
+	}
+
+	@Override
+	public Class<?>[] getFieldClasses() {
+		return this.fieldClasses;
+	}
+
+	@Override
+	public Class<?>[] getItemClasses() {
+		return this.itemClasses;
+	}
+
+	@Override
+	public T create() {
+		try {
+			return this.valueClass.cast((Object) this.constructor.invokeExact());
+		} catch (Throwable e) {
+			throw CandidError.create(CandidError.CandidErrorCode.CUSTOM, e, e.getLocalizedMessage());
+		}
+	}
+
+	@Override
+	public Object get(T value, int index) {
+		try {
+			return (Object) this.getters[index].invokeExact(value);
+		} catch (Throwable e) {
+			throw CandidError.create(CandidError.CandidErrorCode.CUSTOM, e, e.getLocalizedMessage());
+		}
+	}
+
+	@Override
+	public void set(T value, int index, Object item) {
+		try {
+			this.setters[index].invokeExact(value, item);
+		} catch (Throwable e) {
+			throw CandidError.create(CandidError.CandidErrorCode.CUSTOM, e, e.getLocalizedMessage());
+		}
+	}
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2021 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.candid.gson;
+
+import java.io.BufferedWriter;
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import org.ic4j.candid.CandidError;
+import org.ic4j.candid.parser.IDLArgs;
+import org.ic4j.candid.parser.IDLType;
+import org.ic4j.candid.parser.IDLValue;
+import org.ic4j.candid.types.Type;
+
+/*
+ * Writes many Candid responses of one expected type as NDJSON or one JSON array, JSON tokens go straight to the output
+ * through GsonDeserializer, without JsonElement trees. Responses are IDLValue or encoded IDLArgs bytes, first argument is used.
+ * With parallelism, up to that many responses are decoded and rendered ahead as ForkJoin tasks, output keeps response order.
+ * Settings are not synchronized, configure the decoder before writing.
+ */
+public final class GsonBatchDecoder {
+	// rendered responses are copied out of these, so buffers keep their capacity between responses
+	static final ThreadLocal<CharArrayWriter> BUFFERS = ThreadLocal.withInitial(CharArrayWriter::new);
+
+	static final int BUFFER_SIZE = 65536;
+
+	final IDLTypePlan plan;
+	final BatchFormat format;
+	final GsonDeserializer deserializer;
+
+	// VEC responses are written item by item
+	boolean flatten;
+
+	// 0 if responses are decoded in order on calling thread
+	int pages;
+	ForkJoinPool pool;
+
+	GsonBatchDecoder(GsonDeserializer deserializer, BatchFormat format) {
+		this.plan = deserializer.plan;
+		this.format = format;
+		this.deserializer = deserializer;
+	}
+
+	public static GsonBatchDecoder create(IDLType idlType, BatchFormat format) {
+		if (idlType == null)
+			throw new IllegalArgumentException("IDLType is not defined");
+
+		return create(IDLTypePlan.compile(idlType), format);
+	}
+
+	public static GsonBatchDecoder create(IDLTypePlan plan, BatchFormat format) {
+		if (plan == null)
+			throw new IllegalArgumentException("IDLType is not defined");
+
+		if (format == null)
+			throw new IllegalArgumentException("Batch format is not defined");
+
+		return new GsonBatchDecoder(GsonDeserializer.create(plan), format);
+	}
+
+	// responses are written with deserializer settings, such as Gson, blob format, limits and principal cache, deserializer IDLType is response type
+	public static GsonBatchDecoder create(GsonDeserializer deserializer, BatchFormat format) {
+		if (deserializer == null || deserializer.plan == null)
+			throw new IllegalArgumentException("IDLType is not defined");
+
+		if (format == null)
+			throw new IllegalArgumentException("Batch format is not defined");
+
+		return new GsonBatchDecoder(deserializer, format);
+	}
+
+	public void setBlobFormat(BlobFormat blobFormat)
+	{
+		this.deserializer.setBlobFormat(blobFormat);
+	}
+
+	// each item of VEC response is a separate NDJSON line or array element
+	public void setFlatten(boolean flatten)
+	{
+		this.flatten = flatten;
+	}
+
+	// number of responses decoded ahead in parallel, 0 turns it off
+	public void setParallelism(int pages)
+	{
+		this.setParallelism(pages, null);
+	}
+
+	public void setParallelism(int pages, ForkJoinPool pool)
+	{
+		if (pages < 0)
+			throw new IllegalArgumentException("Parallelism cannot be negative");
+
+		this.pages = pages;
+		this.pool = pool == null ? ForkJoinPool.commonPool() : pool;
+	}
+
+	// returns number of JSON values written, output stream is flushed, not closed
+	public long write(Iterator<?> responses, OutputStream outputStream) {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8), BUFFER_SIZE);
+
+		long count = this.write(responses, writer);
+
+		try {
+			writer.flush();
+		} catch (IOException e) {
+			throw CandidError.create(CandidError.CandidErrorCode.CUSTOM, e, e.getLocalizedMessage());
+		}
+
+		return count;
+	}
+
+	public long write(Iterator<?> responses, Writer writer) {
+		try {
+			if (this.format == BatchFormat.ARRAY)
+				writer.write('[');
+
+			long count;
+
+			if (this.pages > 0)
+				count = this.writeParallel(responses, writer);
+			else {
+				count = 0;
+
+				while (responses.hasNext())
+					count += this.render(responses.next(), writer, count > 0);
+			}
+
+			if (this.format == BatchFormat.ARRAY)
+				writer.write(']');
+
+			return count;
+		} catch (IOException e) {
+			throw CandidError.create(CandidError.CandidErrorCode.CUSTOM, e, e.getLocalizedMessage());
+		}
+	}
+
+	long writeParallel(Iterator<?> responses, Writer writer) throws IOException {
+		ArrayDeque<ForkJoinTask<Page>> tasks = new ArrayDeque<ForkJoinTask<Page>>(this.pages);
+
+		long count = 0;
+
+		while (responses.hasNext()) {
+			Object response = responses.next();
+
+			tasks.addLast(this.pool.submit(() -> this.renderPage(response)));
+
+			if (tasks.size() >= this.pages)
+				count += this.writePage(tasks.removeFirst().join(), writer, count > 0);
+		}
+
+		while (!tasks.isEmpty())
+			count += this.writePage(tasks.removeFirst().join(), writer, count > 0);
+
+		return count;
+	}
+
+	int writePage(Page page, Writer writer, boolean separate) throws IOException {
+		if (page.count == 0)
+			return 0;
+
+		if (separate && this.format == BatchFormat.ARRAY)
+			writer.write(',');
+
+		writer.write(page.chars);
+
+		return page.count;
+	}
+
+	Page renderPage(Object response) {
+		CharArrayWriter buffer = BUFFERS.get();
+
+		buffer.reset();
+
+		try {
+			int count = this.render(response, buffer, false);
+
+			return new Page(buffer.toCharArray(), count);
+		} catch (IOException e) {
+			throw CandidError.create(CandidError.CandidErrorCode.CUSTOM, e, e.getLocalizedMessage());
+		}
+	}
+
+	// JSON values of one response, array elements are separated by comma, NDJSON values end with new line
+	int render(Object response, Writer writer, boolean separate) throws IOException {
+		IDLValue value = getIDLValue(response);
+
+		// limits are checked per response
+		GsonDeserializer deserializer = this.deserializer.guard(null);
+
+		Object[] items = null;
+
+		if (this.flatten && this.plan.type == Type.VEC && this.plan.innerPlan != null && !this.plan.blob
+				&& !this.plan.primitiveArray && value.getValue() instanceof Object[])
+			items = (Object[]) value.getValue();
+
+		if (items == null) {
+			this.renderValue(deserializer, value.getIDLType(), this.plan, value.getValue(), writer, separate);
+			return 1;
+		}
+
+		for (int i = 0; i < items.length; i++)
+			this.renderValue(deserializer, null, this.plan.innerPlan, items[i], writer, separate || i > 0);
+
+		return items.length;
+	}
+
+	void renderValue(GsonDeserializer deserializer, IDLType idlType, IDLTypePlan plan, Object value, Writer writer, boolean separate)
+			throws IOException {
+		if (separate && this.format == BatchFormat.ARRAY)
+			writer.write(',');
+
+		// JsonWriter does not buffer, each value gets its own writer over shared output
+		deserializer.writeValue(idlType, plan, value, new Blobs.BlobJsonWriter(writer));
+
+		if (this.format == BatchFormat.NDJSON)
+			writer.write('\n');
+	}
+
+	static IDLValue getIDLValue(Object response) {
+		if (response instanceof IDLValue)
+			return (IDLValue) response;
+
+		if (response instanceof byte[])
+			return IDLArgs.fromBytes((byte[]) response).getArgs().get(0);
+
+		if (response instanceof IDLArgs)
+			return ((IDLArgs) response).getArgs().get(0);
+
+		throw CandidError.create(CandidError.CandidErrorCode.CUSTOM,
+				"Cannot decode response of class " + (response == null ? null : response.getClass().getName()));
+	}
+
+	static final class Page {
+		final char[] chars;
+		final int count;
+
+		Page(char[] chars, int count) {
+			this.chars = chars;
+			this.count = count;
+		}
+	}
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2021 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.candid.gson;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.ic4j.candid.CandidError;
+import org.ic4j.candid.parser.IDLArgs;
+import org.ic4j.candid.parser.IDLType;
+import org.ic4j.candid.parser.IDLValue;
+import org.ic4j.candid.types.Type;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/*
+ * Streams NDJSON or top level JSON array elements into Candid chunks, each chunk is IDLArgs with single VEC argument.
+ * Elements are read one at a time with GsonSerializer against fixed item type, so memory is bounded by chunk size, not by input size.
+ * Chunks hold at most maxCount elements and, if maxBytes is set, at most maxBytes encoded bytes.
+ * Not thread safe, chunks are read in order by one consumer.
+ */
+public final class GsonBatchEncoder implements Iterator<byte[]>, Closeable {
+	public static final int DEFAULT_MAX_COUNT = 1000;
+
+	final JsonReader reader;
+	final BatchFormat format;
+	final GsonSerializer serializer;
+	final IDLType idlType;
+
+	int maxCount = DEFAULT_MAX_COUNT;
+
+	// 0 if chunks are bounded by count only
+	int maxBytes;
+
+	// elements read but not yet emitted, chunks split by byte size leave their tail here
+	final ArrayDeque<Object> pending = new ArrayDeque<Object>();
+
+	// encoded size of emitted elements, to size next chunk
+	long itemCount;
+	long byteCount;
+
+	boolean started;
+	boolean done;
+
+	GsonBatchEncoder(Reader reader, BatchFormat format, GsonSerializer serializer) {
+		this.reader = new JsonReader(reader);
+		this.format = format;
+		this.serializer = serializer;
+		this.idlType = IDLType.createType(Type.VEC, serializer.plan.idlType);
+
+		// NDJSON is a sequence of top level values
+		if (format == BatchFormat.NDJSON)
+			this.reader.setLenient(true);
+	}
+
+	public static GsonBatchEncoder create(InputStream inputStream, BatchFormat format, IDLType idlType) {
+		return create(new InputStreamReader(inputStream, StandardCharsets.UTF_8), format, idlType);
+	}
+
+	public static GsonBatchEncoder create(Reader reader, BatchFormat format, IDLType idlType) {
+		if (idlType == null)
+			throw new IllegalArgumentException("IDLType is not defined");
+
+		return create(reader, format, IDLTypePlan.compile(idlType));
+	}
+
+	public static GsonBatchEncoder create(Reader reader, BatchFormat format, IDLTypePlan plan) {
+		if (format == null)
+			throw new IllegalArgumentException("Batch format is not defined");
+
+		if (plan == null)
+			throw new IllegalArgumentException("IDLType is not defined");
+
+		return new GsonBatchEncoder(reader, format, GsonSerializer.create(plan));
+	}
+
+	public static GsonBatchEncoder create(InputStream inputStream, BatchFormat format, GsonSerializer serializer) {
+		return create(new InputStreamReader(inputStream, StandardCharsets.UTF_8), format, serializer);
+	}
+
+	// elements are converted with serializer settings, such as Gson, limits, principal cache and schema inference, serializer IDLType is item type
+	public static GsonBatchEncoder create(Reader reader, BatchFormat format, GsonSerializer serializer) {
+		if (format == null)
+			throw new IllegalArgumentException("Batch format is not defined");
+
+		if (serializer == null || serializer.plan == null)
+			throw new IllegalArgumentException("IDLType is not defined");
+
+		return new GsonBatchEncoder(reader, format, serializer);
+	}
+
+	public void setMaxCount(int maxCount)
+	{
+		if (maxCount < 1)
+			throw new IllegalArgumentException("Chunk count must be positive");
+
+		this.maxCount = maxCount;
+	}
+
+	public void setMaxBytes(int maxBytes)
+	{
+		if (maxBytes < 0)
+			throw new IllegalArgumentException("Chunk size cannot be negative");
+
+		this.maxBytes = maxBytes;
+	}
+
+	// type of each chunk argument
+	public IDLType getIDLType() {
+		return this.idlType;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (!this.pending.isEmpty())
+			return true;
+
+		try {
+			return this.hasNextElement();
+		} catch (IOException e) {
+			throw CandidError.create(CandidError.CandidErrorCode.CUSTOM, e, e.getLocalizedMessage());
+		}
+	}
+
+	@Override
+	public byte[] next() {
+		List<Object> values = this.read();
+
+		if (this.maxBytes == 0)
+			return this.getArgs(values).toBytes();
+
+		byte[] bytes = this.getArgs(values).toBytes();
+
+		// chunk over the limit is cut to the size that fits by average element size, its tail goes to the next chunk
+		while (bytes.length > this.maxBytes) {
+			if (values.size() == 1)
+				throw CandidError.create(CandidError.CandidErrorCode.CUSTOM,
+						"Element of " + bytes.length + " bytes exceeds chunk size " + this.maxBytes);
+
+			int size = (int) Math.max(1, Math.min(values.size() - 1, (long) values.size() * this.maxBytes / bytes.length));
+
+			for (int i = values.size() - 1; i >= size; i--)
+				this.pending.addFirst(values.remove(i));
+
+			bytes = this.getArgs(values).toBytes();
+		}
+
+		this.itemCount += values.size();
+		this.byteCount += bytes.length;
+
+		return bytes;
+	}
+
+	// next chunk without encoding, bounded by maxCount and by estimated size
+	public IDLArgs nextArgs() {
+		return this.getArgs(this.read());
+	}
+
+	IDLArgs getArgs(List<Object> values) {
+		List<IDLValue> args = new ArrayList<IDLValue>(1);
+		args.add(IDLValue.create(values.toArray(), this.idlType));
+
+		return IDLArgs.create(args);
+	}
+
+	List<Object> read() {
+		if (!this.hasNext())
+			throw new NoSuchElementException();
+
+		int size = this.maxCount;
+
+		if (this.maxBytes > 0 && this.itemCount > 0)
+			size = (int) Math.max(1, Math.min(size, this.maxBytes * this.itemCount / this.byteCount));
+
+		List<Object> values = new ArrayList<Object>(Math.min(size, DEFAULT_MAX_COUNT));
+
+		try {
+			while (values.size() < size && !this.pending.isEmpty())
+				values.add(this.pending.removeFirst());
+
+			while (values.size() < size && this.hasNextElement())
+				values.add(this.serializer.serialize(this.reader).getValue());
+		} catch (IOException e) {
+			throw CandidError.create(CandidError.CandidErrorCode.CUSTOM, e, e.getLocalizedMessage());
+		}
+
+		return values;
+	}
+
+	boolean hasNextElement() throws IOException {
+		if (this.done)
+			return false;
+
+		if (this.format == BatchFormat.ARRAY) {
+			if (!this.started) {
+				this.reader.beginArray();
+				this.started = true;
+			}
+
+			if (this.reader.hasNext())
+				return true;
+
+			this.reader.endArray();
+		} else if (this.reader.peek() != JsonToken.END_DOCUMENT)
+			return true;
+
+		this.done = true;
+		return false;
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.reader.close();
+	}
+}
@@ -16,12 +16,20 @@
 
 package org.ic4j.candid.gson;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Array;
 import java.math.BigInteger;
-import java.util.Base64;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.ic4j.candid.CandidError;
 import org.ic4j.candid.ObjectDeserializer;
@@ -33,58 +41,384 @@ import org.ic4j.candid.types.Type;
 import org.ic4j.types.Principal;
 
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonNull;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonWriter;
 
-public class GsonDeserializer implements ObjectDeserializer {
-	Optional<IDLType> idlType = Optional.empty();
-	Gson gson = new GsonBuilder().create();
+public class GsonDeserializer implements ObjectDeserializer, Cloneable {
+	// classes Gson cannot read from IDLValueReader, e.g. with Map fields, these go through JsonElement tree
+	static final ClassValue<AtomicBoolean> TREE_ONLY_CLASSES = new ClassValue<AtomicBoolean>() {
+		@Override
+		protected AtomicBoolean computeValue(Class<?> type) {
+			return new AtomicBoolean();
+		}
+	};
+
+	// set on creation, deserialize never modifies it, so one instance can be shared across threads and classes
+	volatile IDLTypePlan plan;
+	volatile BlobFormat blobFormat = BlobFormat.BASE64;
+
+	// null if VECs are converted sequentially
+	volatile ParallelVec parallel;
+
+	// null if calls are not measured
+	volatile Instrumentation instrumentation;
+
+	// null if every principal is formatted
+	volatile PrincipalCache principalCache;
+
+	// null if output size is not checked
+	volatile Limits limits;
+
+	// shared with GsonSerializer unless set
+	volatile Gson gson = GsonSerializer.DEFAULT_GSON;
+
+	// reflected POJO schemas of gson
+	volatile IDLTypeCache typeCache = IDLTypeCache.DEFAULT;
+
+	// set only on per call copy made by guard, null if calls are neither limited nor measured
+	Counter counter;
 
 	public static GsonDeserializer create(IDLType idlType) {
 		GsonDeserializer deserializer = new GsonDeserializer();
-		deserializer.idlType = Optional.ofNullable(idlType);
+		deserializer.setIDLType(idlType);
 		return deserializer;
 
 	}
 
+	public static GsonDeserializer create(IDLTypePlan plan) {
+		GsonDeserializer deserializer = new GsonDeserializer();
+		deserializer.plan = plan;
+		return deserializer;
+	}
+
 	public static GsonDeserializer create() {
 		GsonDeserializer deserializer = new GsonDeserializer();
 		return deserializer;
 	}
+
+	public static GsonDeserializer create(IDLType idlType, Gson gson) {
+		GsonDeserializer deserializer = create(idlType);
+		deserializer.setGson(gson);
+		return deserializer;
+	}
+
+	public static GsonDeserializer create(Gson gson) {
+		GsonDeserializer deserializer = new GsonDeserializer();
+		deserializer.setGson(gson);
+		return deserializer;
+	}
 	
 	public void setIDLType(IDLType idlType)
 	{
-		this.idlType = Optional.ofNullable(idlType);
+		if (idlType == null)
+			this.plan = null;
+		else
+			this.plan = IDLTypePlan.compile(idlType);
 	}
 	
+	// POJOs are read with TypeAdapters of this Gson, their schemas are reflected and cached per Gson
+	public void setGson(Gson gson)
+	{
+		if (gson == null)
+			gson = GsonSerializer.DEFAULT_GSON;
+
+		this.typeCache = IDLTypeCache.getDefault(gson);
+		this.gson = gson;
+		this.reportCaches();
+	}
+
+	public void setBlobFormat(BlobFormat blobFormat)
+	{
+		if (blobFormat == null)
+			throw new IllegalArgumentException("Blob format is not defined");
+
+		this.blobFormat = blobFormat;
+	}
+
+	// VECs with at least threshold items are converted in parallel, threshold 0 turns it off
+	public void setParallelism(int threshold)
+	{
+		this.parallel = ParallelVec.create(threshold, null);
+	}
+
+	public void setParallelism(int threshold, ForkJoinPool pool)
+	{
+		this.parallel = ParallelVec.create(threshold, pool);
+	}
+
+	// calls are timed and their values counted, measured calls are not split into parallel tasks
+	public void setInstrumentation(Instrumentation instrumentation)
+	{
+		this.instrumentation = instrumentation == Instrumentation.NOOP ? null : instrumentation;
+		this.reportCaches();
+	}
+
+	// principal text is formatted once per cache entry, PrincipalCache.getDefault() is shared
+	public void setPrincipalCache(PrincipalCache principalCache)
+	{
+		this.principalCache = principalCache;
+		this.reportCaches();
+	}
+
+	// POJO schemas are reflected in cache of Gson, field names are read from LabelCache.DEFAULT
+	void reportCaches() {
+		Instrumentation instrumentation = this.instrumentation;
+
+		if (instrumentation != null)
+			instrumentation.caches(this.typeCache, LabelCache.DEFAULT, this.principalCache);
+	}
+
+	// depth and size of value is checked while JSON is written, guarded calls are not split into parallel tasks
+	public void setLimits(Limits limits)
+	{
+		this.limits = limits;
+	}
+
 	public Class<?> getDefaultResponseClass() {
 		return JsonElement.class;
 	}	
 
 	@Override
 	public <T> T deserialize(IDLValue value, Class<T> clazz) {
+		Instrumentation instrumentation = this.instrumentation;
+
+		if (instrumentation == null)
+			return this.guard(null).convert(value, clazz);
+
+		long start = System.nanoTime();
+
+		GsonDeserializer deserializer = this.guard(instrumentation);
+
+		T result = deserializer.convert(value, clazz);
+
+		deserializer.record(instrumentation, start);
+
+		return result;
+	}
+
+	// updates target POJO graph in place, nested objects, ArrayLists and arrays of same length are reused
+	public <T> T deserializeInto(IDLValue value, T target) {
+		if (target == null)
+			throw CandidError.create(CandidError.CandidErrorCode.CUSTOM, "Target is not defined");
+
+		Instrumentation instrumentation = this.instrumentation;
+
+		if (instrumentation == null)
+			return this.guard(null).convertInto(value, target);
+
+		long start = System.nanoTime();
+
+		GsonDeserializer deserializer = this.guard(instrumentation);
+
+		T result = deserializer.convertInto(value, target);
+
+		deserializer.record(instrumentation, start);
+
+		return result;
+	}
+
+	// codec of target class returns target or a constant of its enum class
+	@SuppressWarnings("unchecked")
+	<T> T convertInto(IDLValue value, T target) {
+		// custom Gson TypeAdapters create new objects, only field accessors can update target
+		PojoCodec codec = this.gson == GsonSerializer.DEFAULT_GSON ? PojoCodec.get(target.getClass()) : null;
+
+		if (codec == null)
+			throw CandidError.create(CandidError.CandidErrorCode.CUSTOM,
+					"Cannot deserialize into class " + target.getClass().getName());
+
+		return (T) codec.getPojo(this, value.getValue(), target);
+	}
+
+	// per call copy with its own Counter, so this instance stays shared, measured calls are counted without limits
+	GsonDeserializer guard(Instrumentation instrumentation) {
+		Limits limits = this.limits;
+
+		if (limits == null) {
+			if (instrumentation == null)
+				return this;
+
+			limits = Limits.NONE;
+		}
+
+		try {
+			GsonDeserializer deserializer = (GsonDeserializer) this.clone();
+			deserializer.counter = limits.start();
+			deserializer.parallel = null;
+			return deserializer;
+		} catch (CloneNotSupportedException e) {
+			throw CandidError.create(CandidError.CandidErrorCode.CUSTOM, e, e.getLocalizedMessage());
+		}
+	}
+
+	// values were counted by this copy while they were converted
+	void record(Instrumentation instrumentation, long start) {
+		instrumentation.call(Instrumentation.Operation.DESERIALIZE, System.nanoTime() - start);
+		instrumentation.values(Instrumentation.Operation.DESERIALIZE, this.counter.nodes, this.counter.bytes);
+	}
+
+	<T> T convert(IDLValue value, Class<T> clazz) {
 		if (clazz != null) {
+			IDLTypePlan plan = this.plan;
+
+			if (clazz == LazyJson.class)
+				return clazz.cast(this.lazy(value));
 			
 			if (JsonElement.class.isAssignableFrom(clazz))
 			{
-				JsonElement jsonElement = this.getValue(value.getIDLType(), this.idlType, value.getValue());
+				JsonElement jsonElement = this.getValue(value.getIDLType(), plan, value.getValue());
 				return (T) jsonElement;
 			}
 			else {
-				if(!this.idlType.isPresent())
-					this.idlType = Optional.ofNullable(GsonSerializer.getIDLType(clazz));
+				// POJOs with their reflected schema are written by field accessors, custom Gson keeps its TypeAdapters
+				if (this.gson == GsonSerializer.DEFAULT_GSON) {
+					PojoCodec codec = PojoCodec.get(clazz);
+
+					if (codec != null && (plan == null || plan.isReflected(clazz)))
+						return clazz.cast(codec.getPojo(this, value.getValue()));
+				}
+
+				// resolve class schema per call, reflected types and their plans are cached in IDLTypeCache
+				if(plan == null)
+					plan = this.typeCache.getPlan(clazz);
 				
-				JsonElement jsonElement = this.getValue(value.getIDLType(), this.idlType, value.getValue());
-				return (T) gson.fromJson(jsonElement, clazz);
+				return this.getPojo(value, plan, clazz);
 			}
 		} else
 			throw CandidError.create(CandidError.CandidErrorCode.CUSTOM, "Class is not defined");
 	}
 
+	// JSON view converted only as far as it is read
+	public LazyJson deserializeLazy(IDLValue value) {
+		Instrumentation instrumentation = this.instrumentation;
+
+		if (instrumentation == null)
+			return this.guard(null).lazy(value);
+
+		long start = System.nanoTime();
+
+		GsonDeserializer deserializer = this.guard(instrumentation);
+
+		LazyJson result = deserializer.lazy(value);
+
+		// values converted later, as the view is read, are not part of the call
+		deserializer.record(instrumentation, start);
+
+		return result;
+	}
+
+	LazyJson lazy(IDLValue value) {
+		IDLTypePlan plan = this.plan;
+
+		// view is driven by plan, so IDLValue type is compiled if there is no expected type
+		if (plan == null)
+			plan = IDLTypePlan.compile(value.getIDLType());
+
+		return LazyJson.create(this, plan, value.getValue());
+	}
+
+	// only paths selected by projection are converted
+	public JsonElement deserialize(IDLValue value, Projection projection) {
+		if (projection == null)
+			throw CandidError.create(CandidError.CandidErrorCode.CUSTOM, "Projection is not defined");
+
+		Instrumentation instrumentation = this.instrumentation;
+
+		if (instrumentation == null)
+			return this.guard(null).getValue(projection, value.getValue());
+
+		long start = System.nanoTime();
+
+		GsonDeserializer deserializer = this.guard(instrumentation);
+
+		JsonElement result = deserializer.getValue(projection, value.getValue());
+
+		deserializer.record(instrumentation, start);
+
+		return result;
+	}
+
+	// paths compiled against expected IDLType
+	public Projection createProjection(String... paths) {
+		IDLTypePlan plan = this.plan;
+
+		if (plan == null)
+			throw CandidError.create(CandidError.CandidErrorCode.CUSTOM, "Projection requires IDLType");
+
+		return Projection.compile(plan, paths);
+	}
+
+	<T> T getPojo(IDLValue value, IDLTypePlan plan, Class<T> clazz) {
+		AtomicBoolean treeOnly = TREE_ONLY_CLASSES.get(clazz);
+
+		if (!treeOnly.get()) {
+			try {
+				// Gson TypeAdapters read JSON tokens straight from IDLValue
+				return this.gson.fromJson(new IDLValueReader(value.getIDLType(), plan, this, value.getValue()), clazz);
+			} catch (JsonParseException e) {
+				if (!isUnsupportedReader(e))
+					throw e;
+
+				treeOnly.set(true);
+
+				// values read before the failure are counted again by the tree
+				if (this.counter != null)
+					this.counter = this.counter.limits.start();
+			}
+		}
+
+		JsonElement jsonElement = this.getValue(value.getIDLType(), plan, value.getValue());
+		return this.gson.fromJson(jsonElement, clazz);
+	}
+
+	static boolean isUnsupportedReader(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause())
+			if (cause instanceof IDLValueReader.UnsupportedReaderException)
+				return true;
+
+		return false;
+	}
+
+	// write JSON tokens straight from IDLValue, without building JsonElement tree
+	public void deserialize(IDLValue value, JsonWriter writer) {
+		Instrumentation instrumentation = this.instrumentation;
+
+		long start = instrumentation == null ? 0 : System.nanoTime();
+
+		GsonDeserializer deserializer = this.guard(instrumentation);
+
+		try {
+			deserializer.writeValue(value.getIDLType(), this.plan, value.getValue(), writer);
+		} catch (IOException e) {
+			throw CandidError.create(CandidError.CandidErrorCode.CUSTOM, e, e.getLocalizedMessage());
+		}
+
+		if (instrumentation != null)
+			deserializer.record(instrumentation, start);
+	}
+
+	public void deserialize(IDLValue value, Writer writer) {
+		// Base64 blobs are streamed to the Writer in chunks
+		JsonWriter jsonWriter = new Blobs.BlobJsonWriter(writer);
+
+		this.deserialize(value, jsonWriter);
+
+		try {
+			jsonWriter.flush();
+		} catch (IOException e) {
+			throw CandidError.create(CandidError.CandidErrorCode.CUSTOM, e, e.getLocalizedMessage());
+		}
+	}
+
+	public void deserialize(IDLValue value, OutputStream outputStream) {
+		this.deserialize(value, new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8)));
+	}
+
 	JsonElement getPrimitiveValue(Type type, Object value) {
 		JsonElement result = JsonNull.INSTANCE;
 
@@ -96,7 +430,7 @@ public class GsonDeserializer implements ObjectDeserializer {
 			result = new JsonPrimitive((Boolean) value);
 			break;
 		case INT:
-			result = new JsonPrimitive((BigInteger) value);
+			result = new JsonPrimitive(getNumber((BigInteger) value));
 			break;
 		case INT8:
 			result = new JsonPrimitive((Byte) value);
@@ -109,8 +443,9 @@ public class GsonDeserializer implements ObjectDeserializer {
 			break;
 		case INT64:
 			result = new JsonPrimitive((Long) value);
+			break;
 		case NAT:
-			result = new JsonPrimitive((BigInteger) value);
+			result = new JsonPrimitive(getNumber((BigInteger) value));
 			break;
 		case NAT8:
 			result = new JsonPrimitive((Byte) value);
@@ -131,20 +466,224 @@ public class GsonDeserializer implements ObjectDeserializer {
 			result = new JsonPrimitive((Double) value);
 			break;
 		case TEXT:
+			if (this.counter != null)
+				this.counter.bytes(((String) value).length());
+
 			result = new JsonPrimitive((String) value);
 			break;
 		case EMPTY:
 			result = new JsonObject();
 			break;
 		case PRINCIPAL:
-			Principal principal = (Principal) value;
-			result = new JsonPrimitive(principal.toString());
+			result = new JsonPrimitive(this.getText((Principal) value));
 			break;
 		}
 
 		return result;
 	}
 
+	// conversion driven by compiled plan, null plan means types of IDLValue
+	JsonElement getValue(IDLType idlType, IDLTypePlan plan, Object value) {
+		if (plan == null || plan.inferred)
+			return this.getValue(idlType, Optional.empty(), value);
+
+		if (value == null)
+			return JsonNull.INSTANCE;
+
+		Type type = plan.type;
+
+		if (type.isPrimitive())
+			return this.getPrimitiveValue(type, value);
+
+		// handle VEC
+		if (type == Type.VEC) {
+			// handle byte array
+			if (plan.blob)
+				return Blobs.getValue(plan.innerPlan.type, this.blobFormat, this.countArray(value, true));
+
+			if (plan.primitiveArray)
+				return PrimitiveArrays.getJsonArray(this.countArray(value, false));
+
+			Object[] arrayValue = (Object[]) value;
+
+			Counter counter = this.counter;
+
+			if (counter != null)
+				counter.enter(arrayValue.length);
+
+			JsonArray arrayNode = new JsonArray(arrayValue.length);
+
+			ParallelVec parallel = this.parallel;
+
+			if (parallel != null && parallel.isParallel(arrayValue.length)) {
+				JsonElement[] items = new JsonElement[arrayValue.length];
+
+				parallel.forEach(items.length, i -> items[i] = this.getValue(null, plan.innerPlan, arrayValue[i]));
+
+				for (JsonElement item : items)
+					arrayNode.add(item);
+			} else
+				for (Object item : arrayValue)
+					arrayNode.add(this.getValue(null, plan.innerPlan, item));
+
+			if (counter != null)
+				counter.exit();
+
+			return arrayNode;
+		}
+
+		// handle OPT
+		if (type == Type.OPT) {
+			Optional<?> optionalValue = (Optional<?>) value;
+
+			if (optionalValue.isPresent())
+				return this.getValue(null, plan.innerPlan, optionalValue.get());
+			else
+				return JsonNull.INSTANCE;
+		}
+
+		if (type == Type.RECORD || type == Type.VARIANT) {
+			JsonArray arrayNode = new JsonArray();
+			JsonObject treeNode = new JsonObject();
+
+			Map<?, ?> valueMap = (Map<?, ?>) value;
+
+			Counter counter = this.counter;
+
+			if (counter != null)
+				counter.enter(valueMap.size());
+
+			for (Map.Entry<?, ?> entry : valueMap.entrySet()) {
+				Label label = (Label) entry.getKey();
+
+				boolean isNamed = label.getType() == Label.LabelType.NAMED;
+
+				String fieldName;
+				JsonElement itemNode = JsonNull.INSTANCE;
+
+				int index = plan.indexOf(label.getId());
+
+				// labels missing from expected type are kept as null, same as in IDLType conversion
+				if (index >= 0) {
+					isNamed = isNamed || plan.named[index];
+					fieldName = plan.names[index];
+
+					if (plan.plans[index] != null)
+						itemNode = this.getValue(null, plan.plans[index], entry.getValue());
+				} else
+					fieldName = LabelCache.DEFAULT.getName(label);
+
+				if(isNamed)
+					treeNode.add(fieldName, itemNode);
+				else
+					arrayNode.add(itemNode);
+			}
+
+			if (counter != null)
+				counter.exit();
+
+			if(arrayNode.isEmpty())
+				return treeNode;
+			else if(treeNode.size() == 0)
+				return arrayNode;
+			else
+			{
+				arrayNode.add(treeNode);
+				return arrayNode;
+			}
+		}
+		throw CandidError.create(CandidError.CandidErrorCode.CUSTOM, "Cannot convert type " + type.name());
+	}
+
+	JsonElement getValue(Projection projection, Object value) {
+		if (projection.all)
+			return this.getValue(null, projection.plan, value);
+
+		IDLTypePlan plan = projection.plan;
+
+		// OPT values are selected through
+		while (value != null && plan.type == Type.OPT) {
+			value = ((Optional<?>) value).orElse(null);
+			plan = plan.innerPlan;
+		}
+
+		if (value == null)
+			return JsonNull.INSTANCE;
+
+		Counter counter = this.counter;
+
+		if (plan.type == Type.VEC) {
+			// blob and primitive VEC values are primitive arrays
+			int length = Array.getLength(value);
+
+			JsonArray arrayNode;
+
+			if (counter != null)
+				counter.enter(length);
+
+			if (projection.items != null) {
+				arrayNode = new JsonArray(length);
+
+				for (int i = 0; i < length; i++)
+					arrayNode.add(this.getValue(projection.items, Array.get(value, i)));
+			} else {
+				arrayNode = new JsonArray(projection.indexes.size());
+
+				for (Map.Entry<Integer, Projection> entry : projection.indexes.entrySet())
+					if (entry.getKey() < length)
+						arrayNode.add(this.getValue(entry.getValue(), Array.get(value, entry.getKey())));
+			}
+
+			if (counter != null)
+				counter.exit();
+
+			return arrayNode;
+		}
+
+		// RECORD and VARIANT, labels that are not selected are not looked up
+		JsonArray arrayNode = new JsonArray();
+		JsonObject treeNode = new JsonObject();
+
+		Map<?, ?> valueMap = (Map<?, ?>) value;
+
+		if (counter != null)
+			counter.enter(valueMap.size());
+
+		for (int i = 0; i < projection.fields.length; i++) {
+			Projection fieldProjection = projection.fields[i];
+
+			if (fieldProjection == null)
+				continue;
+
+			Label label = plan.labels[i];
+
+			Object item = valueMap.get(label);
+
+			if (item == null && !valueMap.containsKey(label))
+				continue;
+
+			JsonElement itemNode = this.getValue(fieldProjection, item);
+
+			if (plan.named[i])
+				treeNode.add(plan.names[i], itemNode);
+			else
+				arrayNode.add(itemNode);
+		}
+
+		if (counter != null)
+			counter.exit();
+
+		if(arrayNode.isEmpty())
+			return treeNode;
+		else if(treeNode.size() == 0)
+			return arrayNode;
+		else
+		{
+			arrayNode.add(treeNode);
+			return arrayNode;
+		}
+	}
+
 	JsonElement getValue(IDLType idlType, Optional<IDLType> expectedIdlType, Object value) {
 		JsonElement result = JsonNull.INSTANCE;
 
@@ -176,23 +715,31 @@ public class GsonDeserializer implements ObjectDeserializer {
 
 			// handle byte array
 			if (innerIdlType.getType() == Type.INT8 || innerIdlType.getType() == Type.NAT8)
-				return new JsonPrimitive(Base64.getEncoder().encodeToString((byte[]) value));
+				return Blobs.getValue(innerIdlType.getType(), this.blobFormat, this.countArray(value, true));
+			else if (PrimitiveArrays.isFixedWidth(innerIdlType.getType()))
+				return PrimitiveArrays.getJsonArray(this.countArray(value, false));
 			else {
 				JsonArray arrayNode = new JsonArray();
 
 				Object[] arrayValue = (Object[]) value;
 
+				if (this.counter != null)
+					this.counter.enter(arrayValue.length);
+
 				for (Object item : arrayValue)
 					arrayNode.add(
 							this.getValue(idlType.getInnerType(), Optional.ofNullable(expectedInnerIDLType), item));
 
+				if (this.counter != null)
+					this.counter.exit();
+
 				return arrayNode;
 			}
 		}
 
 		// handle OPT
 		if (type == Type.OPT) {
-			Optional optionalValue = (Optional) value;
+			Optional<?> optionalValue = (Optional<?>) value;
 
 			if (optionalValue.isPresent()) {
 				IDLType expectedInnerIDLType = null;
@@ -221,6 +768,9 @@ public class GsonDeserializer implements ObjectDeserializer {
 
 			Set<Label> labels = valueMap.keySet();
 
+			if (this.counter != null)
+				this.counter.enter(labels.size());
+
 			Map<Long, Label> expectedLabels = new TreeMap<Long, Label>();
 
 			for (Label entry : expectedTypeMap.keySet())
@@ -246,9 +796,9 @@ public class GsonDeserializer implements ObjectDeserializer {
 					if(expectedLabel.getType() == Label.LabelType.NAMED)
 						isNamed = true;
 
-					fieldName = expectedLabel.getValue().toString();
+					fieldName = LabelCache.DEFAULT.getName(expectedLabel);
 				} else
-					fieldName = label.getValue().toString();
+					fieldName = LabelCache.DEFAULT.getName(label);
 
 				JsonElement itemNode = this.getValue(itemIdlType, Optional.ofNullable(expectedItemIdlType),
 						valueMap.get(label));
@@ -259,6 +809,9 @@ public class GsonDeserializer implements ObjectDeserializer {
 					arrayNode.add(itemNode);
 			}
 
+			if (this.counter != null)
+				this.counter.exit();
+
 			if(arrayNode.isEmpty())
 				return treeNode;
 			else if(treeNode.size() == 0)
@@ -272,4 +825,404 @@ public class GsonDeserializer implements ObjectDeserializer {
 		throw CandidError.create(CandidError.CandidErrorCode.CUSTOM, "Cannot convert type " + type.name());
 	}
 
+	// blob counts bytes, other fixed width arrays count items
+	Object countArray(Object value, boolean blob) {
+		Counter counter = this.counter;
+
+		if (counter != null) {
+			int length = Array.getLength(value);
+
+			if (blob)
+				counter.bytes(length);
+			else
+				counter.items(length);
+		}
+
+		return value;
+	}
+
+	String getText(Principal principal) {
+		PrincipalCache principalCache = this.principalCache;
+
+		if (principalCache != null)
+			return principalCache.getText(principal);
+
+		return principal.toString();
+	}
+
+	// POJO Principal fields of text values
+	Principal getPrincipal(String text) {
+		PrincipalCache principalCache = this.principalCache;
+
+		if (principalCache != null)
+			return principalCache.getPrincipal(text);
+
+		return Principal.fromString(text);
+	}
+
+	// nat and int values that fit in long are kept as compact Long, JSON output has the same digits
+	static Number getNumber(BigInteger value) {
+		if (value.bitLength() < 64)
+			return value.longValue();
+
+		return value;
+	}
+
+	void writePrimitiveValue(Type type, Object value, JsonWriter writer) throws IOException {
+		if (value == null) {
+			writer.nullValue();
+			return;
+		}
+
+		switch (type) {
+		case BOOL:
+			writer.value((Boolean) value);
+			break;
+		case INT:
+		case NAT:
+			BigInteger bigIntegerValue = (BigInteger) value;
+
+			// JsonWriter writes long digits directly
+			if (bigIntegerValue.bitLength() < 64)
+				writer.value(bigIntegerValue.longValue());
+			else
+				writer.value(bigIntegerValue);
+			break;
+		case INT8:
+		case NAT8:
+			writer.value(((Byte) value).longValue());
+			break;
+		case INT16:
+		case NAT16:
+			writer.value(((Short) value).longValue());
+			break;
+		case INT32:
+		case NAT32:
+			writer.value(((Integer) value).longValue());
+			break;
+		case INT64:
+		case NAT64:
+			writer.value(((Long) value).longValue());
+			break;
+		case FLOAT32:
+			writer.value((Float) value);
+			break;
+		case FLOAT64:
+			writer.value(((Double) value).doubleValue());
+			break;
+		case TEXT:
+			if (this.counter != null)
+				this.counter.bytes(((String) value).length());
+
+			writer.value((String) value);
+			break;
+		case EMPTY:
+			writer.beginObject();
+			writer.endObject();
+			break;
+		case PRINCIPAL:
+			writer.value(this.getText((Principal) value));
+			break;
+		default:
+			writer.nullValue();
+		}
+	}
+
+	// same rules as getValue, JSON tokens are written as IDLValue is walked
+	void writeValue(IDLType idlType, IDLTypePlan plan, Object value, JsonWriter writer) throws IOException {
+		if (plan == null || plan.inferred) {
+			this.writeValue(idlType, Optional.empty(), value, writer);
+			return;
+		}
+
+		if (value == null) {
+			writer.nullValue();
+			return;
+		}
+
+		Type type = plan.type;
+
+		if (type.isPrimitive()) {
+			this.writePrimitiveValue(type, value, writer);
+			return;
+		}
+
+		// handle VEC
+		if (type == Type.VEC) {
+			// handle byte array
+			if (plan.blob)
+				Blobs.write(plan.innerPlan.type, this.blobFormat, this.countArray(value, true), writer);
+			else if (plan.primitiveArray)
+				PrimitiveArrays.write(plan.innerPlan.type, this.countArray(value, false), writer);
+			else {
+				Object[] arrayValue = (Object[]) value;
+
+				if (this.counter != null)
+					this.counter.enter(arrayValue.length);
+
+				writer.beginArray();
+
+				for (Object item : arrayValue)
+					this.writeValue(null, plan.innerPlan, item, writer);
+
+				writer.endArray();
+
+				if (this.counter != null)
+					this.counter.exit();
+			}
+			return;
+		}
+
+		// handle OPT
+		if (type == Type.OPT) {
+			Optional<?> optionalValue = (Optional<?>) value;
+
+			if (optionalValue.isPresent())
+				this.writeValue(null, plan.innerPlan, optionalValue.get(), writer);
+			else
+				writer.nullValue();
+			return;
+		}
+
+		if (type == Type.RECORD || type == Type.VARIANT) {
+			Map<?, ?> valueMap = (Map<?, ?>) value;
+
+			if (this.counter != null)
+				this.counter.enter(valueMap.size());
+
+			Label[] labels = valueMap.keySet().toArray(new Label[valueMap.size()]);
+
+			// plan index of each label, negative if label is missing from expected type
+			int[] indexes = new int[labels.length];
+
+			// field name for named labels, null for unnamed, resolved before writing so mixed records get the same shape as getValue
+			String[] fieldNames = new String[labels.length];
+
+			boolean hasNamed = false;
+			boolean hasUnnamed = false;
+
+			for (int i = 0; i < labels.length; i++) {
+				Label label = labels[i];
+
+				boolean isNamed = label.getType() == Label.LabelType.NAMED;
+
+				String fieldName;
+
+				int index = plan.indexOf(label.getId());
+				indexes[i] = index;
+
+				if (index >= 0) {
+					isNamed = isNamed || plan.named[index];
+					fieldName = plan.names[index];
+				} else
+					fieldName = LabelCache.DEFAULT.getName(label);
+
+				if (isNamed) {
+					fieldNames[i] = fieldName;
+					hasNamed = true;
+				} else
+					hasUnnamed = true;
+			}
+
+			if (hasUnnamed) {
+				writer.beginArray();
+
+				for (int i = 0; i < labels.length; i++)
+					if (fieldNames[i] == null)
+						this.writeItemValue(plan, indexes[i], valueMap.get(labels[i]), writer);
+			}
+
+			if (hasNamed || !hasUnnamed) {
+				writer.beginObject();
+
+				for (int i = 0; i < labels.length; i++)
+					if (fieldNames[i] != null) {
+						writer.name(fieldNames[i]);
+						this.writeItemValue(plan, indexes[i], valueMap.get(labels[i]), writer);
+					}
+
+				writer.endObject();
+			}
+
+			if (hasUnnamed)
+				writer.endArray();
+
+			if (this.counter != null)
+				this.counter.exit();
+
+			return;
+		}
+		throw CandidError.create(CandidError.CandidErrorCode.CUSTOM, "Cannot convert type " + type.name());
+	}
+
+	// labels missing from expected type are written as null, same as in IDLType conversion
+	void writeItemValue(IDLTypePlan plan, int index, Object value, JsonWriter writer) throws IOException {
+		if (index < 0 || plan.plans[index] == null)
+			writer.nullValue();
+		else
+			this.writeValue(null, plan.plans[index], value, writer);
+	}
+
+	void writeValue(IDLType idlType, Optional<IDLType> expectedIdlType, Object value, JsonWriter writer)
+			throws IOException {
+		if (value == null) {
+			writer.nullValue();
+			return;
+		}
+
+		Type type = Type.NULL;
+
+		if (expectedIdlType.isPresent()) {
+			type = expectedIdlType.get().getType();
+			if (idlType != null)
+				idlType = expectedIdlType.get();
+		}
+		else if(idlType != null)
+			type = idlType.getType();
+
+		if (type.isPrimitive()) {
+			this.writePrimitiveValue(type, value, writer);
+			return;
+		}
+
+		// handle VEC
+		if (type == Type.VEC) {
+			IDLType expectedInnerIDLType = null;
+			IDLType innerIdlType = idlType.getInnerType();
+
+			if (expectedIdlType.isPresent()) {
+				expectedInnerIDLType = expectedIdlType.get().getInnerType();
+				innerIdlType = expectedInnerIDLType;
+			}
+
+			// handle byte array
+			if (innerIdlType.getType() == Type.INT8 || innerIdlType.getType() == Type.NAT8)
+				Blobs.write(innerIdlType.getType(), this.blobFormat, this.countArray(value, true), writer);
+			else if (PrimitiveArrays.isFixedWidth(innerIdlType.getType()))
+				PrimitiveArrays.write(innerIdlType.getType(), this.countArray(value, false), writer);
+			else {
+				writer.beginArray();
+
+				Object[] arrayValue = (Object[]) value;
+
+				if (this.counter != null)
+					this.counter.enter(arrayValue.length);
+
+				for (Object item : arrayValue)
+					this.writeValue(idlType.getInnerType(), Optional.ofNullable(expectedInnerIDLType), item, writer);
+
+				if (this.counter != null)
+					this.counter.exit();
+
+				writer.endArray();
+			}
+			return;
+		}
+
+		// handle OPT
+		if (type == Type.OPT) {
+			Optional<?> optionalValue = (Optional<?>) value;
+
+			if (optionalValue.isPresent()) {
+				IDLType expectedInnerIDLType = null;
+
+				if (expectedIdlType.isPresent())
+					expectedInnerIDLType = expectedIdlType.get().getInnerType();
+
+				this.writeValue(idlType.getInnerType(), Optional.ofNullable(expectedInnerIDLType),
+						optionalValue.get(), writer);
+			} else
+				writer.nullValue();
+			return;
+		}
+
+		if (type == Type.RECORD || type == Type.VARIANT) {
+			Map<?, ?> valueMap = (Map<?, ?>) value;
+
+			Map<Label, IDLType> typeMap = idlType.getTypeMap();
+
+			Map<Label, IDLType> expectedTypeMap = new TreeMap<Label, IDLType>();
+
+			if (expectedIdlType.isPresent() && expectedIdlType.get().getTypeMap() != null)
+				expectedTypeMap = expectedIdlType.get().getTypeMap();
+
+			Map<Long, Label> expectedLabels = new TreeMap<Long, Label>();
+
+			for (Label entry : expectedTypeMap.keySet())
+				expectedLabels.put(entry.getId(), entry);
+
+			if (this.counter != null)
+				this.counter.enter(valueMap.size());
+
+			Label[] labels = valueMap.keySet().toArray(new Label[valueMap.size()]);
+
+			// field name for named labels, null for unnamed, resolved before writing so mixed records get the same shape as getValue
+			String[] fieldNames = new String[labels.length];
+
+			boolean hasNamed = false;
+			boolean hasUnnamed = false;
+
+			for (int i = 0; i < labels.length; i++) {
+				Label label = labels[i];
+
+				boolean isNamed = false;
+
+				if(label.getType() == Label.LabelType.NAMED)
+					isNamed = true;
+
+				String fieldName;
+
+				if (expectedTypeMap.containsKey(label)) {
+					Label expectedLabel = expectedLabels.get(label.getId());
+
+					if(expectedLabel.getType() == Label.LabelType.NAMED)
+						isNamed = true;
+
+					fieldName = LabelCache.DEFAULT.getName(expectedLabel);
+				} else
+					fieldName = LabelCache.DEFAULT.getName(label);
+
+				if (isNamed) {
+					fieldNames[i] = fieldName;
+					hasNamed = true;
+				} else
+					hasUnnamed = true;
+			}
+
+			if (hasUnnamed) {
+				writer.beginArray();
+
+				for (int i = 0; i < labels.length; i++)
+					if (fieldNames[i] == null)
+						this.writeItemValue(typeMap, expectedTypeMap, labels[i], valueMap, writer);
+			}
+
+			if (hasNamed || !hasUnnamed) {
+				writer.beginObject();
+
+				for (int i = 0; i < labels.length; i++)
+					if (fieldNames[i] != null) {
+						writer.name(fieldNames[i]);
+						this.writeItemValue(typeMap, expectedTypeMap, labels[i], valueMap, writer);
+					}
+
+				writer.endObject();
+			}
+
+			if (hasUnnamed)
+				writer.endArray();
+
+			if (this.counter != null)
+				this.counter.exit();
+
+			return;
+		}
+		throw CandidError.create(CandidError.CandidErrorCode.CUSTOM, "Cannot convert type " + type.name());
+	}
+
+	void writeItemValue(Map<Label, IDLType> typeMap, Map<Label, IDLType> expectedTypeMap, Label label,
+			Map<?, ?> valueMap, JsonWriter writer) throws IOException {
+		this.writeValue(typeMap.get(label), Optional.ofNullable(expectedTypeMap.get(label)), valueMap.get(label), writer);
+	}
+
 }
@@ -16,8 +16,17 @@
 
 package org.ic4j.candid.gson;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.lang.reflect.ParameterizedType;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.Iterator;
@@ -25,6 +34,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
 
 import org.ic4j.candid.CandidError;
 import org.ic4j.candid.ObjectSerializer;
@@ -42,48 +52,260 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
 import com.google.gson.annotations.Expose;
 import com.google.gson.annotations.SerializedName;
+import com.google.gson.internal.LazilyParsedNumber;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
-public class GsonSerializer implements ObjectSerializer {
-	Optional<IDLType> idlType = Optional.empty();
+public class GsonSerializer implements ObjectSerializer, Cloneable {
+	// set on creation, serialize never modifies it, so one instance can be shared across threads
+	volatile IDLTypePlan plan;
 
-	Gson gson = new GsonBuilder().create();
+	// null if VECs are converted sequentially
+	volatile ParallelVec parallel;
+
+	// null if untyped values are inferred item by item
+	volatile SchemaInference inference;
+
+	// null if calls are not measured
+	volatile Instrumentation instrumentation;
+
+	// null if every principal is parsed
+	volatile PrincipalCache principalCache;
+
+	// null if input size is not checked
+	volatile Limits limits;
+
+	// Gson instances are expensive to build and cache adapters per instance, so converters share one by default
+	static final Gson DEFAULT_GSON = new GsonBuilder().create();
+
+	static final int MAX_LONG_DIGITS = 18;
+
+	volatile Gson gson = DEFAULT_GSON;
+
+	// set only on per call copy made by guard, null if calls are neither limited nor measured
+	Counter counter;
 
 	public static GsonSerializer create(IDLType idlType) {
 		GsonSerializer deserializer = new GsonSerializer();
-		deserializer.idlType = Optional.ofNullable(idlType);
+		deserializer.setIDLType(idlType);
 		return deserializer;
 
 	}
 
+	public static GsonSerializer create(IDLTypePlan plan) {
+		GsonSerializer deserializer = new GsonSerializer();
+		deserializer.plan = plan;
+		return deserializer;
+	}
+
 	public static GsonSerializer create() {
 		GsonSerializer deserializer = new GsonSerializer();
 		return deserializer;
 	}
+
+	public static GsonSerializer create(IDLType idlType, Gson gson) {
+		GsonSerializer deserializer = create(idlType);
+		deserializer.setGson(gson);
+		return deserializer;
+	}
+
+	public static GsonSerializer create(Gson gson) {
+		GsonSerializer deserializer = new GsonSerializer();
+		deserializer.setGson(gson);
+		return deserializer;
+	}
+
+	public static Gson getDefaultGson() {
+		return DEFAULT_GSON;
+	}
 	
 	public void setIDLType(IDLType idlType)
 	{
-		this.idlType = Optional.ofNullable(idlType);
+		if (idlType == null)
+			this.plan = null;
+		else
+			this.plan = IDLTypePlan.compile(idlType);
 	}	
 
+	// POJOs are written with TypeAdapters of this Gson
+	public void setGson(Gson gson)
+	{
+		this.gson = gson == null ? DEFAULT_GSON : gson;
+		this.reportCaches();
+	}
+
+	// VECs with at least threshold items are converted in parallel, threshold 0 turns it off
+	public void setParallelism(int threshold)
+	{
+		this.parallel = ParallelVec.create(threshold, null);
+	}
+
+	public void setParallelism(int threshold, ForkJoinPool pool)
+	{
+		this.parallel = ParallelVec.create(threshold, pool);
+	}
+
+	// untyped JSON trees are converted by inferred schema, does not apply if IDLType is set or to streamed JSON
+	public void setSchemaInference(SchemaInference inference)
+	{
+		this.inference = inference;
+	}
+
+	// calls are timed and their values counted, measured calls are not split into parallel tasks
+	public void setInstrumentation(Instrumentation instrumentation)
+	{
+		this.instrumentation = instrumentation == Instrumentation.NOOP ? null : instrumentation;
+		this.reportCaches();
+	}
+
+	// principal text is parsed once per cache entry, PrincipalCache.getDefault() is shared
+	public void setPrincipalCache(PrincipalCache principalCache)
+	{
+		this.principalCache = principalCache;
+		this.reportCaches();
+	}
+
+	// POJOs are matched with schemas reflected in IDLTypeCache.DEFAULT only with default Gson, labels come from LabelCache.DEFAULT
+	void reportCaches() {
+		Instrumentation instrumentation = this.instrumentation;
+
+		if (instrumentation != null)
+			instrumentation.caches(this.gson == DEFAULT_GSON ? IDLTypeCache.DEFAULT : null, LabelCache.DEFAULT, this.principalCache);
+	}
+
+	// depth and size of input is checked while it is converted, guarded calls are not split into parallel tasks
+	public void setLimits(Limits limits)
+	{
+		this.limits = limits;
+	}
+
 	@Override
 	public IDLValue serialize(Object value) {
+		Instrumentation instrumentation = this.instrumentation;
+
+		if (instrumentation == null)
+			return this.guard(null).convert(value);
+
+		long start = System.nanoTime();
+
+		GsonSerializer serializer = this.guard(instrumentation);
+
+		return serializer.record(instrumentation, start, serializer.convert(value));
+	}
+
+	// per call copy with its own Counter, so this instance stays shared, measured calls are counted without limits
+	GsonSerializer guard(Instrumentation instrumentation) {
+		Limits limits = this.limits;
+
+		if (limits == null) {
+			if (instrumentation == null)
+				return this;
+
+			limits = Limits.NONE;
+		}
+
+		try {
+			GsonSerializer serializer = (GsonSerializer) this.clone();
+			serializer.counter = limits.start();
+			serializer.parallel = null;
+			return serializer;
+		} catch (CloneNotSupportedException e) {
+			throw CandidError.create(CandidError.CandidErrorCode.CUSTOM, e, e.getLocalizedMessage());
+		}
+	}
+
+	// values were counted by this copy while they were converted
+	IDLValue record(Instrumentation instrumentation, long start, IDLValue idlValue) {
+		instrumentation.call(Instrumentation.Operation.SERIALIZE, System.nanoTime() - start);
+		instrumentation.values(Instrumentation.Operation.SERIALIZE, this.counter.nodes, this.counter.bytes);
+
+		return idlValue;
+	}
+
+	IDLValue convert(Object value) {
 		if (value == null)
 			return IDLValue.create(value);
 
-		if (JsonElement.class.isAssignableFrom(value.getClass()))
-			return this.getIDLValue(this.idlType, (JsonElement) value);
+		IDLTypePlan plan = this.plan;
+
+		if (JsonElement.class.isAssignableFrom(value.getClass())) {
+			SchemaInference inference = this.inference;
+
+			if (plan == null && inference != null)
+				return inference.convert(this, (JsonElement) value);
+
+			return this.getIDLValue(plan, (JsonElement) value);
+		}
+		else if (value instanceof JsonReader)
+			return this.read((JsonReader) value);
+		else if (value instanceof Reader)
+			return this.read(new JsonReader((Reader) value));
+		else if (value instanceof InputStream)
+			return this.read(new JsonReader(new InputStreamReader((InputStream) value, StandardCharsets.UTF_8)));
 		else {
+			// POJOs with their reflected schema are read by field accessors, custom Gson keeps its TypeAdapters
+			if (plan != null && this.gson == DEFAULT_GSON) {
+				PojoCodec codec = PojoCodec.get(value.getClass());
+
+				if (codec != null && plan.isReflected(value.getClass()))
+					return codec.getIDLValue(this, plan, value);
+			}
+
 			try {
-				// JSON data structure
-				JsonElement jsonElement = gson.toJsonTree(value);
-				return this.getIDLValue(this.idlType, jsonElement);
+				// Gson TypeAdapters write JSON tokens straight into IDLValue
+				IDLValueWriter writer = new IDLValueWriter(this, plan);
+				this.gson.toJson(value, value.getClass(), writer);
+				return writer.get();
 			} catch (Exception e) {
 				throw CandidError.create(CandidError.CandidErrorCode.CUSTOM, e, e.getLocalizedMessage());
 			}
 		}
 	}
 
+	// read JSON tokens straight into IDLValue, without building JsonElement tree
+	public IDLValue serialize(JsonReader reader) {
+		Instrumentation instrumentation = this.instrumentation;
+
+		if (instrumentation == null)
+			return this.guard(null).read(reader);
+
+		long start = System.nanoTime();
+
+		GsonSerializer serializer = this.guard(instrumentation);
+
+		return serializer.record(instrumentation, start, serializer.read(reader));
+	}
+
+	IDLValue read(JsonReader reader) {
+		try {
+			return this.getIDLValue(this.plan, reader);
+		} catch (IOException | IllegalStateException | NumberFormatException e) {
+			throw CandidError.create(CandidError.CandidErrorCode.CUSTOM, e, e.getLocalizedMessage());
+		}
+	}
+
+	public IDLValue serialize(Reader reader) {
+		return this.serialize(new JsonReader(reader));
+	}
+
+	public IDLValue serialize(InputStream inputStream) {
+		return this.serialize(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+	}
+
 	IDLValue getPrimitiveIDLValue(Type type, JsonPrimitive value) {
+		if (value == null)
+			return IDLValue.create(null);
+
+		if (value.isBoolean())
+			return this.getPrimitiveIDLValue(type, (Object) value.getAsBoolean());
+		else if (value.isNumber())
+			return this.getPrimitiveIDLValue(type, (Object) value.getAsNumber());
+		else
+			return this.getPrimitiveIDLValue(type, (Object) value.getAsString());
+	}
+
+	// value is JSON scalar, Boolean, Number or String, converted the same way JsonPrimitive does
+	IDLValue getPrimitiveIDLValue(Type type, Object value) {
 		IDLValue result = IDLValue.create(null);
 
 		if (value == null)
@@ -91,49 +313,59 @@ public class GsonSerializer implements ObjectSerializer {
 
 		switch (type) {
 		case BOOL:
-			result = IDLValue.create(value.getAsBoolean(), type);
+			result = IDLValue.create(getBoolean(value), type);
 			break;
 		case INT:
-			result = IDLValue.create(value.getAsBigInteger(), type);
+			result = IDLValue.create(getBigInteger(value), type);
 			break;
 		case INT8:
-			result = IDLValue.create(value.getAsByte(), type);
+			result = IDLValue.create(getNumber(value).byteValue(), type);
 			break;
 		case INT16:
-			result = IDLValue.create(value.getAsShort(), type);
+			result = IDLValue.create(getNumber(value).shortValue(), type);
 			break;
 		case INT32:
-			result = IDLValue.create(value.getAsInt(), type);
+			result = IDLValue.create(getNumber(value).intValue(), type);
 			break;
 		case INT64:
-			result = IDLValue.create(value.getAsLong(), type);
+			result = IDLValue.create(getNumber(value).longValue(), type);
 			break;
 		case NAT:
-			result = IDLValue.create(value.getAsBigInteger(), type);
+			result = IDLValue.create(getBigInteger(value), type);
 			break;
 		case NAT8:
-			result = IDLValue.create(value.getAsByte(), type);
+			result = IDLValue.create(getNumber(value).byteValue(), type);
 			break;
 		case NAT16:
-			result = IDLValue.create(value.getAsShort(), type);
+			result = IDLValue.create(getNumber(value).shortValue(), type);
 			break;
 		case NAT32:
-			result = IDLValue.create(value.getAsInt(), type);
+			result = IDLValue.create(getNumber(value).intValue(), type);
 			break;
 		case NAT64:
-			result = IDLValue.create(value.getAsLong(), type);
+			result = IDLValue.create(getNumber(value).longValue(), type);
 			break;
 		case FLOAT32:
-			result = IDLValue.create(value.getAsFloat(), type);
+			result = IDLValue.create(getNumber(value).floatValue(), type);
 			break;
 		case FLOAT64:
-			result = IDLValue.create(value.getAsDouble(), type);
+			result = IDLValue.create(getNumber(value).doubleValue(), type);
 			break;
 		case TEXT:
-			result = IDLValue.create(value.getAsString(), type);
+			String text = value.toString();
+
+			if (this.counter != null)
+				this.counter.bytes(text.length());
+
+			result = IDLValue.create(text, type);
 			break;
 		case PRINCIPAL:
-			result = IDLValue.create(Principal.fromString(value.getAsString()));
+			PrincipalCache principalCache = this.principalCache;
+
+			if (principalCache != null)
+				result = IDLValue.create(principalCache.getPrincipal(value.toString()));
+			else
+				result = IDLValue.create(Principal.fromString(value.toString()));
 			break;
 		case EMPTY:
 			result = IDLValue.create(null, type);
@@ -145,6 +377,66 @@ public class GsonSerializer implements ObjectSerializer {
 		return result;
 	}
 
+	static Boolean getBoolean(Object value) {
+		if (value instanceof Boolean)
+			return (Boolean) value;
+
+		return Boolean.parseBoolean(value.toString());
+	}
+
+	static Number getNumber(Object value) {
+		if (value instanceof Number)
+			return (Number) value;
+
+		return new LazilyParsedNumber(value.toString());
+	}
+
+	static BigInteger getBigInteger(Object value) {
+		if (value instanceof BigInteger)
+			return (BigInteger) value;
+
+		if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte)
+			return BigInteger.valueOf(((Number) value).longValue());
+
+		return getBigInteger(value.toString());
+	}
+
+	// most nat and int values fit in long, their digits are parsed directly and BigInteger parser is used only for larger ones
+	static BigInteger getBigInteger(String text) {
+		int length = text.length();
+		boolean negative = length > 0 && text.charAt(0) == '-';
+		int start = negative ? 1 : 0;
+
+		// 18 digits cannot overflow long
+		if (length > start && length - start <= MAX_LONG_DIGITS) {
+			long result = 0;
+			int i = start;
+
+			for (; i < length; i++) {
+				char digit = text.charAt(i);
+
+				if (digit < '0' || digit > '9')
+					break;
+
+				result = result * 10 + (digit - '0');
+			}
+
+			if (i == length)
+				return BigInteger.valueOf(negative ? -result : result);
+		}
+
+		return new BigInteger(text);
+	}
+
+	// JsonReader parses numbers that fit in long itself, others stay buffered for nextString
+	static BigInteger nextBigInteger(JsonReader reader) throws IOException {
+		try {
+			return BigInteger.valueOf(reader.nextLong());
+		} catch (NumberFormatException e) {
+			return getBigInteger(reader.nextString());
+		}
+	}
+
 	Type getType(JsonElement value) {
 		if (value == null || value.isJsonNull())
 			return Type.NULL;
@@ -168,6 +460,136 @@ public class GsonSerializer implements ObjectSerializer {
 			return Type.NULL;
 	}
 
+	// conversion driven by compiled plan, null plan means inferred types
+	IDLValue getIDLValue(IDLTypePlan plan, JsonElement value) {
+		if (plan == null)
+			return this.getIDLValue(Optional.empty(), value);
+
+		// handle null values
+		if (value == null)
+			return IDLValue.create(value, Type.NULL);
+
+		// composite type without inner types
+		if (plan.inferred) {
+			if (plan.strict)
+				checkStrict(plan, value);
+
+			return this.getIDLValue(Optional.of(plan.idlType), value);
+		}
+
+		Type type = plan.type;
+
+		if(type == Type.NULL || type == Type.EMPTY)
+			return IDLValue.create(null, type);
+
+		// handle byte array, Base64 string or array of numbers
+		if (plan.blob)
+			return IDLValue.create(this.countBytes(Blobs.getBytes(value)), plan.idlType);
+
+		// handle primitives
+		if (value.isJsonPrimitive() && type != Type.OPT) {
+			if (plan.strict)
+				checkStrict(plan, value);
+
+			return this.getPrimitiveIDLValue(type, (JsonPrimitive) value);
+		}
+
+		// handle arrays
+		if (type == Type.VEC) {
+			if (value.isJsonArray()) {
+				JsonArray arrayNode = (JsonArray) value;
+
+				Counter counter = this.counter;
+
+				if (plan.primitiveArray) {
+					if (counter != null)
+						counter.items(arrayNode.size());
+
+					return IDLValue.create(PrimitiveArrays.getArray(plan.innerPlan.type, arrayNode), plan.idlType);
+				}
+
+				if (counter != null)
+					counter.enter(arrayNode.size());
+
+				Object[] arrayValue = new Object[arrayNode.size()];
+
+				ParallelVec parallel = this.parallel;
+
+				if (parallel != null && parallel.isParallel(arrayValue.length))
+					parallel.forEach(arrayValue.length, i -> arrayValue[i] = this.getIDLValue(plan.innerPlan, arrayNode.get(i)).getValue());
+				else
+					for (int i = 0; i < arrayValue.length; i++)
+						arrayValue[i] = this.getIDLValue(plan.innerPlan, arrayNode.get(i)).getValue();
+
+				if (counter != null)
+					counter.exit();
+
+				return IDLValue.create(arrayValue, plan.idlType);
+			}
+
+			throw CandidError.create(CandidError.CandidErrorCode.CUSTOM,
+					"Cannot convert class " + value.getClass().getName() + " to VEC");
+		}
+
+		// handle Objects
+		if (type == Type.RECORD || type == Type.VARIANT) {
+			// inferred records are JSON objects with known fields only
+			if (plan.strict && !value.isJsonObject())
+				checkStrict(plan, value);
+
+			RecordMap valueMap = new RecordMap(plan);
+
+			Counter counter = this.counter;
+
+			if (counter != null)
+				counter.enter(value.isJsonArray() ? value.getAsJsonArray().size() : value.getAsJsonObject().size());
+
+			if (value.isJsonArray()) {
+				JsonArray arrayNode = (JsonArray) value;
+
+				for (int i = 0; i < arrayNode.size(); i++) {
+					int index = plan.indexOf((long) i);
+
+					if (index < 0 || plan.plans[index] == null)
+						continue;
+
+					valueMap.put(index, this.getIDLValue(plan.plans[index], arrayNode.get(i)));
+				}
+			} else {
+				JsonObject objectNode = (JsonObject) value;
+
+				for (Map.Entry<String, JsonElement> entry : objectNode.entrySet()) {
+					int index = plan.indexOf(entry.getKey());
+
+					if (index < 0 && plan.strict)
+						throw CandidError.create(CandidError.CandidErrorCode.CUSTOM,
+								"Field " + entry.getKey() + " is missing from inferred type");
+
+					if (index < 0 || plan.plans[index] == null)
+						continue;
+
+					valueMap.put(index, this.getIDLValue(plan.plans[index], entry.getValue()));
+				}
+			}
+
+			if (counter != null)
+				counter.exit();
+
+			return valueMap.getIDLValue();
+		}
+
+		if (type == Type.OPT) {
+			if (value.isJsonNull() || (value.isJsonArray() && value.getAsJsonArray().isEmpty()))
+				return IDLValue.create(Optional.empty(), plan.idlType);
+
+			IDLValue itemIdlValue = this.getIDLValue(plan.innerPlan, value);
+
+			return IDLValue.create(Optional.ofNullable(itemIdlValue.getValue()), plan.idlType);
+		}
+
+		throw CandidError.create(CandidError.CandidErrorCode.CUSTOM, "Cannot convert type " + type.name());
+	}
+
 	IDLValue getIDLValue(Optional<IDLType> expectedIdlType, JsonElement value) {
 		// handle null values
 		if (value == null)
@@ -183,23 +605,27 @@ public class GsonSerializer implements ObjectSerializer {
 			return IDLValue.create(null, type);
 			
 		// handle primitives
-		if (value.isJsonPrimitive())
+		if (value.isJsonPrimitive() && type != Type.OPT)
 			return this.getPrimitiveIDLValue(type, (JsonPrimitive) value);
 
 		// handle arrays
 		if (type == Type.VEC) {
-			IDLType innerIdlType = IDLType.createType(Type.NULL);
+			// untyped items are inferred, each one from its own value
+			IDLType innerIdlType = null;
 
 			if (expectedIdlType.isPresent())
 				innerIdlType = expectedIdlType.get().getInnerType();
 
 			if (innerIdlType != null && (innerIdlType.getType() == Type.INT8 || innerIdlType.getType() == Type.NAT8))
-				return IDLValue.create(value, IDLType.createType(type, innerIdlType));
+				return IDLValue.create(this.countBytes(Blobs.getBytes(value)), IDLType.createType(type, innerIdlType));
 
 			if (value.isJsonArray()) {
 				JsonArray arrayNode = (JsonArray) value;
 				Object[] arrayValue = new Object[arrayNode.size()];
 
+				if (this.counter != null)
+					this.counter.enter(arrayValue.length);
+
 				for (int i = 0; i < arrayNode.size(); i++) {
 					IDLValue item = this.getIDLValue(Optional.ofNullable(innerIdlType), arrayNode.get(i));
 
@@ -208,6 +634,9 @@ public class GsonSerializer implements ObjectSerializer {
 						innerIdlType = item.getIDLType();
 				}
 
+				if (this.counter != null)
+					this.counter.exit();
+
 				IDLType idlType;
 
 				if (expectedIdlType.isPresent())
@@ -231,6 +660,9 @@ public class GsonSerializer implements ObjectSerializer {
 			
 			if (expectedIdlType.isPresent())
 				expectedTypeMap = expectedIdlType.get().getTypeMap();
+
+			if (this.counter != null)
+				this.counter.enter(value.isJsonArray() ? value.getAsJsonArray().size() : value.getAsJsonObject().size());
 			
 			if(value.isJsonArray())
 			{
@@ -240,7 +672,7 @@ public class GsonSerializer implements ObjectSerializer {
 					IDLType expectedItemIdlType;
 					
 					if (expectedTypeMap != null && expectedIdlType.isPresent())
-						expectedItemIdlType = expectedTypeMap.get(Label.createUnnamedLabel((long)i));
+						expectedItemIdlType = expectedTypeMap.get(LabelCache.getUnnamedLabel((long)i));
 					else
 						expectedItemIdlType = IDLType.createType(this.getType(item));
 	
@@ -249,8 +681,8 @@ public class GsonSerializer implements ObjectSerializer {
 	
 					IDLValue itemIdlValue = this.getIDLValue(Optional.ofNullable(expectedItemIdlType), item);
 	
-					typeMap.put(Label.createUnnamedLabel((long)i), itemIdlValue.getIDLType());
-					valueMap.put(Label.createUnnamedLabel((long)i), itemIdlValue.getValue());
+					typeMap.put(LabelCache.getUnnamedLabel((long)i), itemIdlValue.getIDLType());
+					valueMap.put(LabelCache.getUnnamedLabel((long)i), itemIdlValue.getValue());
 				}								
 			}
 			else
@@ -263,11 +695,13 @@ public class GsonSerializer implements ObjectSerializer {
 					String name = fieldNames.next();
 	
 					JsonElement item = objectNode.get(name);
+
+					Label label = LabelCache.DEFAULT.getLabel(name);
 	
 					IDLType expectedItemIdlType;
 	
 					if (expectedTypeMap != null && expectedIdlType.isPresent())
-						expectedItemIdlType = expectedTypeMap.get(Label.createNamedLabel(name));
+						expectedItemIdlType = expectedTypeMap.get(label);
 					else
 						expectedItemIdlType = IDLType.createType(this.getType(item));
 	
@@ -276,11 +710,14 @@ public class GsonSerializer implements ObjectSerializer {
 	
 					IDLValue itemIdlValue = this.getIDLValue(Optional.ofNullable(expectedItemIdlType), item);
 	
-					typeMap.put(Label.createNamedLabel((String) name), itemIdlValue.getIDLType());
-					valueMap.put(Label.createNamedLabel((String) name), itemIdlValue.getValue());
+					typeMap.put(label, itemIdlValue.getIDLType());
+					valueMap.put(label, itemIdlValue.getValue());
 				}
 			}
 
+			if (this.counter != null)
+				this.counter.exit();
+
 			IDLType idlType = IDLType.createType(type, typeMap);
 			IDLValue idlValue = IDLValue.create(valueMap, idlType);
 
@@ -317,12 +754,395 @@ public class GsonSerializer implements ObjectSerializer {
 
 	}
 	
+	// null plan means inferred type
+	IDLValue getIDLValue(IDLTypePlan plan, JsonReader reader) throws IOException {
+		JsonToken token = reader.peek();
+
+		if (plan == null)
+			return this.getIDLValue(token, reader);
+
+		Type type = plan.type;
+
+		if (type == Type.NULL || type == Type.EMPTY) {
+			reader.skipValue();
+			return IDLValue.create(null, type);
+		}
+
+		if (type == Type.OPT) {
+			if (token == JsonToken.NULL) {
+				reader.nextNull();
+				return IDLValue.create(Optional.empty(), plan.idlType);
+			}
+
+			IDLValue itemIdlValue;
+
+			if (token == JsonToken.BEGIN_ARRAY) {
+				reader.beginArray();
+
+				// empty array is none, same as in JsonElement conversion
+				if (!reader.hasNext()) {
+					reader.endArray();
+					return IDLValue.create(Optional.empty(), plan.idlType);
+				}
+
+				itemIdlValue = this.getArrayIDLValue(plan.innerPlan, reader);
+			} else
+				itemIdlValue = this.getIDLValue(plan.innerPlan, reader);
+
+			return IDLValue.create(Optional.ofNullable(itemIdlValue.getValue()), plan.idlType);
+		}
+
+		// handle byte array
+		if (plan.blob)
+			return IDLValue.create(this.countBytes(Blobs.read(reader)), plan.idlType);
+
+		switch (token) {
+		case BOOLEAN:
+			return this.getPrimitiveIDLValue(type, (Object) reader.nextBoolean());
+		case NUMBER:
+			if (type == Type.INT || type == Type.NAT)
+				return IDLValue.create(nextBigInteger(reader), type);
+
+			return this.getPrimitiveIDLValue(type, (Object) new LazilyParsedNumber(reader.nextString()));
+		case STRING:
+			return this.getPrimitiveIDLValue(type, (Object) reader.nextString());
+		case BEGIN_ARRAY:
+			reader.beginArray();
+			return this.getArrayIDLValue(plan, reader);
+		case BEGIN_OBJECT:
+			if (type == Type.RECORD || type == Type.VARIANT)
+				return this.getObjectIDLValue(plan, reader);
+
+			break;
+		default:
+			break;
+		}
+
+		throw CandidError.create(CandidError.CandidErrorCode.CUSTOM,
+				"Cannot convert " + token.name() + " to type " + type.name());
+	}
+
+	// infer Candid type from JSON token
+	IDLValue getIDLValue(JsonToken token, JsonReader reader) throws IOException {
+		switch (token) {
+		case NULL:
+			reader.nextNull();
+			return IDLValue.create(null, Type.NULL);
+		case BOOLEAN:
+			return IDLValue.create(reader.nextBoolean(), Type.BOOL);
+		case STRING:
+			String text = reader.nextString();
+
+			if (this.counter != null)
+				this.counter.bytes(text.length());
+
+			return IDLValue.create(text, Type.TEXT);
+		case NUMBER:
+			Number number = new LazilyParsedNumber(reader.nextString());
+			return this.getPrimitiveIDLValue(IDLType.createType(number).getType(), (Object) number);
+		case BEGIN_ARRAY:
+			reader.beginArray();
+			return this.getArrayIDLValue(null, reader);
+		case BEGIN_OBJECT:
+			return this.getObjectIDLValue(null, reader);
+		default:
+			throw CandidError.create(CandidError.CandidErrorCode.CUSTOM, "Cannot convert " + token.name());
+		}
+	}
+
+	// array is already open, plan is VEC or RECORD tuple, null means inferred VEC
+	IDLValue getArrayIDLValue(IDLTypePlan plan, JsonReader reader) throws IOException {
+		if (plan != null && plan.primitiveArray)
+			return this.getPrimitiveArrayIDLValue(plan, reader);
+
+		if (plan != null && plan.blob)
+			return IDLValue.create(this.countBytes(Blobs.readArray(reader)), plan.idlType);
+
+		Counter counter = this.counter;
+
+		if (counter != null)
+			counter.enter(0);
+
+		IDLValue idlValue = this.getItemsIDLValue(plan, reader);
+
+		if (counter != null)
+			counter.exit();
+
+		return idlValue;
+	}
+
+	// items of open array, its depth is counted by caller
+	IDLValue getItemsIDLValue(IDLTypePlan plan, JsonReader reader) throws IOException {
+		Counter counter = this.counter;
+
+		if (plan == null || plan.type == Type.VEC) {
+			IDLTypePlan innerPlan = null;
+			IDLType innerIdlType = null;
+
+			if (plan != null)
+				innerPlan = plan.innerPlan;
+
+			List<Object> arrayValue = new ArrayList<Object>();
+
+			while (reader.hasNext()) {
+				if (counter != null)
+					counter.item(arrayValue.size() + 1);
+
+				IDLValue item = this.getIDLValue(innerPlan, reader);
+
+				arrayValue.add(item.getValue());
+				innerIdlType = item.getIDLType();
+			}
+
+			reader.endArray();
+
+			IDLType idlType;
+
+			if (plan != null && !plan.inferred)
+				idlType = plan.idlType;
+			else
+				idlType = IDLType.createType(Type.VEC, innerIdlType);
+
+			return IDLValue.create(arrayValue.toArray(), idlType);
+		}
+
+		Type type = plan.type;
+
+		if ((type == Type.RECORD || type == Type.VARIANT) && !plan.inferred) {
+			RecordMap valueMap = new RecordMap(plan);
+
+			for (long i = 0; reader.hasNext(); i++) {
+				if (counter != null)
+					counter.item((int) i + 1);
+
+				int index = plan.indexOf(i);
+
+				if (index < 0 || plan.plans[index] == null) {
+					reader.skipValue();
+					continue;
+				}
+
+				valueMap.put(index, this.getIDLValue(plan.plans[index], reader));
+			}
+
+			reader.endArray();
+
+			return valueMap.getIDLValue();
+		}
+
+		if (type == Type.RECORD || type == Type.VARIANT) {
+			Map<Label, Object> valueMap = new TreeMap<Label, Object>();
+			Map<Label, IDLType> typeMap = new TreeMap<Label, IDLType>();
+
+			for (long i = 0; reader.hasNext(); i++) {
+				if (counter != null)
+					counter.item((int) i + 1);
+
+				Label label = LabelCache.getUnnamedLabel(i);
+				IDLValue itemIdlValue = this.getIDLValue(reader.peek(), reader);
+
+				typeMap.put(label, itemIdlValue.getIDLType());
+				valueMap.put(label, itemIdlValue.getValue());
+			}
+
+			reader.endArray();
+
+			return IDLValue.create(valueMap, IDLType.createType(type, typeMap));
+		}
+
+		throw CandidError.create(CandidError.CandidErrorCode.CUSTOM, "Cannot convert BEGIN_ARRAY to type " + type.name());
+	}
+
+	// array is already open, items are read straight into typed array
+	IDLValue getPrimitiveArrayIDLValue(IDLTypePlan plan, JsonReader reader) throws IOException {
+		Type innerType = plan.innerPlan.type;
+
+		Object[] arrayValue = PrimitiveArrays.create(innerType, PrimitiveArrays.INITIAL_SIZE);
+		int size = 0;
+
+		Counter counter = this.counter;
+
+		while (reader.hasNext()) {
+			if (counter != null)
+				counter.item(size + 1);
+
+			Object item = PrimitiveArrays.read(innerType, reader);
+
+			// strings and other tokens take the generic conversion
+			if (item == null)
+				item = this.getIDLValue(plan.innerPlan, reader).getValue();
+
+			if (size == arrayValue.length)
+				arrayValue = PrimitiveArrays.grow(arrayValue);
+
+			arrayValue[size++] = item;
+		}
+
+		reader.endArray();
+
+		if (size != arrayValue.length)
+			arrayValue = Arrays.copyOf(arrayValue, size);
+
+		return IDLValue.create(arrayValue, plan.idlType);
+	}
+
+	// plan is RECORD or VARIANT, null means inferred RECORD
+	IDLValue getObjectIDLValue(IDLTypePlan plan, JsonReader reader) throws IOException {
+		Counter counter = this.counter;
+
+		if (counter != null)
+			counter.enter(0);
+
+		IDLValue idlValue = this.getFieldsIDLValue(plan, reader);
+
+		if (counter != null)
+			counter.exit();
+
+		return idlValue;
+	}
+
+	// fields of object, its depth is counted by caller
+	IDLValue getFieldsIDLValue(IDLTypePlan plan, JsonReader reader) throws IOException {
+		Counter counter = this.counter;
+		int count = 0;
+
+		if (plan != null && !plan.inferred) {
+			RecordMap valueMap = new RecordMap(plan);
+
+			reader.beginObject();
+
+			while (reader.hasNext()) {
+				if (counter != null)
+					counter.item(++count);
+
+				int index = plan.indexOf(reader.nextName());
+
+				if (index < 0 || plan.plans[index] == null) {
+					reader.skipValue();
+					continue;
+				}
+
+				valueMap.put(index, this.getIDLValue(plan.plans[index], reader));
+			}
+
+			reader.endObject();
+
+			return valueMap.getIDLValue();
+		}
+
+		Map<Label, Object> valueMap = new TreeMap<Label, Object>();
+		Map<Label, IDLType> typeMap = new TreeMap<Label, IDLType>();
+
+		Type type = Type.RECORD;
+
+		if (plan != null)
+			type = plan.type;
+
+		reader.beginObject();
+
+		while (reader.hasNext()) {
+			if (counter != null)
+				counter.item(++count);
+
+			String name = reader.nextName();
+
+			Label label = LabelCache.DEFAULT.getLabel(name);
+			IDLValue itemIdlValue = this.getIDLValue(reader.peek(), reader);
+
+			typeMap.put(label, itemIdlValue.getIDLType());
+			valueMap.put(label, itemIdlValue.getValue());
+		}
+
+		reader.endObject();
+
+		return IDLValue.create(valueMap, IDLType.createType(type, typeMap));
+	}
+
+	// strict plans are inferred by SchemaInference, value that does not fit fails instead of being coerced
+	static void checkStrict(IDLTypePlan plan, JsonElement value) {
+		if (!SchemaInference.fits(plan, value))
+			throw CandidError.create(CandidError.CandidErrorCode.CUSTOM, "Value does not match inferred type " + plan.type);
+	}
+
+	byte[] countBytes(byte[] bytes) {
+		if (this.counter != null)
+			this.counter.bytes(bytes.length);
+
+		return bytes;
+	}
+
 	public static IDLType getIDLType(Class valueClass)
 	{
 		// handle null values
 		if(valueClass == null)
 			return IDLType.createType(Type.NULL);
 		
+		// reflected schemas are shared, callers get their own copy
+		return copy(IDLTypeCache.DEFAULT.get(valueClass));
+	}
+
+	// deep copy, so changes of the returned type do not reach cached types and their plans
+	static IDLType copy(IDLType idlType)
+	{
+		if(idlType == null)
+			return null;
+
+		IDLType copy;
+
+		if(idlType.getTypeMap() != null)
+		{
+			Map<Label,IDLType> typeMap = new TreeMap<Label,IDLType>();
+
+			for(Map.Entry<Label,IDLType> entry : idlType.getTypeMap().entrySet())
+				typeMap.put(entry.getKey(), copy(entry.getValue()));
+
+			copy = IDLType.createType(idlType.getType(), typeMap);
+		}
+		else if(idlType.getInnerType() != null)
+			copy = IDLType.createType(idlType.getType(), copy(idlType.getInnerType()));
+		else
+			copy = IDLType.createType(idlType.getType());
+
+		copy.setName(idlType.getName());
+
+		return copy;
+	}
+
+	// cached type with other name, type map and inner type stay shared
+	static IDLType rename(IDLType idlType, String name)
+	{
+		if(name.equals(idlType.getName()))
+			return idlType;
+
+		IDLType renamed = IDLType.createType(idlType.getType(), idlType.getTypeMap());
+		renamed.setName(name);
+
+		return renamed;
+	}
+
+	// schema as Gson writes the class, null if Gson has custom TypeAdapter for it without IDLTypeProvider
+	public static IDLType getIDLType(Class<?> valueClass, Gson gson)
+	{
+		if(valueClass == null)
+			return IDLType.createType(Type.NULL);
+
+		return copy(IDLTypeCache.getDefault(gson).get(valueClass));
+	}
+	
+	static IDLType createIDLType(Class<?> valueClass, IDLTypeCache cache)
+	{
+		if(cache.isAdapted(valueClass))
+			return cache.getAdapterType(valueClass);
+
+		// schema generated at compile time, names follow default Gson
+		if(cache.gson == null)
+		{
+			IDLCodec<?> codec = PojoCodec.getGenerated(valueClass);
+
+			if(codec != null)
+				return codec.getIDLType();
+		}
+
 		if(IDLType.isDefaultType(valueClass))
 			return IDLType.createType(valueClass);		
 		
@@ -353,8 +1173,12 @@ public class GsonSerializer implements ObjectSerializer {
 			}
 			
 			if(field.isEnumConstant())
-				continue;			
-			
+				continue;
+
+			// same as Gson and FieldCodec, static and transient fields are not serialized
+			if(Modifier.isStatic(field.getModifiers()) || Modifier.isTransient(field.getModifiers()))
+				continue;
+
 			String name = field.getName();
 			if(name.startsWith("this$"))
 				continue;
@@ -367,12 +1191,18 @@ public class GsonSerializer implements ObjectSerializer {
 			
 			Class typeClass = field.getType();	
 			
-			IDLType fieldType = getIDLType(typeClass);
+			IDLType fieldType = cache.getFieldType(typeClass);
+
+			// field JSON comes from custom TypeAdapter, record is inferred
+			if(fieldType == null)
+				return IDLType.createType(Type.RECORD);
 			
 			if(field.isAnnotationPresent(SerializedName.class))
 				name = field.getAnnotation(SerializedName.class).value();
+			else
+				name = cache.getName(field);
 			
-			Label label = Label.createNamedLabel((String)name);			
+			Label label = Label.createNamedLabel(name);			
 						
 			boolean isArray = typeClass.isArray();
 			boolean isOptional = Optional.class.isAssignableFrom(typeClass);
@@ -388,22 +1218,44 @@ public class GsonSerializer implements ObjectSerializer {
 				isArray = true;
 				typeClass = (Class)((ParameterizedType)field.getGenericType()).getActualTypeArguments()[0];
 				
-				fieldType = getIDLType(typeClass);
-			}			
+				fieldType = cache.getFieldType(typeClass);
+
+				if(fieldType == null)
+					return IDLType.createType(Type.RECORD);
+			}
+			else if(isOptional && field.getGenericType() instanceof ParameterizedType)
+			{
+				// Optional has type of its value, same as List items
+				typeClass = (Class)((ParameterizedType)field.getGenericType()).getActualTypeArguments()[0];
+				
+				fieldType = cache.getFieldType(typeClass);
+
+				if(fieldType == null)
+					return IDLType.createType(Type.RECORD);
+			}
+			else if(isArray)
+			{
+				typeClass = typeClass.getComponentType();
+				
+				fieldType = cache.getFieldType(typeClass);
+
+				if(fieldType == null)
+					return IDLType.createType(Type.RECORD);
+			}
 			
 			// do nested type introspection if type is RECORD		
 			if(fieldType.getType() == Type.RECORD || fieldType.getType() == Type.VARIANT)
 			{
 				String className = typeClass.getSimpleName();
 				
+				// field types are cached, so they are renamed as copies
+				fieldType = rename(fieldType, className);
+
 				// handle RECORD arrays
 				if(isArray)
-				{
-					fieldType.setName(className);
 					fieldType = IDLType.createType(Type.VEC, fieldType);
-				}
-				else
-					fieldType.setName(className);
+				else if(isOptional)
+					fieldType = IDLType.createType(Type.OPT, fieldType);
 
 			}else if(isArray)
 			{
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2021 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.candid.gson;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * In memory Instrumentation, power of two histograms of call latency and of nodes and bytes per call.
+ * Percentiles are upper bounds of their bucket. Values are exported through getters or toMap, to any metrics library.
+ * Cache hit rates are read from the caches instrumented converters report, summed over all of them.
+ */
+public final class HistogramInstrumentation implements Instrumentation {
+	final Histogram[] latencies = new Histogram[Operation.values().length];
+	final Histogram[] nodes = new Histogram[Operation.values().length];
+	final Histogram[] bytes = new Histogram[Operation.values().length];
+
+	// caches stay registered when converter changes them, their counters keep the calls they served
+	final Set<IDLTypeCache> typeCaches = Collections.newSetFromMap(new ConcurrentHashMap<IDLTypeCache, Boolean>());
+	final Set<LabelCache> labelCaches = Collections.newSetFromMap(new ConcurrentHashMap<LabelCache, Boolean>());
+	final Set<PrincipalCache> principalCaches = Collections.newSetFromMap(new ConcurrentHashMap<PrincipalCache, Boolean>());
+
+	HistogramInstrumentation() {
+		for (int i = 0; i < this.latencies.length; i++) {
+			this.latencies[i] = new Histogram();
+			this.nodes[i] = new Histogram();
+			this.bytes[i] = new Histogram();
+		}
+	}
+
+	public static HistogramInstrumentation create() {
+		return new HistogramInstrumentation();
+	}
+
+	@Override
+	public void call(Operation operation, long nanos) {
+		this.latencies[operation.ordinal()].add(nanos);
+	}
+
+	@Override
+	public void values(Operation operation, long nodes, long bytes) {
+		this.nodes[operation.ordinal()].add(nodes);
+		this.bytes[operation.ordinal()].add(bytes);
+	}
+
+	@Override
+	public void caches(IDLTypeCache typeCache, LabelCache labelCache, PrincipalCache principalCache) {
+		if (typeCache != null)
+			this.typeCaches.add(typeCache);
+
+		if (labelCache != null)
+			this.labelCaches.add(labelCache);
+
+		if (principalCache != null)
+			this.principalCaches.add(principalCache);
+	}
+
+	public long getCallCount(Operation operation) {
+		return this.latencies[operation.ordinal()].count.sum();
+	}
+
+	public long getTotalLatency(Operation operation) {
+		return this.latencies[operation.ordinal()].sum.sum();
+	}
+
+	public long getMaxLatency(Operation operation) {
+		return this.latencies[operation.ordinal()].max.get();
+	}
+
+	// nanos, percentile between 0 and 100
+	public long getLatencyPercentile(Operation operation, double percentile) {
+		return this.latencies[operation.ordinal()].getPercentile(percentile);
+	}
+
+	public long getNodeCount(Operation operation) {
+		return this.nodes[operation.ordinal()].sum.sum();
+	}
+
+	public long getMaxNodes(Operation operation) {
+		return this.nodes[operation.ordinal()].max.get();
+	}
+
+	// nodes of one call
+	public long getNodesPercentile(Operation operation, double percentile) {
+		return this.nodes[operation.ordinal()].getPercentile(percentile);
+	}
+
+	public long getByteCount(Operation operation) {
+		return this.bytes[operation.ordinal()].sum.sum();
+	}
+
+	public long getMaxBytes(Operation operation) {
+		return this.bytes[operation.ordinal()].max.get();
+	}
+
+	// bytes of one call
+	public long getBytesPercentile(Operation operation, double percentile) {
+		return this.bytes[operation.ordinal()].getPercentile(percentile);
+	}
+
+	public double getIDLTypeCacheHitRate() {
+		long hits = 0;
+		long misses = 0;
+
+		for (IDLTypeCache cache : this.typeCaches) {
+			hits += cache.getHitCount();
+			misses += cache.getMissCount();
+		}
+
+		return getHitRate(hits, misses);
+	}
+
+	public double getLabelCacheHitRate() {
+		long hits = 0;
+		long misses = 0;
+
+		for (LabelCache cache : this.labelCaches) {
+			hits += cache.getHitCount();
+			misses += cache.getMissCount();
+		}
+
+		return getHitRate(hits, misses);
+	}
+
+	public double getPrincipalCacheHitRate() {
+		long hits = 0;
+		long misses = 0;
+
+		for (PrincipalCache cache : this.principalCaches) {
+			hits += cache.getHitCount();
+			misses += cache.getMissCount();
+		}
+
+		return getHitRate(hits, misses);
+	}
+
+	static double getHitRate(long hits, long misses) {
+		long total = hits + misses;
+
+		return total == 0 ? 0.0 : (double) hits / total;
+	}
+
+	public void reset() {
+		for (int i = 0; i < this.latencies.length; i++) {
+			this.latencies[i].reset();
+			this.nodes[i].reset();
+			this.bytes[i].reset();
+		}
+	}
+
+	// flat snapshot, keys are metric names
+	public Map<String, Number> toMap() {
+		Map<String, Number> metrics = new LinkedHashMap<String, Number>();
+
+		for (Operation operation : Operation.values()) {
+			String name = operation.name().toLowerCase();
+
+			metrics.put(name + ".count", this.getCallCount(operation));
+			metrics.put(name + ".nanos.total", this.getTotalLatency(operation));
+			metrics.put(name + ".nanos.p50", this.getLatencyPercentile(operation, 50));
+			metrics.put(name + ".nanos.p99", this.getLatencyPercentile(operation, 99));
+			metrics.put(name + ".nanos.max", this.getMaxLatency(operation));
+			metrics.put(name + ".nodes.total", this.getNodeCount(operation));
+			metrics.put(name + ".nodes.p99", this.getNodesPercentile(operation, 99));
+			metrics.put(name + ".nodes.max", this.getMaxNodes(operation));
+			metrics.put(name + ".bytes.total", this.getByteCount(operation));
+			metrics.put(name + ".bytes.p99", this.getBytesPercentile(operation, 99));
+			metrics.put(name + ".bytes.max", this.getMaxBytes(operation));
+		}
+
+		metrics.put("cache.idltype.hitrate", this.getIDLTypeCacheHitRate());
+		metrics.put("cache.label.hitrate", this.getLabelCacheHitRate());
+		metrics.put("cache.principal.hitrate", this.getPrincipalCacheHitRate());
+
+		return metrics;
+	}
+
+	// bucket i counts values below 2^i
+	static final class Histogram {
+		final LongAdder[] buckets = new LongAdder[64];
+		final LongAdder count = new LongAdder();
+		final LongAdder sum = new LongAdder();
+		final AtomicLong max = new AtomicLong();
+
+		Histogram() {
+			for (int i = 0; i < this.buckets.length; i++)
+				this.buckets[i] = new LongAdder();
+		}
+
+		void add(long value) {
+			value = Math.max(0, value);
+
+			this.buckets[64 - Long.numberOfLeadingZeros(value)].increment();
+			this.count.increment();
+			this.sum.add(value);
+
+			long max = this.max.get();
+
+			while (value > max && !this.max.compareAndSet(max, value))
+				max = this.max.get();
+		}
+
+		long getPercentile(double percentile) {
+			long count = this.count.sum();
+
+			if (count == 0)
+				return 0;
+
+			long rank = (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100);
+			long seen = 0;
+
+			for (int i = 0; i < this.buckets.length; i++) {
+				seen += this.buckets[i].sum();
+
+				if (seen >= rank && seen > 0)
+					return Math.min(i == 63 ? Long.MAX_VALUE : (1l << i) - 1, this.max.get());
+			}
+
+			return this.max.get();
+		}
+
+		void reset() {
+			for (LongAdder bucket : this.buckets)
+				bucket.reset();
+
+			this.count.reset();
+			this.sum.reset();
+			this.max.set(0);
+		}
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2021 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.candid.gson;
+
+import org.ic4j.candid.parser.IDLType;
+
+/*
+ * Schema and field access of POJO class, fields are indexed in declaration order.
+ * Codecs are generated by CandidRecordProcessor for classes annotated with CandidRecord and registered as services,
+ * GsonSerializer and GsonDeserializer use them with default Gson instead of reflection. Values are plain field values,
+ * conversion to and from Candid stays with the converters.
+ */
+public interface IDLCodec<T> {
+	Class<T> getValueClass();
+
+	// same as GsonSerializer.getIDLType of the class
+	IDLType getIDLType();
+
+	// Candid label names
+	String[] getNames();
+
+	// declared field classes
+	Class<?>[] getFieldClasses();
+
+	// item classes of Optional and List fields, null for other fields
+	Class<?>[] getItemClasses();
+
+	T create();
+
+	Object get(T value, int index);
+
+	void set(T value, int index, Object item);
+}
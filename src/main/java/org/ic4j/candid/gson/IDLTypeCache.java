@@ -0,0 +1,282 @@
+/*
+ * Copyright 2021 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.ic4j.candid.gson;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.ic4j.candid.parser.IDLType;
+
+import com.google.gson.Gson;
+
+/*
+ * Cache of IDLType schemas reflected from POJO classes. Entries hang off the Class through ClassValue,
+ * so they are released together with their class loader. Cached IDLType instances are shared and must not be modified.
+ * At most maxSize schemas are kept, once the cache is full a new class evicts one that was not used since the clock hand last passed it.
+ * Schemas follow the Gson instance the cache belongs to, its field naming strategy and its TypeAdapters. Classes with custom TypeAdapters
+ * take type from IDLTypeProvider adapters, otherwise they have no schema, and records with such fields are inferred as a whole.
+ */
+public final class IDLTypeCache {
+	public static final int DEFAULT_MAX_SIZE = 1024;
+
+	static final IDLTypeCache DEFAULT = new IDLTypeCache(DEFAULT_MAX_SIZE, null);
+
+	// caches of other Gson instances, released with their Gson
+	static final Map<Gson, IDLTypeCache> CACHES = Collections.synchronizedMap(new WeakHashMap<Gson, IDLTypeCache>());
+
+	final int maxSize;
+
+	// null for default Gson, cache does not keep its Gson alive
+	final WeakReference<Gson> gson;
+
+	// clock of stored entries, guarded by itself
+	final Entry[] ring;
+	int hand;
+	int size;
+
+	final LongAdder hits = new LongAdder();
+	final LongAdder misses = new LongAdder();
+
+	volatile ClassValue<Entry> entries = createEntries();
+
+	IDLTypeCache(int maxSize, Gson gson) {
+		if (maxSize < 0)
+			throw new IllegalArgumentException("Cache size cannot be negative");
+
+		this.maxSize = maxSize;
+		this.ring = new Entry[maxSize];
+		this.gson = gson == null || gson == GsonSerializer.DEFAULT_GSON ? null : new WeakReference<Gson>(gson);
+	}
+
+	public static IDLTypeCache create(int maxSize) {
+		return new IDLTypeCache(maxSize, null);
+	}
+
+	public static IDLTypeCache create(int maxSize, Gson gson) {
+		return new IDLTypeCache(maxSize, gson);
+	}
+
+	public static IDLTypeCache getDefault() {
+		return DEFAULT;
+	}
+
+	// shared cache of Gson instance
+	public static IDLTypeCache getDefault(Gson gson) {
+		if (gson == null || gson == GsonSerializer.DEFAULT_GSON)
+			return DEFAULT;
+
+		return CACHES.computeIfAbsent(gson, key -> new IDLTypeCache(DEFAULT_MAX_SIZE, key));
+	}
+
+	Gson getGson() {
+		Gson gson = this.gson == null ? null : this.gson.get();
+
+		return gson == null ? GsonSerializer.DEFAULT_GSON : gson;
+	}
+
+	// Gson has TypeAdapter for the class other than the built in one
+	boolean isAdapted(Class<?> valueClass) {
+		Gson gson = this.getGson();
+
+		if (gson == GsonSerializer.DEFAULT_GSON)
+			return false;
+
+		try {
+			return gson.getAdapter(valueClass).getClass() != GsonSerializer.DEFAULT_GSON.getAdapter(valueClass).getClass();
+		} catch (RuntimeException e) {
+			return false;
+		}
+	}
+
+	// type declared by custom TypeAdapter, null if it does not declare one
+	IDLType getAdapterType(Class<?> valueClass) {
+		Object adapter = this.getGson().getAdapter(valueClass);
+
+		if (adapter instanceof IDLTypeProvider)
+			return ((IDLTypeProvider) adapter).getIDLType();
+
+		return null;
+	}
+
+	// JSON name of field without SerializedName
+	String getName(Field field) {
+		Gson gson = this.getGson();
+
+		if (gson == GsonSerializer.DEFAULT_GSON)
+			return field.getName();
+
+		return gson.fieldNamingStrategy().translateName(field);
+	}
+
+	public IDLType get(Class<?> valueClass) {
+		Entry entry = this.entries.get(valueClass);
+
+		IDLType idlType = entry.idlType;
+
+		if (idlType != null) {
+			// written only when it changes, so hits do not contend on the entry
+			if (!entry.used)
+				entry.used = true;
+
+			this.hits.increment();
+			return idlType;
+		}
+
+		this.misses.increment();
+
+		idlType = GsonSerializer.createIDLType(valueClass, this);
+
+		// adapted classes have no schema
+		if (idlType == null)
+			return null;
+
+		synchronized (this.ring) {
+			if (entry.idlType != null)
+				return entry.idlType;
+
+			if (this.maxSize == 0)
+				return idlType;
+
+			this.ring[this.evict()] = entry;
+			entry.used = false;
+			entry.idlType = idlType;
+		}
+
+		return idlType;
+	}
+
+	// free slot of ring, entries used since last pass get another round, caller holds ring lock
+	int evict() {
+		if (this.size < this.maxSize)
+			return this.size++;
+
+		while (true) {
+			int slot = this.hand;
+			Entry entry = this.ring[slot];
+
+			this.hand = (slot + 1) % this.maxSize;
+
+			if (entry.used) {
+				entry.used = false;
+				continue;
+			}
+
+			entry.idlType = null;
+			entry.plan = null;
+
+			return slot;
+		}
+	}
+
+	// field types of reflected classes, caches of default Gson share DEFAULT
+	IDLType getFieldType(Class<?> valueClass) {
+		if (this.gson == null)
+			return DEFAULT.get(valueClass);
+
+		return this.get(valueClass);
+	}
+
+	// conversion plan compiled from the cached IDLType
+	public IDLTypePlan getPlan(Class<?> valueClass) {
+		IDLType idlType = this.get(valueClass);
+
+		if (idlType == null)
+			return null;
+
+		Entry entry = this.entries.get(valueClass);
+
+		IDLTypePlan plan = entry.plan;
+
+		if (plan != null && plan.idlType == idlType)
+			return plan;
+
+		plan = IDLTypePlan.compile(idlType);
+
+		if (entry.idlType == idlType)
+			entry.plan = plan;
+
+		return plan;
+	}
+
+	public void warm(Class<?>... classes) {
+		this.warm(Arrays.asList(classes));
+	}
+
+	public void warm(Collection<Class<?>> classes) {
+		for (Class<?> valueClass : classes)
+			if (valueClass != null)
+				this.get(valueClass);
+	}
+
+	public void clear() {
+		synchronized (this.ring) {
+			this.entries = createEntries();
+
+			Arrays.fill(this.ring, null);
+			this.hand = 0;
+			this.size = 0;
+		}
+	}
+
+	public int size() {
+		synchronized (this.ring) {
+			return this.size;
+		}
+	}
+
+	public int getMaxSize() {
+		return this.maxSize;
+	}
+
+	public long getHitCount() {
+		return this.hits.sum();
+	}
+
+	public long getMissCount() {
+		return this.misses.sum();
+	}
+
+	public double getHitRate() {
+		long hits = this.hits.sum();
+		long total = hits + this.misses.sum();
+
+		return total == 0 ? 0.0 : (double) hits / total;
+	}
+
+	static ClassValue<Entry> createEntries() {
+		return new ClassValue<Entry>() {
+			@Override
+			protected Entry computeValue(Class<?> type) {
+				return new Entry();
+			}
+		};
+	}
+
+	static final class Entry {
+		volatile IDLType idlType;
+		volatile IDLTypePlan plan;
+
+		// reference bit of clock, set on hit
+		volatile boolean used;
+	}
+}
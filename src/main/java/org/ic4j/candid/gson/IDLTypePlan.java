@@ -0,0 +1,229 @@
+/*
+ * Copyright 2021 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.ic4j.candid.gson;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.ic4j.candid.parser.IDLType;
+import org.ic4j.candid.types.Label;
+import org.ic4j.candid.types.Type;
+
+/*
+ * IDLType compiled once into a converter tree, record labels are resolved into arrays sorted by label id
+ * with JSON field names and child plans, so conversions do not look up or rebuild label maps per value.
+ * Plans are immutable and can be shared by any number of GsonSerializer and GsonDeserializer instances.
+ */
+public final class IDLTypePlan {
+	IDLType idlType;
+	Type type;
+
+	// composite type without inner type or type map, values are converted by inference
+	boolean inferred;
+
+	// VEC and OPT
+	IDLTypePlan innerPlan;
+
+	// VEC of INT8 or NAT8
+	boolean blob;
+
+	// VEC of other fixed width primitive type
+	boolean primitiveArray;
+
+	// RECORD and VARIANT, sorted by label id, child plan is null if label has no type
+	Label[] labels;
+	long[] ids;
+	String[] names;
+	boolean[] named;
+	IDLTypePlan[] plans;
+
+	// every label has a compiled, not inferred type, so values can share idlType
+	boolean typed;
+
+	// RECORD, absent OPT fields are converted to none
+	boolean absentNone;
+
+	// plan of SchemaInference, values that do not fit fail conversion instead of being coerced
+	boolean strict;
+
+	// JSON field name to index
+	Map<String, Integer> fieldIndexes;
+
+	// class whose reflected schema has the same type, set on first match
+	volatile Class<?> reflectedClass;
+
+	IDLTypePlan() {
+	}
+
+	// GsonSerializer.getIDLType returns copies, so plans compiled from them are matched by type
+	boolean isReflected(Class<?> valueClass) {
+		if (this.reflectedClass == valueClass)
+			return true;
+
+		IDLType reflected = IDLTypeCache.DEFAULT.get(valueClass);
+
+		if (reflected == null || !isSameType(this.idlType, reflected))
+			return false;
+
+		this.reflectedClass = valueClass;
+		return true;
+	}
+
+	static boolean isSameType(IDLType first, IDLType second) {
+		if (first == second)
+			return true;
+
+		if (first == null || second == null || first.getType() != second.getType())
+			return false;
+
+		if (!isSameType(first.getInnerType(), second.getInnerType()))
+			return false;
+
+		Map<Label, IDLType> firstMap = first.getTypeMap();
+		Map<Label, IDLType> secondMap = second.getTypeMap();
+
+		if (firstMap == secondMap)
+			return true;
+
+		if (firstMap == null || secondMap == null || firstMap.size() != secondMap.size())
+			return false;
+
+		for (Map.Entry<Label, IDLType> entry : firstMap.entrySet())
+			if (!secondMap.containsKey(entry.getKey()) || !isSameType(entry.getValue(), secondMap.get(entry.getKey())))
+				return false;
+
+		return true;
+	}
+
+	public static IDLTypePlan compile(IDLType idlType) {
+		if (idlType == null)
+			throw new IllegalArgumentException("IDLType is not defined");
+
+		return compile(idlType, new IdentityHashMap<IDLType, IDLTypePlan>());
+	}
+
+	static IDLTypePlan compile(IDLType idlType, Map<IDLType, IDLTypePlan> plans) {
+		if (idlType == null)
+			return null;
+
+		// shared and recursive types compile into the same plan
+		IDLTypePlan plan = plans.get(idlType);
+
+		if (plan != null)
+			return plan;
+
+		plan = new IDLTypePlan();
+		plans.put(idlType, plan);
+
+		plan.idlType = idlType;
+		plan.type = idlType.getType();
+
+		switch (plan.type) {
+		case VEC:
+			if (idlType.getInnerType() == null) {
+				plan.inferred = true;
+				break;
+			}
+
+			Type innerType = idlType.getInnerType().getType();
+
+			plan.blob = innerType == Type.INT8 || innerType == Type.NAT8;
+			plan.primitiveArray = !plan.blob && PrimitiveArrays.isFixedWidth(innerType);
+			plan.innerPlan = compile(idlType.getInnerType(), plans);
+			break;
+		case OPT:
+			if (idlType.getInnerType() == null) {
+				plan.inferred = true;
+				break;
+			}
+
+			plan.innerPlan = compile(idlType.getInnerType(), plans);
+			break;
+		case RECORD:
+		case VARIANT:
+			Map<Label, IDLType> typeMap = idlType.getTypeMap();
+
+			if (typeMap == null) {
+				plan.inferred = true;
+				break;
+			}
+
+			Label[] labels = typeMap.keySet().toArray(new Label[typeMap.size()]);
+
+			Arrays.sort(labels, (first, second) -> Long.compare(first.getId(), second.getId()));
+
+			plan.labels = labels;
+			plan.ids = new long[labels.length];
+			plan.names = new String[labels.length];
+			plan.named = new boolean[labels.length];
+			plan.plans = new IDLTypePlan[labels.length];
+			plan.fieldIndexes = new HashMap<String, Integer>();
+
+			for (int i = 0; i < labels.length; i++) {
+				Label label = labels[i];
+
+				plan.ids[i] = label.getId();
+				plan.names[i] = LabelCache.DEFAULT.getName(label);
+				plan.named[i] = label.getType() == Label.LabelType.NAMED;
+
+				if (plan.named[i])
+					plan.fieldIndexes.put(plan.names[i], i);
+			}
+
+			plan.typed = true;
+
+			for (int i = 0; i < labels.length; i++) {
+				plan.plans[i] = compile(typeMap.get(labels[i]), plans);
+
+				if (plan.plans[i] == null || plan.plans[i].inferred)
+					plan.typed = false;
+			}
+			break;
+		default:
+			break;
+		}
+
+		return plan;
+	}
+
+	public IDLType getIDLType() {
+		return this.idlType;
+	}
+
+	// index of label id, negative if label is not part of the type
+	int indexOf(long id) {
+		if (this.ids == null)
+			return -1;
+
+		return Arrays.binarySearch(this.ids, id);
+	}
+
+	// index of JSON field name, falls back to label hash for types with id labels
+	int indexOf(String name) {
+		if (this.ids == null)
+			return -1;
+
+		Integer index = this.fieldIndexes.get(name);
+
+		if (index != null)
+			return index;
+
+		return Arrays.binarySearch(this.ids, LabelCache.DEFAULT.getLabel(name).getId());
+	}
+}
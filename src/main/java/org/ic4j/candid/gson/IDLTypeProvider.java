@@ -0,0 +1,28 @@
+/*
+ * Copyright 2021 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.candid.gson;
+
+import org.ic4j.candid.parser.IDLType;
+
+/*
+ * Implemented by custom Gson TypeAdapters to declare Candid type of the JSON they write, so reflected schemas keep their class typed.
+ * Schemas of classes with custom TypeAdapters that do not implement it are inferred from JSON.
+ */
+public interface IDLTypeProvider {
+	IDLType getIDLType();
+}
@@ -0,0 +1,681 @@
+/*
+ * Copyright 2021 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.ic4j.candid.gson;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigInteger;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+
+import org.ic4j.candid.CandidError;
+import org.ic4j.candid.parser.IDLType;
+import org.ic4j.candid.types.Label;
+import org.ic4j.candid.types.Type;
+import org.ic4j.types.Principal;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+
+/*
+ * JsonReader source for Gson TypeAdapters, emits tokens straight from IDLValue.
+ * Values are shaped the same way as GsonDeserializer.getValue builds the JsonElement tree, nested values are resolved when reached.
+ */
+final class IDLValueReader extends JsonReader {
+	static final Reader UNREADABLE_READER = new Reader() {
+		@Override
+		public int read(char[] buffer, int offset, int count) throws IOException {
+			throw new UnsupportedReaderException();
+		}
+
+		@Override
+		public void close() {
+			throw new AssertionError();
+		}
+	};
+
+	// Nodes not read yet and Cursors of open arrays and objects, nested values are converted when pushed
+	Object[] stack = new Object[32];
+	int stackSize = 0;
+
+	// blob format, principal cache and Counter of the converter
+	final GsonDeserializer deserializer;
+	final BlobFormat blobFormat;
+	final Counter counter;
+
+	IDLValueReader(IDLType idlType, IDLTypePlan plan, GsonDeserializer deserializer, Object value) {
+		super(UNREADABLE_READER);
+		this.deserializer = deserializer;
+		this.blobFormat = deserializer.blobFormat;
+		this.counter = deserializer.counter;
+		this.push(this.getNode(idlType, plan, value));
+	}
+
+	@Override
+	public void beginArray() throws IOException {
+		this.expect(JsonToken.BEGIN_ARRAY);
+		Node node = (Node) this.pop();
+		this.push(new Cursor(node));
+
+		// items are counted when the node is created
+		if (this.counter != null)
+			this.counter.enter(0);
+	}
+
+	@Override
+	public void endArray() throws IOException {
+		this.expect(JsonToken.END_ARRAY);
+		this.pop();
+
+		if (this.counter != null)
+			this.counter.exit();
+	}
+
+	@Override
+	public void beginObject() throws IOException {
+		this.expect(JsonToken.BEGIN_OBJECT);
+		Node node = (Node) this.pop();
+		this.push(new Cursor(node));
+
+		// items are counted when the node is created
+		if (this.counter != null)
+			this.counter.enter(0);
+	}
+
+	@Override
+	public void endObject() throws IOException {
+		this.expect(JsonToken.END_OBJECT);
+		this.pop();
+
+		if (this.counter != null)
+			this.counter.exit();
+	}
+
+	@Override
+	public boolean hasNext() throws IOException {
+		JsonToken token = this.peek();
+		return token != JsonToken.END_OBJECT && token != JsonToken.END_ARRAY && token != JsonToken.END_DOCUMENT;
+	}
+
+	@Override
+	public JsonToken peek() throws IOException {
+		if (this.stackSize == 0)
+			return JsonToken.END_DOCUMENT;
+
+		Object top = this.stack[this.stackSize - 1];
+
+		if (top instanceof Cursor) {
+			Cursor cursor = (Cursor) top;
+
+			if (cursor.node.token == JsonToken.BEGIN_OBJECT)
+				return cursor.index < cursor.node.names.length ? JsonToken.NAME : JsonToken.END_OBJECT;
+
+			if (cursor.index < cursor.node.size()) {
+				this.push(this.getItem(cursor.node, cursor.index++));
+				return this.peek();
+			}
+
+			return JsonToken.END_ARRAY;
+		}
+
+		return ((Node) top).token;
+	}
+
+	@Override
+	public String nextName() throws IOException {
+		this.expect(JsonToken.NAME);
+
+		Cursor cursor = (Cursor) this.stack[this.stackSize - 1];
+
+		int index = cursor.index++;
+		this.push(this.getItem(cursor.node, index));
+
+		return cursor.node.names[index];
+	}
+
+	@Override
+	public String nextString() throws IOException {
+		JsonToken token = this.peek();
+
+		if (token != JsonToken.STRING && token != JsonToken.NUMBER)
+			throw new IllegalStateException("Expected " + JsonToken.STRING + " but was " + token + this.locationString());
+
+		return this.pop().toString();
+	}
+
+	@Override
+	public boolean nextBoolean() throws IOException {
+		this.expect(JsonToken.BOOLEAN);
+		return (Boolean) ((Node) this.pop()).value;
+	}
+
+	@Override
+	public void nextNull() throws IOException {
+		this.expect(JsonToken.NULL);
+		this.pop();
+	}
+
+	@Override
+	public double nextDouble() throws IOException {
+		Object value = this.peekNumber();
+
+		double result = value instanceof Number ? ((Number) value).doubleValue() : Double.parseDouble(value.toString());
+
+		if (!this.isLenient() && (Double.isNaN(result) || Double.isInfinite(result)))
+			throw new MalformedJsonException("JSON forbids NaN and infinities: " + result);
+
+		this.pop();
+		return result;
+	}
+
+	@Override
+	public long nextLong() throws IOException {
+		Object value = this.peekNumber();
+
+		long result = value instanceof Number ? ((Number) value).longValue() : Long.parseLong(value.toString());
+
+		this.pop();
+		return result;
+	}
+
+	@Override
+	public int nextInt() throws IOException {
+		Object value = this.peekNumber();
+
+		int result = value instanceof Number ? ((Number) value).intValue() : Integer.parseInt(value.toString());
+
+		this.pop();
+		return result;
+	}
+
+	@Override
+	public void skipValue() throws IOException {
+		JsonToken token = this.peek();
+
+		switch (token) {
+		case NAME:
+			Cursor cursor = (Cursor) this.stack[this.stackSize - 1];
+			this.push(this.getItem(cursor.node, cursor.index++));
+			break;
+		case END_ARRAY:
+		case END_OBJECT:
+		case END_DOCUMENT:
+			break;
+		default:
+			this.pop();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.stack = new Object[] {};
+		this.stackSize = 0;
+	}
+
+	@Override
+	public String getPath() {
+		return "$";
+	}
+
+	@Override
+	public String getPreviousPath() {
+		return "$";
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + this.locationString();
+	}
+
+	String locationString() {
+		return " at path " + this.getPath();
+	}
+
+	void expect(JsonToken expected) throws IOException {
+		JsonToken token = this.peek();
+
+		if (token != expected)
+			throw new IllegalStateException("Expected " + expected + " but was " + token + this.locationString());
+	}
+
+	Object peekNumber() throws IOException {
+		JsonToken token = this.peek();
+
+		if (token != JsonToken.NUMBER && token != JsonToken.STRING)
+			throw new IllegalStateException("Expected " + JsonToken.NUMBER + " but was " + token + this.locationString());
+
+		return ((Node) this.stack[this.stackSize - 1]).value;
+	}
+
+	void push(Object object) {
+		if (this.stackSize == this.stack.length) {
+			Object[] stack = new Object[this.stackSize << 1];
+			System.arraycopy(this.stack, 0, stack, 0, this.stackSize);
+			this.stack = stack;
+		}
+
+		this.stack[this.stackSize++] = object;
+	}
+
+	Object pop() {
+		Object result = this.stack[--this.stackSize];
+		this.stack[this.stackSize] = null;
+		return result;
+	}
+
+	// same type resolution as GsonDeserializer.getValue, null plan means types of IDLValue
+	Node getNode(IDLType idlType, IDLTypePlan plan, Object value) {
+		if (plan == null || plan.inferred)
+			return this.getNode(idlType, Optional.empty(), value);
+
+		if (value == null)
+			return Node.NULL;
+
+		Type type = plan.type;
+
+		if (type.isPrimitive())
+			return getPrimitiveNode(type, value);
+
+		// handle VEC
+		if (type == Type.VEC) {
+			// handle byte array
+			if (plan.blob)
+				return this.getBlobNode(plan.innerPlan.type, value);
+
+			Node node = new Node(JsonToken.BEGIN_ARRAY, null);
+			node.items = PrimitiveArrays.toArray(value);
+
+			if (this.counter != null)
+				this.counter.items(node.items.length);
+
+			node.innerPlan = plan.innerPlan;
+
+			return node;
+		}
+
+		// handle OPT
+		if (type == Type.OPT) {
+			Optional<?> optionalValue = (Optional<?>) value;
+
+			if (optionalValue.isPresent())
+				return this.getNode(null, plan.innerPlan, optionalValue.get());
+			else
+				return Node.NULL;
+		}
+
+		if (type == Type.RECORD || type == Type.VARIANT) {
+			Map<?, ?> valueMap = (Map<?, ?>) value;
+
+			if (this.counter != null)
+				this.counter.items(valueMap.size());
+
+			// only labels are resolved here, field values are converted when reached
+			String[] names = new String[valueMap.size()];
+			Object[] items = new Object[names.length];
+			IDLTypePlan[] plans = new IDLTypePlan[names.length];
+
+			int named = 0;
+			int i = 0;
+
+			for (Map.Entry<?, ?> entry : valueMap.entrySet()) {
+				Label label = (Label) entry.getKey();
+
+				boolean isNamed = label.getType() == Label.LabelType.NAMED;
+
+				String fieldName;
+				IDLTypePlan itemPlan = null;
+
+				int index = plan.indexOf(label.getId());
+
+				if (index >= 0) {
+					isNamed = isNamed || plan.named[index];
+					fieldName = plan.names[index];
+					itemPlan = plan.plans[index];
+				} else
+					fieldName = LabelCache.DEFAULT.getName(label);
+
+				if (isNamed) {
+					names[i] = fieldName;
+					named++;
+				}
+
+				// labels missing from expected type have no plan and are null
+				items[i] = entry.getValue();
+				plans[i++] = itemPlan;
+			}
+
+			return getRecordNode(names, items, plans, null, null, named);
+		}
+		throw CandidError.create(CandidError.CandidErrorCode.CUSTOM, "Cannot convert type " + type.name());
+	}
+
+	Node getNode(IDLType idlType, Optional<IDLType> expectedIdlType, Object value) {
+		if (value == null)
+			return Node.NULL;
+
+		Type type = Type.NULL;
+
+		if (expectedIdlType.isPresent()) {
+			type = expectedIdlType.get().getType();
+			if (idlType != null)
+				idlType = expectedIdlType.get();
+		}
+		else if(idlType != null)
+			type = idlType.getType();
+
+		if (type.isPrimitive())
+			return getPrimitiveNode(type, value);
+
+		// handle VEC
+		if (type == Type.VEC) {
+			IDLType expectedInnerIDLType = null;
+			IDLType innerIdlType = idlType.getInnerType();
+
+			if (expectedIdlType.isPresent()) {
+				expectedInnerIDLType = expectedIdlType.get().getInnerType();
+				innerIdlType = expectedInnerIDLType;
+			}
+
+			// handle byte array
+			if (innerIdlType.getType() == Type.INT8 || innerIdlType.getType() == Type.NAT8)
+				return this.getBlobNode(innerIdlType.getType(), value);
+
+			Node node = new Node(JsonToken.BEGIN_ARRAY, null);
+			node.items = PrimitiveArrays.toArray(value);
+
+			if (this.counter != null)
+				this.counter.items(node.items.length);
+
+			node.innerIdlType = idlType.getInnerType();
+			node.expectedInnerIdlType = expectedInnerIDLType;
+
+			return node;
+		}
+
+		// handle OPT
+		if (type == Type.OPT) {
+			Optional<?> optionalValue = (Optional<?>) value;
+
+			if (optionalValue.isPresent()) {
+				IDLType expectedInnerIDLType = null;
+
+				if (expectedIdlType.isPresent())
+					expectedInnerIDLType = expectedIdlType.get().getInnerType();
+
+				return this.getNode(idlType.getInnerType(), Optional.ofNullable(expectedInnerIDLType), optionalValue.get());
+			} else
+				return Node.NULL;
+		}
+
+		if (type == Type.RECORD || type == Type.VARIANT) {
+			Map<?, ?> valueMap = (Map<?, ?>) value;
+
+			if (this.counter != null)
+				this.counter.items(valueMap.size());
+
+			Map<Label, IDLType> typeMap = idlType.getTypeMap();
+
+			Map<Label, IDLType> expectedTypeMap = new TreeMap<Label, IDLType>();
+
+			if (expectedIdlType.isPresent() && expectedIdlType.get().getTypeMap() != null)
+				expectedTypeMap = expectedIdlType.get().getTypeMap();
+
+			Map<Long, Label> expectedLabels = new TreeMap<Long, Label>();
+
+			for (Label entry : expectedTypeMap.keySet())
+				expectedLabels.put(entry.getId(), entry);
+
+			// only labels are resolved here, field values are converted when reached
+			String[] names = new String[valueMap.size()];
+			Object[] items = new Object[names.length];
+			IDLType[] idlTypes = new IDLType[names.length];
+			IDLType[] expectedIdlTypes = new IDLType[names.length];
+
+			int named = 0;
+			int i = 0;
+
+			for (Map.Entry<?, ?> entry : valueMap.entrySet()) {
+				Label label = (Label) entry.getKey();
+
+				boolean isNamed = false;
+
+				if(label.getType() == Label.LabelType.NAMED)
+					isNamed = true;
+
+				String fieldName;
+
+				IDLType itemIdlType = typeMap.get(label);
+
+				IDLType expectedItemIdlType = null;
+
+				if (expectedTypeMap.containsKey(label)) {
+					expectedItemIdlType = expectedTypeMap.get(label);
+
+					Label expectedLabel = expectedLabels.get(label.getId());
+
+					if(expectedLabel.getType() == Label.LabelType.NAMED)
+						isNamed = true;
+
+					fieldName = LabelCache.DEFAULT.getName(expectedLabel);
+				} else
+					fieldName = LabelCache.DEFAULT.getName(label);
+
+				if (isNamed) {
+					names[i] = fieldName;
+					named++;
+				}
+
+				items[i] = entry.getValue();
+				idlTypes[i] = itemIdlType;
+				expectedIdlTypes[i++] = expectedItemIdlType;
+			}
+
+			return getRecordNode(names, items, null, idlTypes, expectedIdlTypes, named);
+		}
+		throw CandidError.create(CandidError.CandidErrorCode.CUSTOM, "Cannot convert type " + type.name());
+	}
+
+	// item of VEC, tuple element or object field value, converted when the cursor reaches it
+	Node getItem(Node node, int index) {
+		if (node.bytes != null)
+			return new Node(JsonToken.NUMBER, Blobs.getItem(node.blobType, node.bytes[index]));
+
+		Object item = node.items[index];
+
+		// object of record with both named and unnamed labels
+		if (item instanceof Node)
+			return (Node) item;
+
+		if (node.plans != null)
+			return node.plans[index] == null ? Node.NULL : this.getNode(null, node.plans[index], item);
+
+		if (node.idlTypes != null)
+			return this.getNode(node.idlTypes[index], Optional.ofNullable(node.expectedIdlTypes[index]), item);
+
+		if (node.innerPlan != null)
+			return this.getNode(null, node.innerPlan, item);
+
+		return this.getNode(node.innerIdlType, Optional.ofNullable(node.expectedInnerIdlType), item);
+	}
+
+	Node getBlobNode(Type innerType, Object value) {
+		byte[] bytes = Blobs.getBytes(value);
+
+		if (this.counter != null)
+			this.counter.bytes(bytes.length);
+
+		if (this.blobFormat == BlobFormat.ARRAY) {
+			Node arrayNode = new Node(JsonToken.BEGIN_ARRAY, null);
+			arrayNode.bytes = bytes;
+			arrayNode.blobType = innerType;
+
+			return arrayNode;
+		}
+
+		return new Node(JsonToken.STRING, Base64.getEncoder().encodeToString(bytes));
+	}
+
+	// names are null for tuple elements, records with both get tuple elements and then object of named fields, same as GsonDeserializer.getValue
+	static Node getRecordNode(String[] names, Object[] items, IDLTypePlan[] plans, IDLType[] idlTypes, IDLType[] expectedIdlTypes,
+			int named) {
+		if (named == items.length || named == 0) {
+			Node node = new Node(named == 0 && items.length > 0 ? JsonToken.BEGIN_ARRAY : JsonToken.BEGIN_OBJECT, null);
+			node.names = names;
+			node.items = items;
+			node.plans = plans;
+			node.idlTypes = idlTypes;
+			node.expectedIdlTypes = expectedIdlTypes;
+
+			return node;
+		}
+
+		int unnamed = items.length - named;
+
+		Node objectNode = new Node(JsonToken.BEGIN_OBJECT, null);
+		objectNode.names = new String[named];
+		objectNode.items = new Object[named];
+
+		Node arrayNode = new Node(JsonToken.BEGIN_ARRAY, null);
+		arrayNode.items = new Object[unnamed + 1];
+		arrayNode.items[unnamed] = objectNode;
+
+		if (plans != null) {
+			objectNode.plans = new IDLTypePlan[named];
+			arrayNode.plans = new IDLTypePlan[unnamed + 1];
+		} else {
+			objectNode.idlTypes = new IDLType[named];
+			objectNode.expectedIdlTypes = new IDLType[named];
+			arrayNode.idlTypes = new IDLType[unnamed + 1];
+			arrayNode.expectedIdlTypes = new IDLType[unnamed + 1];
+		}
+
+		for (int i = 0, j = 0, k = 0; i < items.length; i++) {
+			Node node = names[i] == null ? arrayNode : objectNode;
+			int index = names[i] == null ? j++ : k++;
+
+			if (names[i] != null)
+				node.names[index] = names[i];
+
+			node.items[index] = items[i];
+
+			if (plans != null)
+				node.plans[index] = plans[i];
+			else {
+				node.idlTypes[index] = idlTypes[i];
+				node.expectedIdlTypes[index] = expectedIdlTypes[i];
+			}
+		}
+
+		return arrayNode;
+	}
+
+	Node getPrimitiveNode(Type type, Object value) {
+		switch (type) {
+		case BOOL:
+			return new Node(JsonToken.BOOLEAN, value);
+		case INT:
+		case NAT:
+			return new Node(JsonToken.NUMBER, GsonDeserializer.getNumber((BigInteger) value));
+		case INT8:
+		case NAT8:
+		case INT16:
+		case NAT16:
+		case INT32:
+		case NAT32:
+		case INT64:
+		case NAT64:
+		case FLOAT32:
+		case FLOAT64:
+			return new Node(JsonToken.NUMBER, (Number) value);
+		case TEXT:
+			if (this.counter != null)
+				this.counter.bytes(((String) value).length());
+
+			return new Node(JsonToken.STRING, (String) value);
+		case EMPTY:
+			Node node = new Node(JsonToken.BEGIN_OBJECT, null);
+			node.names = new String[0];
+			node.items = new Object[0];
+			return node;
+		case PRINCIPAL:
+			return new Node(JsonToken.STRING, this.deserializer.getText((Principal) value));
+		default:
+			return Node.NULL;
+		}
+	}
+
+	static final class Node {
+		static final Node NULL = new Node(JsonToken.NULL, null);
+
+		final JsonToken token;
+
+		// scalar value
+		final Object value;
+
+		// VEC items, tuple elements or object field values, not converted yet
+		Object[] items;
+
+		// names of object fields
+		String[] names;
+
+		// conversion of VEC items
+		IDLTypePlan innerPlan;
+		IDLType innerIdlType;
+		IDLType expectedInnerIdlType;
+
+		// conversion of record fields, null plan is null field
+		// items of VEC are converted by inner types, of records by types at the same index
+		IDLTypePlan[] plans;
+		IDLType[] idlTypes;
+		IDLType[] expectedIdlTypes;
+
+		// blob written as array of numbers
+		byte[] bytes;
+		Type blobType;
+
+		Node(JsonToken token, Object value) {
+			this.token = token;
+			this.value = value;
+		}
+
+		int size() {
+			return this.bytes != null ? this.bytes.length : this.items.length;
+		}
+
+		@Override
+		public String toString() {
+			return String.valueOf(this.value);
+		}
+	}
+
+	static final class Cursor {
+		final Node node;
+		int index;
+
+		Cursor(Node node) {
+			this.node = node;
+		}
+	}
+
+	// thrown when Gson reaches into JsonReader internals, e.g. for Map keys, caller falls back to JsonElement tree
+	static final class UnsupportedReaderException extends IOException {
+		private static final long serialVersionUID = 1L;
+	}
+}
@@ -0,0 +1,668 @@
+/*
+ * Copyright 2021 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.ic4j.candid.gson;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+
+import org.ic4j.candid.CandidError;
+import org.ic4j.candid.parser.IDLType;
+import org.ic4j.candid.parser.IDLValue;
+import org.ic4j.candid.types.Label;
+import org.ic4j.candid.types.Type;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+
+/*
+ * JsonWriter sink for Gson TypeAdapters, builds IDLValue directly from written tokens.
+ * Conversion rules are the same as GsonSerializer.getIDLValue applied to the JsonElement tree Gson would produce.
+ */
+final class IDLValueWriter extends JsonWriter {
+	static final Writer UNWRITABLE_WRITER = new Writer() {
+		@Override
+		public void write(char[] buffer, int offset, int counter) {
+			throw new AssertionError();
+		}
+
+		@Override
+		public void flush() {
+			throw new AssertionError();
+		}
+
+		@Override
+		public void close() {
+			throw new AssertionError();
+		}
+	};
+
+	final GsonSerializer serializer;
+
+	// Counter of the serializer call, null if calls are neither limited nor measured
+	final Counter counter;
+
+	final Deque<Frame> stack = new ArrayDeque<Frame>();
+
+	// null if inferred
+	final IDLTypePlan plan;
+
+	IDLValue result;
+
+	IDLValueWriter(GsonSerializer serializer, IDLTypePlan plan) {
+		super(UNWRITABLE_WRITER);
+		this.serializer = serializer;
+		this.counter = serializer.counter;
+		this.plan = plan;
+	}
+
+	IDLValue get() {
+		if (!this.stack.isEmpty() || this.result == null)
+			throw new IllegalStateException("Incomplete JSON value");
+
+		return this.result;
+	}
+
+	@Override
+	public JsonWriter beginArray() throws IOException {
+		if (this.skip(true))
+			return this;
+
+		Slot slot = this.nextSlot();
+
+		if (slot == null) {
+			this.stack.push(Frame.skip(null));
+			return this;
+		}
+
+		if (slot.plan == null) {
+			this.push(Frame.vec(null, null));
+			return this;
+		}
+
+		IDLTypePlan plan = slot.plan;
+		IDLTypePlan optPlan = null;
+
+		Type type = plan.type;
+
+		if (type == Type.NULL || type == Type.EMPTY) {
+			this.stack.push(Frame.skip(IDLValue.create(null, type)));
+			return this;
+		}
+
+		if (type == Type.OPT) {
+			optPlan = plan;
+			plan = plan.innerPlan;
+
+			if (plan == null) {
+				this.push(Frame.vec(null, optPlan));
+				return this;
+			}
+
+			type = plan.type;
+		}
+
+		if (type == Type.VEC) {
+			if (plan.blob)
+				this.push(Frame.blob(plan, optPlan));
+			else
+				this.push(Frame.vec(plan, optPlan));
+		} else if (type == Type.RECORD || type == Type.VARIANT)
+			this.push(Frame.record(plan, optPlan, true));
+		else
+			throw CandidError.create(CandidError.CandidErrorCode.CUSTOM, "Cannot convert array to type " + type.name());
+
+		return this;
+	}
+
+	@Override
+	public JsonWriter endArray() throws IOException {
+		this.end();
+		return this;
+	}
+
+	@Override
+	public JsonWriter beginObject() throws IOException {
+		if (this.skip(true))
+			return this;
+
+		Slot slot = this.nextSlot();
+
+		if (slot == null) {
+			this.stack.push(Frame.skip(null));
+			return this;
+		}
+
+		if (slot.plan == null) {
+			this.push(Frame.record(null, null, false));
+			return this;
+		}
+
+		IDLTypePlan plan = slot.plan;
+		IDLTypePlan optPlan = null;
+
+		Type type = plan.type;
+
+		if (type == Type.NULL || type == Type.EMPTY) {
+			this.stack.push(Frame.skip(IDLValue.create(null, type)));
+			return this;
+		}
+
+		if (type == Type.OPT) {
+			optPlan = plan;
+			plan = plan.innerPlan;
+
+			if (plan == null) {
+				this.push(Frame.record(null, optPlan, false));
+				return this;
+			}
+
+			type = plan.type;
+		}
+
+		if (type == Type.RECORD || type == Type.VARIANT)
+			this.push(Frame.record(plan, optPlan, false));
+		else
+			throw CandidError.create(CandidError.CandidErrorCode.CUSTOM, "Cannot convert object to type " + type.name());
+
+		return this;
+	}
+
+	@Override
+	public JsonWriter endObject() throws IOException {
+		this.end();
+		return this;
+	}
+
+	@Override
+	public JsonWriter name(String name) throws IOException {
+		if (name == null)
+			throw new NullPointerException("name == null");
+
+		Frame frame = this.stack.peek();
+
+		if (frame == null || frame.kind == Frame.Kind.SKIP)
+			return this;
+
+		if (frame.kind != Frame.Kind.RECORD || frame.tuple || frame.name != null)
+			throw new IllegalStateException("Unexpected name " + name);
+
+		frame.name = name;
+
+		return this;
+	}
+
+	@Override
+	public JsonWriter value(String value) throws IOException {
+		if (value == null)
+			return this.nullValue();
+
+		this.scalar(value);
+		return this;
+	}
+
+	@Override
+	public JsonWriter jsonValue(String value) throws IOException {
+		if (value == null)
+			return this.nullValue();
+
+		// raw JSON is replayed as tokens, so it is converted the same way as written values
+		GsonSerializer.DEFAULT_GSON.getAdapter(JsonElement.class).write(this, JsonParser.parseString(value));
+		return this;
+	}
+
+	@Override
+	public JsonWriter nullValue() throws IOException {
+		if (this.skip(false))
+			return this;
+
+		Frame frame = this.stack.peek();
+
+		// same as JsonTreeWriter, null object members are dropped unless nulls are serialized
+		if (frame != null && frame.kind == Frame.Kind.RECORD && !frame.tuple && !this.getSerializeNulls()) {
+			frame.name = null;
+			return this;
+		}
+
+		Slot slot = this.nextSlot();
+
+		if (slot == null)
+			return this;
+
+		if (slot.plan == null) {
+			this.add(IDLValue.create(null, Type.NULL));
+			return this;
+		}
+
+		Type type = slot.plan.type;
+
+		if (type == Type.OPT)
+			this.add(IDLValue.create(Optional.empty(), slot.plan.idlType));
+		else if (type == Type.NULL || type == Type.EMPTY)
+			this.add(IDLValue.create(null, type));
+		else
+			throw CandidError.create(CandidError.CandidErrorCode.CUSTOM, "Cannot convert null to type " + type.name());
+
+		return this;
+	}
+
+	@Override
+	public JsonWriter value(boolean value) throws IOException {
+		this.scalar(value);
+		return this;
+	}
+
+	@Override
+	public JsonWriter value(Boolean value) throws IOException {
+		if (value == null)
+			return this.nullValue();
+
+		this.scalar(value);
+		return this;
+	}
+
+	@Override
+	public JsonWriter value(float value) throws IOException {
+		return this.value((Number) value);
+	}
+
+	@Override
+	public JsonWriter value(double value) throws IOException {
+		if (!this.isLenient() && (Double.isNaN(value) || Double.isInfinite(value)))
+			throw new IllegalArgumentException("JSON forbids NaN and infinities: " + value);
+
+		this.scalar(value);
+		return this;
+	}
+
+	@Override
+	public JsonWriter value(long value) throws IOException {
+		this.scalar(value);
+		return this;
+	}
+
+	@Override
+	public JsonWriter value(Number value) throws IOException {
+		if (value == null)
+			return this.nullValue();
+
+		if (!this.isLenient()) {
+			double doubleValue = value.doubleValue();
+
+			if (Double.isNaN(doubleValue) || Double.isInfinite(doubleValue))
+				throw new IllegalArgumentException("JSON forbids NaN and infinities: " + value);
+		}
+
+		this.scalar(value);
+		return this;
+	}
+
+	@Override
+	public void flush() throws IOException {
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!this.stack.isEmpty())
+			throw new IOException("Incomplete document");
+	}
+
+	// value is Boolean, Number or String
+	void scalar(Object value) {
+		if (this.skip(false))
+			return;
+
+		Frame frame = this.stack.peek();
+
+		if (frame != null && frame.kind == Frame.Kind.BLOB) {
+			if (this.counter != null)
+				this.counter.bytes(1);
+
+			frame.addByte(GsonSerializer.getNumber(value).byteValue());
+			return;
+		}
+
+		// fixed width items are added without IDLValue
+		if (frame != null && frame.kind == Frame.Kind.VEC && frame.plan != null && frame.plan.primitiveArray) {
+			if (this.counter != null)
+				this.counter.item(++frame.count);
+
+			frame.items.add(PrimitiveArrays.getValue(frame.plan.innerPlan.type, value));
+			return;
+		}
+
+		Slot slot = this.nextSlot();
+
+		if (slot == null)
+			return;
+
+		this.add(this.getIDLValue(slot.plan, value));
+	}
+
+	IDLValue getIDLValue(IDLTypePlan plan, Object value) {
+		if (plan == null) {
+			Type type;
+
+			if (value instanceof Boolean)
+				type = Type.BOOL;
+			else if (value instanceof Number)
+				type = IDLType.createType(value).getType();
+			else
+				type = Type.TEXT;
+
+			return this.serializer.getPrimitiveIDLValue(type, value);
+		}
+
+		// Base64 string
+		if (plan.blob)
+			return IDLValue.create(Blobs.decode(value.toString()), plan.idlType);
+
+		if (plan.type == Type.OPT) {
+			IDLValue itemIdlValue = this.getIDLValue(plan.innerPlan, value);
+
+			return IDLValue.create(Optional.ofNullable(itemIdlValue.getValue()), plan.idlType);
+		}
+
+		return this.serializer.getPrimitiveIDLValue(plan.type, value);
+	}
+
+	// nested VEC or RECORD, items are counted when they are added
+	void push(Frame frame) {
+		if (this.counter != null)
+			this.counter.enter(0);
+
+		this.stack.push(frame);
+	}
+
+	// consume tokens inside skipped subtree, returns true if token was consumed
+	boolean skip(boolean begin) {
+		Frame frame = this.stack.peek();
+
+		if (frame == null || frame.kind != Frame.Kind.SKIP)
+			return false;
+
+		if (begin)
+			frame.depth++;
+
+		return true;
+	}
+
+	// expected type of the next value, null if the value is not part of expected type
+	Slot nextSlot() {
+		Frame frame = this.stack.peek();
+
+		if (frame == null) {
+			if (this.result != null)
+				throw new IllegalStateException("JSON must have only one top-level value");
+
+			return new Slot(this.plan);
+		}
+
+		switch (frame.kind) {
+		case VEC:
+			if (frame.plan == null)
+				return new Slot(null);
+
+			return new Slot(frame.plan.innerPlan);
+		case RECORD:
+			int index;
+
+			if (frame.tuple) {
+				long id = frame.index++;
+
+				if (frame.plan == null || frame.plan.inferred) {
+					frame.label = LabelCache.getUnnamedLabel(id);
+					return new Slot(null);
+				}
+
+				index = frame.plan.indexOf(id);
+			} else {
+				if (frame.name == null)
+					throw new IllegalStateException("Expected name");
+
+				String name = frame.name;
+				frame.name = null;
+
+				if (frame.plan == null || frame.plan.inferred) {
+					frame.label = LabelCache.DEFAULT.getLabel(name);
+					return new Slot(null);
+				}
+
+				index = frame.plan.indexOf(name);
+			}
+
+			if (index < 0 || frame.plan.plans[index] == null)
+				return null;
+
+			frame.label = frame.plan.labels[index];
+			frame.labelIndex = index;
+
+			return new Slot(frame.plan.plans[index]);
+		default:
+			throw new IllegalStateException("Unexpected value in " + frame.kind.name());
+		}
+	}
+
+	void end() {
+		Frame frame = this.stack.peek();
+
+		if (frame == null)
+			throw new IllegalStateException("Nesting problem");
+
+		if (frame.kind == Frame.Kind.SKIP && frame.depth > 0) {
+			frame.depth--;
+			return;
+		}
+
+		this.stack.pop();
+
+		if (this.counter != null && frame.kind != Frame.Kind.SKIP)
+			this.counter.exit();
+
+		IDLValue idlValue = frame.getIDLValue();
+
+		if (idlValue != null)
+			this.add(idlValue);
+	}
+
+	void add(IDLValue idlValue) {
+		Frame frame = this.stack.peek();
+
+		if (frame == null) {
+			this.result = idlValue;
+			return;
+		}
+
+		if (this.counter != null)
+			this.counter.item(++frame.count);
+
+		switch (frame.kind) {
+		case VEC:
+			frame.items.add(idlValue.getValue());
+
+			if (frame.plan == null || frame.plan.inferred)
+				frame.innerIdlType = idlValue.getIDLType();
+			break;
+		case RECORD:
+			if (frame.recordMap != null)
+				frame.recordMap.put(frame.labelIndex, idlValue);
+			else {
+				frame.typeMap.put(frame.label, idlValue.getIDLType());
+				frame.valueMap.put(frame.label, idlValue.getValue());
+			}
+			frame.label = null;
+			break;
+		default:
+			throw new IllegalStateException("Unexpected value in " + frame.kind.name());
+		}
+	}
+
+	static final class Slot {
+		// null if inferred
+		final IDLTypePlan plan;
+
+		Slot(IDLTypePlan plan) {
+			this.plan = plan;
+		}
+	}
+
+	static final class Frame {
+		enum Kind {
+			VEC, BLOB, RECORD, SKIP
+		}
+
+		Kind kind;
+
+		// expected type, null if inferred
+		IDLTypePlan plan;
+
+		// expected OPT type wrapping this value
+		IDLTypePlan optPlan;
+
+		List<Object> items;
+		IDLType innerIdlType;
+
+		byte[] bytes;
+		int size;
+
+		boolean tuple;
+		long index;
+		String name;
+		Label label;
+		int labelIndex;
+
+		// typed records, null if inferred
+		RecordMap recordMap;
+
+		Map<Label, Object> valueMap;
+		Map<Label, IDLType> typeMap;
+
+		// VEC and RECORD items added so far
+		int count;
+
+		int depth;
+		IDLValue skipValue;
+
+		static Frame vec(IDLTypePlan plan, IDLTypePlan optPlan) {
+			Frame frame = new Frame();
+			frame.kind = Kind.VEC;
+			frame.plan = plan;
+			frame.optPlan = optPlan;
+			frame.items = new ArrayList<Object>();
+			return frame;
+		}
+
+		static Frame blob(IDLTypePlan plan, IDLTypePlan optPlan) {
+			Frame frame = new Frame();
+			frame.kind = Kind.BLOB;
+			frame.plan = plan;
+			frame.optPlan = optPlan;
+			frame.bytes = new byte[32];
+			return frame;
+		}
+
+		static Frame record(IDLTypePlan plan, IDLTypePlan optPlan, boolean tuple) {
+			Frame frame = new Frame();
+			frame.kind = Kind.RECORD;
+			frame.plan = plan;
+			frame.optPlan = optPlan;
+			frame.tuple = tuple;
+
+			if (plan != null && !plan.inferred)
+				frame.recordMap = new RecordMap(plan);
+			else {
+				frame.valueMap = new TreeMap<Label, Object>();
+				frame.typeMap = new TreeMap<Label, IDLType>();
+			}
+			return frame;
+		}
+
+		static Frame skip(IDLValue skipValue) {
+			Frame frame = new Frame();
+			frame.kind = Kind.SKIP;
+			frame.skipValue = skipValue;
+			return frame;
+		}
+
+		void addByte(byte value) {
+			if (this.size == this.bytes.length) {
+				byte[] bytes = new byte[this.size << 1];
+				System.arraycopy(this.bytes, 0, bytes, 0, this.size);
+				this.bytes = bytes;
+			}
+
+			this.bytes[this.size++] = value;
+		}
+
+		IDLValue getIDLValue() {
+			IDLValue idlValue;
+
+			switch (this.kind) {
+			case SKIP:
+				return this.skipValue;
+			case VEC:
+				// empty array is none, same as in JsonElement conversion
+				if (this.optPlan != null && this.items.isEmpty())
+					return IDLValue.create(Optional.empty(), this.optPlan.idlType);
+
+				if (this.plan != null && this.plan.primitiveArray)
+					idlValue = IDLValue.create(this.items.toArray(PrimitiveArrays.create(this.plan.innerPlan.type, this.items.size())), this.plan.idlType);
+				else if (this.plan != null && !this.plan.inferred)
+					idlValue = IDLValue.create(this.items.toArray(), this.plan.idlType);
+				else
+					idlValue = IDLValue.create(this.items.toArray(), IDLType.createType(Type.VEC, this.innerIdlType));
+				break;
+			case BLOB:
+				if (this.optPlan != null && this.size == 0)
+					return IDLValue.create(Optional.empty(), this.optPlan.idlType);
+
+				byte[] bytes = new byte[this.size];
+				System.arraycopy(this.bytes, 0, bytes, 0, this.size);
+
+				idlValue = IDLValue.create(bytes, IDLType.createType(Type.VEC, this.plan.innerPlan.idlType));
+				break;
+			default:
+				if (this.optPlan != null && this.tuple && this.index == 0)
+					return IDLValue.create(Optional.empty(), this.optPlan.idlType);
+
+				if (this.recordMap != null) {
+					idlValue = this.recordMap.getIDLValue();
+					break;
+				}
+
+				Type type = Type.RECORD;
+
+				if (this.plan != null)
+					type = this.plan.type;
+
+				idlValue = IDLValue.create(this.valueMap, IDLType.createType(type, this.typeMap));
+			}
+
+			if (this.optPlan != null)
+				return IDLValue.create(Optional.ofNullable(idlValue.getValue()), this.optPlan.idlType);
+
+			return idlValue;
+		}
+	}
+}
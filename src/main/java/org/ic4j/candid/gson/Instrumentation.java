@@ -0,0 +1,45 @@
+/*
+ * Copyright 2021 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.candid.gson;
+
+/*
+ * Hooks called by GsonSerializer and GsonDeserializer, every method does nothing by default, so implementations override what they record.
+ * Converters without instrumentation skip timing and counting entirely. Nodes and bytes are counted while the value is converted,
+ * by the same per call Counter that checks Limits, so measured calls are not split into parallel tasks.
+ * Implementations are called from every thread that uses the converter.
+ */
+public interface Instrumentation {
+	Instrumentation NOOP = new Instrumentation() {
+	};
+
+	enum Operation {
+		SERIALIZE, DESERIALIZE
+	}
+
+	// wall time of one serialize or deserialize call
+	default void call(Operation operation, long nanos) {
+	}
+
+	// values of one call, nodes are items of VEC, RECORD and VARIANT values, bytes are characters of TEXT and bytes of blobs
+	default void values(Operation operation, long nodes, long bytes) {
+	}
+
+	// caches the converter reads, reported when instrumentation is set and when converter changes them, null if it reads none
+	default void caches(IDLTypeCache typeCache, LabelCache labelCache, PrincipalCache principalCache) {
+	}
+}
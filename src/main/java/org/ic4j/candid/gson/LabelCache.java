@@ -0,0 +1,213 @@
+/*
+ * Copyright 2021 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.ic4j.candid.gson;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.ic4j.candid.types.Label;
+
+/*
+ * Intern table of record labels and JSON field names. Field names map to Label instances, so the label hash is computed once per name,
+ * labels map back to field name Strings, so id labels do not format their id for every value.
+ * Names come from untrusted JSON keys and label ids too, so at most maxSize entries of both kinds are kept, once the table is full
+ * a new entry evicts one that was not used since the clock hand last passed it, the same way as IDLTypeCache.
+ */
+public final class LabelCache {
+	public static final int DEFAULT_MAX_SIZE = 16384;
+
+	// tuple labels are created up front
+	static final int UNNAMED_LABELS = 64;
+
+	static final LabelCache DEFAULT = new LabelCache(DEFAULT_MAX_SIZE);
+
+	static final Label[] UNNAMED = new Label[UNNAMED_LABELS];
+
+	static {
+		for (int i = 0; i < UNNAMED_LABELS; i++)
+			UNNAMED[i] = Label.createUnnamedLabel((long) i);
+	}
+
+	final int maxSize;
+
+	final ConcurrentHashMap<String, Entry> labels = new ConcurrentHashMap<String, Entry>();
+	final ConcurrentHashMap<Long, Entry> names = new ConcurrentHashMap<Long, Entry>();
+
+	// clock of stored entries of both maps, guarded by itself
+	final Entry[] ring;
+	int hand;
+	int size;
+
+	final LongAdder hits = new LongAdder();
+	final LongAdder misses = new LongAdder();
+
+	LabelCache(int maxSize) {
+		if (maxSize < 0)
+			throw new IllegalArgumentException("Cache size cannot be negative");
+
+		this.maxSize = maxSize;
+		this.ring = new Entry[maxSize];
+	}
+
+	public static LabelCache create(int maxSize) {
+		return new LabelCache(maxSize);
+	}
+
+	public static LabelCache getDefault() {
+		return DEFAULT;
+	}
+
+	public Label getLabel(String name) {
+		Entry entry = this.labels.get(name);
+
+		if (entry != null) {
+			this.hit(entry);
+			return (Label) entry.value;
+		}
+
+		this.misses.increment();
+
+		return (Label) this.store(this.labels, name, Label.createNamedLabel(name));
+	}
+
+	public static Label getUnnamedLabel(long id) {
+		if (id >= 0 && id < UNNAMED_LABELS)
+			return UNNAMED[(int) id];
+
+		return Label.createUnnamedLabel(id);
+	}
+
+	// JSON field name of label, name of named label, otherwise label id
+	public String getName(Label label) {
+		if (label.getType() == Label.LabelType.NAMED)
+			return label.getValue().toString();
+
+		Long id = label.getId();
+
+		Entry entry = this.names.get(id);
+
+		if (entry != null) {
+			this.hit(entry);
+			return (String) entry.value;
+		}
+
+		this.misses.increment();
+
+		return (String) this.store(this.names, id, label.getValue().toString());
+	}
+
+	void hit(Entry entry) {
+		// written only when it changes, so hits do not contend on the entry
+		if (!entry.used)
+			entry.used = true;
+
+		this.hits.increment();
+	}
+
+	// value stored by this or a concurrent call
+	<K> Object store(ConcurrentHashMap<K, Entry> map, K key, Object value) {
+		if (this.maxSize == 0)
+			return value;
+
+		synchronized (this.ring) {
+			Entry entry = map.get(key);
+
+			if (entry != null)
+				return entry.value;
+
+			entry = new Entry(map, key, value);
+
+			this.ring[this.evict()] = entry;
+			map.put(key, entry);
+		}
+
+		return value;
+	}
+
+	// free slot of ring, entries used since last pass get another round, caller holds ring lock
+	int evict() {
+		if (this.size < this.maxSize)
+			return this.size++;
+
+		while (true) {
+			int slot = this.hand;
+			Entry entry = this.ring[slot];
+
+			this.hand = (slot + 1) % this.maxSize;
+
+			if (entry.used) {
+				entry.used = false;
+				continue;
+			}
+
+			entry.map.remove(entry.key);
+
+			return slot;
+		}
+	}
+
+	public void clear() {
+		synchronized (this.ring) {
+			this.labels.clear();
+			this.names.clear();
+			Arrays.fill(this.ring, null);
+			this.hand = 0;
+			this.size = 0;
+		}
+	}
+
+	public int size() {
+		synchronized (this.ring) {
+			return this.size;
+		}
+	}
+
+	public int getMaxSize() {
+		return this.maxSize;
+	}
+
+	public long getHitCount() {
+		return this.hits.sum();
+	}
+
+	public long getMissCount() {
+		return this.misses.sum();
+	}
+
+	public double getHitRate() {
+		long hits = this.hits.sum();
+		long total = hits + this.misses.sum();
+
+		return total == 0 ? 0.0 : (double) hits / total;
+	}
+
+	static final class Entry {
+		// map the entry is stored in, so evicted entry is removed by its key
+		final ConcurrentHashMap<?, Entry> map;
+		final Object key;
+		final Object value;
+
+		volatile boolean used;
+
+		Entry(ConcurrentHashMap<?, Entry> map, Object key, Object value) {
+			this.map = map;
+			this.key = key;
+			this.value = value;
+		}
+	}
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright 2021 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.candid.gson;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.ic4j.candid.types.Label;
+import org.ic4j.candid.types.Type;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+
+/*
+ * Read only JSON view of IDLValue, VEC items and RECORD fields are converted only when accessed and then kept.
+ * Materialized JSON is the same as JsonElement returned by GsonDeserializer. Gson JsonObject and JsonArray are final,
+ * so the view has its own accessors. Views cache their children without synchronization, use them from one thread.
+ * Limits of the deserializer count items of the whole view as they are accessed, depth only of subtrees converted at once.
+ */
+public final class LazyJson {
+	final GsonDeserializer deserializer;
+	final IDLTypePlan plan;
+	final Object value;
+
+	// VEC items, or RECORD fields once resolved
+	LazyJson[] items;
+
+	// RECORD, resolved on first access, names are null for tuple records
+	String[] names;
+	Object[] values;
+	IDLTypePlan[] plans;
+
+	JsonElement element;
+
+	LazyJson(GsonDeserializer deserializer, IDLTypePlan plan, Object value) {
+		this.deserializer = deserializer;
+		this.plan = plan;
+		this.value = value;
+	}
+
+	static LazyJson create(GsonDeserializer deserializer, IDLTypePlan plan, Object value) {
+		// OPT values are views of their inner value
+		while (plan != null && !plan.inferred && plan.type == Type.OPT && value != null) {
+			Optional<?> optionalValue = (Optional<?>) value;
+
+			value = optionalValue.isPresent() ? optionalValue.get() : null;
+			plan = plan.innerPlan;
+		}
+
+		LazyJson lazyJson = new LazyJson(deserializer, plan, value);
+
+		if (value == null)
+			lazyJson.element = JsonNull.INSTANCE;
+
+		return lazyJson;
+	}
+
+	// converted on first access only if plan has no inner plans to drive the view
+	boolean isLazy() {
+		if (this.element != null || this.plan == null || this.plan.inferred)
+			return false;
+
+		if (this.plan.type == Type.VEC)
+			return !this.plan.blob && !this.plan.primitiveArray;
+
+		if (this.plan.type == Type.RECORD || this.plan.type == Type.VARIANT)
+			return this.resolve();
+
+		return false;
+	}
+
+	boolean isVec() {
+		return this.isLazy() && this.plan.type == Type.VEC;
+	}
+
+	// field names and values in label id order, false if record mixes named and tuple fields
+	boolean resolve() {
+		if (this.values != null)
+			return true;
+
+		Map<?, ?> valueMap = (Map<?, ?>) this.value;
+
+		if (this.deserializer.counter != null)
+			this.deserializer.counter.items(valueMap.size());
+
+		String[] names = new String[valueMap.size()];
+		Object[] values = new Object[names.length];
+		IDLTypePlan[] plans = new IDLTypePlan[names.length];
+
+		int named = 0;
+		int i = 0;
+
+		for (Map.Entry<?, ?> entry : valueMap.entrySet()) {
+			Label label = (Label) entry.getKey();
+
+			boolean isNamed = label.getType() == Label.LabelType.NAMED;
+
+			int index = this.plan.indexOf(label.getId());
+
+			if (index >= 0) {
+				isNamed = isNamed || this.plan.named[index];
+				names[i] = this.plan.names[index];
+				plans[i] = this.plan.plans[index];
+				values[i] = plans[i] == null ? null : entry.getValue();
+			} else
+				names[i] = LabelCache.DEFAULT.getName(label);
+
+			if (isNamed)
+				named++;
+
+			i++;
+		}
+
+		if (named > 0 && named < names.length)
+			return false;
+
+		// tuple fields are accessed by position
+		this.names = named > 0 ? names : null;
+		this.values = values;
+		this.plans = plans;
+		this.items = new LazyJson[values.length];
+
+		return true;
+	}
+
+	public boolean isJsonNull() {
+		if (this.value == null)
+			return true;
+
+		if (this.isLazy())
+			return false;
+
+		return this.getAsJsonElement().isJsonNull();
+	}
+
+	public boolean isJsonArray() {
+		if (this.isLazy())
+			return this.plan.type == Type.VEC || this.names == null && this.values.length > 0;
+
+		return this.getAsJsonElement().isJsonArray();
+	}
+
+	public boolean isJsonObject() {
+		if (this.isLazy())
+			return this.plan.type != Type.VEC && (this.names != null || this.values.length == 0);
+
+		return this.getAsJsonElement().isJsonObject();
+	}
+
+	public boolean isJsonPrimitive() {
+		if (this.isLazy())
+			return false;
+
+		return this.getAsJsonElement().isJsonPrimitive();
+	}
+
+	public int size() {
+		if (this.isVec())
+			return ((Object[]) this.value).length;
+
+		if (this.isLazy())
+			return this.values.length;
+
+		JsonElement element = this.getAsJsonElement();
+
+		if (element.isJsonArray())
+			return element.getAsJsonArray().size();
+		else if (element.isJsonObject())
+			return element.getAsJsonObject().size();
+		else
+			throw new IllegalStateException("Not a JSON array or object: " + element);
+	}
+
+	public List<String> getNames() {
+		if (this.isLazy() && this.plan.type != Type.VEC)
+			return this.names == null ? Collections.<String>emptyList() : Collections.unmodifiableList(Arrays.asList(this.names));
+
+		JsonElement element = this.getAsJsonElement();
+
+		if (!element.isJsonObject())
+			throw new IllegalStateException("Not a JSON object: " + element);
+
+		return Collections.unmodifiableList(Arrays.asList(element.getAsJsonObject().keySet().toArray(new String[0])));
+	}
+
+	public boolean has(String name) {
+		if (this.isLazy() && this.plan.type != Type.VEC)
+			return this.indexOf(name) >= 0;
+
+		JsonElement element = this.getAsJsonElement();
+
+		return element.isJsonObject() && element.getAsJsonObject().has(name);
+	}
+
+	// null if object has no such field
+	public LazyJson get(String name) {
+		if (this.isLazy() && this.plan.type != Type.VEC) {
+			int index = this.indexOf(name);
+
+			return index < 0 ? null : this.getItem(index);
+		}
+
+		JsonElement element = this.getAsJsonElement();
+
+		if (!element.isJsonObject())
+			throw new IllegalStateException("Not a JSON object: " + element);
+
+		JsonElement item = element.getAsJsonObject().get(name);
+
+		return item == null ? null : wrap(this.deserializer, item);
+	}
+
+	public LazyJson get(int index) {
+		if (this.isLazy() && (this.plan.type == Type.VEC || this.names == null)) {
+			if (index < 0 || index >= this.size())
+				throw new IndexOutOfBoundsException("Index: " + index + ", size: " + this.size());
+
+			return this.getItem(index);
+		}
+
+		JsonElement element = this.getAsJsonElement();
+
+		if (!element.isJsonArray())
+			throw new IllegalStateException("Not a JSON array: " + element);
+
+		return wrap(this.deserializer, element.getAsJsonArray().get(index));
+	}
+
+	int indexOf(String name) {
+		if (this.names == null)
+			return -1;
+
+		for (int i = 0; i < this.names.length; i++)
+			if (this.names[i].equals(name))
+				return i;
+
+		return -1;
+	}
+
+	LazyJson getItem(int index) {
+		// VEC items are allocated and counted on first access, RECORD items when fields are resolved
+		if (this.items == null) {
+			this.items = new LazyJson[((Object[]) this.value).length];
+
+			if (this.deserializer.counter != null)
+				this.deserializer.counter.items(this.items.length);
+		}
+
+		LazyJson item = this.items[index];
+
+		if (item == null) {
+			if (this.plan.type == Type.VEC)
+				item = create(this.deserializer, this.plan.innerPlan, ((Object[]) this.value)[index]);
+			else
+				item = create(this.deserializer, this.plans[index], this.values[index]);
+
+			this.items[index] = item;
+		}
+
+		return item;
+	}
+
+	static LazyJson wrap(GsonDeserializer deserializer, JsonElement element) {
+		LazyJson lazyJson = new LazyJson(deserializer, null, element.isJsonNull() ? null : element);
+
+		lazyJson.element = element;
+
+		return lazyJson;
+	}
+
+	// whole subtree, items that were already accessed are reused
+	public JsonElement getAsJsonElement() {
+		if (this.element != null)
+			return this.element;
+
+		if (this.isVec()) {
+			JsonArray arrayNode = new JsonArray(this.size());
+
+			for (int i = 0; i < this.size(); i++)
+				arrayNode.add(this.getItem(i).getAsJsonElement());
+
+			this.element = arrayNode;
+		} else if (this.isLazy()) {
+			if (this.names == null) {
+				JsonArray arrayNode = new JsonArray(this.values.length);
+
+				for (int i = 0; i < this.values.length; i++)
+					arrayNode.add(this.getItem(i).getAsJsonElement());
+
+				this.element = this.values.length == 0 ? new JsonObject() : arrayNode;
+			} else {
+				JsonObject treeNode = new JsonObject();
+
+				for (int i = 0; i < this.names.length; i++)
+					treeNode.add(this.names[i], this.getItem(i).getAsJsonElement());
+
+				this.element = treeNode;
+			}
+		} else
+			this.element = this.deserializer.getValue(null, this.plan, this.value);
+
+		return this.element;
+	}
+
+	public String getAsString() {
+		return this.getAsJsonElement().getAsString();
+	}
+
+	public boolean getAsBoolean() {
+		return this.getAsJsonElement().getAsBoolean();
+	}
+
+	public Number getAsNumber() {
+		return this.getAsJsonElement().getAsNumber();
+	}
+
+	public long getAsLong() {
+		return this.getAsJsonElement().getAsLong();
+	}
+
+	public double getAsDouble() {
+		return this.getAsJsonElement().getAsDouble();
+	}
+
+	public BigInteger getAsBigInteger() {
+		return this.getAsJsonElement().getAsBigInteger();
+	}
+
+	@Override
+	public String toString() {
+		return this.getAsJsonElement().toString();
+	}
+}
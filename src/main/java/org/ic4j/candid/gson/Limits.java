@@ -0,0 +1,106 @@
+/*
+ * Copyright 2021 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.candid.gson;
+
+import org.ic4j.candid.CandidError;
+
+/*
+ * Size guards for values from untrusted sources, checked while values are converted, so oversized input fails
+ * before it takes the whole stack or heap. Depth counts nested VEC, RECORD and VARIANT values, elements are items
+ * of one VEC, RECORD or VARIANT, nodes are items of all of them, bytes are characters of TEXT and bytes of blobs.
+ * Every call gets its own Counter, exceeded limit fails with CandidError, message starts with LIMIT_EXCEEDED
+ * and isExceeded tells it apart from conversion errors.
+ */
+public final class Limits {
+	public static final int DEFAULT_MAX_DEPTH = 128;
+	public static final int DEFAULT_MAX_ELEMENTS = 1 << 20;
+	public static final long DEFAULT_MAX_NODES = 1 << 24;
+	public static final long DEFAULT_MAX_BYTES = 1 << 26;
+
+	public static final String LIMIT_EXCEEDED = "Limit exceeded";
+
+	// measured calls without limits are counted against these, they are never exceeded
+	static final Limits NONE = new Limits(Integer.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+
+	final int maxDepth;
+	final int maxElements;
+	final long maxNodes;
+	final long maxBytes;
+
+	Limits(int maxDepth, int maxElements, long maxNodes, long maxBytes) {
+		if (maxDepth < 1 || maxElements < 1 || maxNodes < 1 || maxBytes < 1)
+			throw new IllegalArgumentException("Limits must be positive");
+
+		this.maxDepth = maxDepth;
+		this.maxElements = maxElements;
+		this.maxNodes = maxNodes;
+		this.maxBytes = maxBytes;
+	}
+
+	public static Limits create() {
+		return new Limits(DEFAULT_MAX_DEPTH, DEFAULT_MAX_ELEMENTS, DEFAULT_MAX_NODES, DEFAULT_MAX_BYTES);
+	}
+
+	public static Limits create(int maxDepth, int maxElements, long maxNodes, long maxBytes) {
+		return new Limits(maxDepth, maxElements, maxNodes, maxBytes);
+	}
+
+	public int getMaxDepth() {
+		return this.maxDepth;
+	}
+
+	public int getMaxElements() {
+		return this.maxElements;
+	}
+
+	public long getMaxNodes() {
+		return this.maxNodes;
+	}
+
+	public long getMaxBytes() {
+		return this.maxBytes;
+	}
+
+	Counter start() {
+		return new Counter(this);
+	}
+
+	static CandidError exceeded(String name, long limit) {
+		String message = LIMIT_EXCEEDED + ": " + name + " is over " + limit;
+
+		return CandidError.create(CandidError.CandidErrorCode.CUSTOM, new Exceeded(message), message);
+	}
+
+	// true if error or one of its causes is exceeded limit
+	public static boolean isExceeded(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause())
+			if (cause instanceof Exceeded)
+				return true;
+
+		return false;
+	}
+
+	// cause of limit errors, CandidError is final and has one error code for all conversion errors
+	static final class Exceeded extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		Exceeded(String message) {
+			super(message, null, false, false);
+		}
+	}
+}
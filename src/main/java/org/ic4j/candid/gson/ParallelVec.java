@@ -0,0 +1,96 @@
+/*
+ * Copyright 2021 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.ic4j.candid.gson;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/*
+ * Parallel conversion of VEC items. Items are split into index ranges converted as ForkJoin tasks,
+ * each item is stored at its own index, so the order is kept. Nested VECs can be split again,
+ * ForkJoinPool workers keep stealing while they wait, so nested joins do not block the pool.
+ */
+final class ParallelVec {
+	// smallest range of items converted by one task
+	static final int MIN_RANGE_SIZE = 256;
+
+	final int threshold;
+	final ForkJoinPool pool;
+
+	ParallelVec(int threshold, ForkJoinPool pool) {
+		this.threshold = threshold;
+		this.pool = pool;
+	}
+
+	static ParallelVec create(int threshold, ForkJoinPool pool) {
+		if (threshold <= 0)
+			return null;
+
+		if (pool == null)
+			pool = ForkJoinPool.commonPool();
+
+		return new ParallelVec(threshold, pool);
+	}
+
+	boolean isParallel(int size) {
+		return size >= this.threshold && this.pool.getParallelism() > 1;
+	}
+
+	void forEach(int size, IntConsumer action) {
+		int rangeSize = Math.max(MIN_RANGE_SIZE, size / (this.pool.getParallelism() * 4));
+
+		RangeAction task = new RangeAction(action, 0, size, rangeSize);
+
+		if (ForkJoinTask.getPool() == this.pool)
+			task.invoke();
+		else
+			this.pool.invoke(task);
+	}
+
+	static final class RangeAction extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		final IntConsumer action;
+		final int start;
+		final int end;
+		final int rangeSize;
+
+		RangeAction(IntConsumer action, int start, int end, int rangeSize) {
+			this.action = action;
+			this.start = start;
+			this.end = end;
+			this.rangeSize = rangeSize;
+		}
+
+		@Override
+		protected void compute() {
+			if (this.end - this.start <= this.rangeSize) {
+				for (int i = this.start; i < this.end; i++)
+					this.action.accept(i);
+
+				return;
+			}
+
+			int middle = (this.start + this.end) >>> 1;
+
+			invokeAll(new RangeAction(this.action, this.start, middle, this.rangeSize),
+					new RangeAction(this.action, middle, this.end, this.rangeSize));
+		}
+	}
+}
@@ -0,0 +1,615 @@
+/*
+ * Copyright 2021 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.candid.gson;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.TreeMap;
+
+import org.ic4j.candid.CandidError;
+import org.ic4j.candid.parser.IDLValue;
+import org.ic4j.candid.types.Label;
+import org.ic4j.candid.types.Type;
+import org.ic4j.types.Principal;
+
+import com.google.gson.annotations.SerializedName;
+
+/*
+ * Conversion of POJO fields, values go straight between fields and RECORD values through IDLCodec accessors,
+ * without Gson TypeAdapters and JSON tokens in between. Generated codecs registered as IDLCodec services are used first,
+ * other classes get FieldCodec MethodHandles. Enums are VARIANTs with one label per constant.
+ * Classes with fields that have no direct conversion (Date, Map, primitive arrays, ...) have no codec and stay with Gson.
+ */
+final class PojoCodec {
+	// generated codecs by class, loaded once
+	static final Map<Class<?>, IDLCodec<?>> GENERATED = loadGenerated();
+
+	static final ClassValue<PojoCodec> CODECS = new ClassValue<PojoCodec>() {
+		@Override
+		protected PojoCodec computeValue(Class<?> type) {
+			return create(type);
+		}
+	};
+
+	// marks classes without codec, ClassValue does not keep null
+	static final PojoCodec UNSUPPORTED = new PojoCodec(null);
+
+	enum Kind {
+		SCALAR, ENUM, POJO, OPTIONAL, LIST, ARRAY
+	}
+
+	// converter of field or item value, valueClass is boxed scalar, enum, POJO or array component class
+	static final class Slot {
+		final Kind kind;
+		final Class<?> valueClass;
+		final Slot item;
+
+		Slot(Kind kind, Class<?> valueClass, Slot item) {
+			this.kind = kind;
+			this.valueClass = valueClass;
+			this.item = item;
+		}
+	}
+
+	final Class<?> valueClass;
+
+	// enum constants by ordinal and their labels
+	Object[] constants;
+	Label[] constantLabels;
+
+	// record fields
+	IDLCodec<Object> fields;
+	Label[] labels;
+	Slot[] slots;
+	boolean[] primitive;
+
+	PojoCodec(Class<?> valueClass) {
+		this.valueClass = valueClass;
+	}
+
+	// null if class is converted by Gson
+	static PojoCodec get(Class<?> valueClass) {
+		PojoCodec codec = CODECS.get(valueClass);
+
+		return codec == UNSUPPORTED ? null : codec;
+	}
+
+	// null if class has no generated codec
+	static IDLCodec<?> getGenerated(Class<?> valueClass) {
+		return GENERATED.isEmpty() ? null : GENERATED.get(valueClass);
+	}
+
+	static Map<Class<?>, IDLCodec<?>> loadGenerated() {
+		Map<Class<?>, IDLCodec<?>> codecs = new HashMap<Class<?>, IDLCodec<?>>();
+
+		Iterator<?> iterator = ServiceLoader.load(IDLCodec.class).iterator();
+
+		while (true) {
+			try {
+				if (!iterator.hasNext())
+					break;
+
+				IDLCodec<?> codec = (IDLCodec<?>) iterator.next();
+				codecs.put(codec.getValueClass(), codec);
+			} catch (ServiceConfigurationError e) {
+				// stale service entry, its class is converted by reflection
+				continue;
+			}
+		}
+
+		return codecs;
+	}
+
+	static PojoCodec create(Class<?> valueClass) {
+		if (valueClass.isEnum())
+			return createEnum(valueClass);
+
+		IDLCodec<?> generated = getGenerated(valueClass);
+
+		if (generated != null)
+			return create(valueClass, erase(generated));
+
+		if (!isPojo(valueClass))
+			return UNSUPPORTED;
+
+		FieldCodec<?> fields = FieldCodec.create(valueClass);
+
+		if (fields == null)
+			return UNSUPPORTED;
+
+		return create(valueClass, erase(fields));
+	}
+
+	// codecs are found by value class, so values passed to them as Object are always of their class
+	@SuppressWarnings("unchecked")
+	static IDLCodec<Object> erase(IDLCodec<?> codec) {
+		return (IDLCodec<Object>) codec;
+	}
+
+	static PojoCodec create(Class<?> valueClass, IDLCodec<Object> fields) {
+		PojoCodec codec = new PojoCodec(valueClass);
+
+		String[] names = fields.getNames();
+		Class<?>[] fieldClasses = fields.getFieldClasses();
+		Class<?>[] itemClasses = fields.getItemClasses();
+
+		codec.fields = fields;
+		codec.labels = new Label[names.length];
+		codec.slots = new Slot[names.length];
+		codec.primitive = new boolean[names.length];
+
+		for (int i = 0; i < names.length; i++) {
+			codec.slots[i] = createSlot(fieldClasses[i], itemClasses[i]);
+
+			if (codec.slots[i] == null)
+				return UNSUPPORTED;
+
+			codec.labels[i] = Label.createNamedLabel(names[i]);
+			codec.primitive[i] = fieldClasses[i].isPrimitive();
+		}
+
+		return codec;
+	}
+
+	static PojoCodec createEnum(Class<?> valueClass) {
+		PojoCodec codec = new PojoCodec(valueClass);
+
+		codec.constants = valueClass.getEnumConstants();
+		codec.constantLabels = new Label[codec.constants.length];
+
+		for (int i = 0; i < codec.constants.length; i++) {
+			String name = ((Enum<?>) codec.constants[i]).name();
+
+			try {
+				Field field = valueClass.getField(name);
+
+				if (field.isAnnotationPresent(SerializedName.class))
+					name = field.getAnnotation(SerializedName.class).value();
+			} catch (NoSuchFieldException | SecurityException e) {
+				return UNSUPPORTED;
+			}
+
+			codec.constantLabels[i] = Label.createNamedLabel(name);
+		}
+
+		return codec;
+	}
+
+	static boolean isPojo(Class<?> valueClass) {
+		if (valueClass.isPrimitive() || valueClass.isArray() || valueClass.isInterface()
+				|| Modifier.isAbstract(valueClass.getModifiers()))
+			return false;
+
+		// JDK classes are written by Gson built-in adapters
+		return !valueClass.getName().startsWith("java.") && !valueClass.getName().startsWith("javax.")
+				&& !Collection.class.isAssignableFrom(valueClass) && !Map.class.isAssignableFrom(valueClass)
+				&& !Date.class.isAssignableFrom(valueClass);
+	}
+
+	// null if field has no direct conversion, containers hold only scalars, enums and POJOs
+	static Slot createSlot(Class<?> fieldClass, Class<?> itemClass) {
+		if (fieldClass == Optional.class || fieldClass == List.class || fieldClass == ArrayList.class) {
+			Slot itemSlot = itemClass == null ? null : createSlot(itemClass);
+
+			if (itemSlot == null)
+				return null;
+
+			// Gson reads List fields into ArrayList
+			return new Slot(fieldClass == Optional.class ? Kind.OPTIONAL : Kind.LIST, fieldClass, itemSlot);
+		}
+
+		if (fieldClass.isArray()) {
+			Class<?> componentClass = fieldClass.getComponentType();
+
+			Slot itemSlot = componentClass.isPrimitive() ? null : createSlot(componentClass);
+
+			return itemSlot == null ? null : new Slot(Kind.ARRAY, componentClass, itemSlot);
+		}
+
+		return createSlot(fieldClass);
+	}
+
+	static Slot createSlot(Class<?> valueClass) {
+		Class<?> scalarClass = getScalarClass(valueClass);
+
+		if (scalarClass != null)
+			return new Slot(Kind.SCALAR, scalarClass, null);
+
+		if (valueClass.isEnum())
+			return new Slot(Kind.ENUM, valueClass, null);
+
+		if (isPojo(valueClass))
+			return new Slot(Kind.POJO, valueClass, null);
+
+		return null;
+	}
+
+	// boxed class of Candid scalar, null for other classes
+	static Class<?> getScalarClass(Class<?> valueClass) {
+		if (valueClass == boolean.class || valueClass == Boolean.class)
+			return Boolean.class;
+		if (valueClass == byte.class || valueClass == Byte.class)
+			return Byte.class;
+		if (valueClass == short.class || valueClass == Short.class)
+			return Short.class;
+		if (valueClass == int.class || valueClass == Integer.class)
+			return Integer.class;
+		if (valueClass == long.class || valueClass == Long.class)
+			return Long.class;
+		if (valueClass == float.class || valueClass == Float.class)
+			return Float.class;
+		if (valueClass == double.class || valueClass == Double.class)
+			return Double.class;
+		if (valueClass == String.class || valueClass == BigInteger.class || valueClass == Principal.class)
+			return valueClass;
+
+		return null;
+	}
+
+	// plan is RECORD compiled from GsonSerializer.getIDLType of the class, or VARIANT for enums
+	IDLValue getIDLValue(GsonSerializer serializer, IDLTypePlan plan, Object value) {
+		if (this.constants != null)
+			return IDLValue.create(this.getVariant(plan, value), plan.idlType);
+
+		return this.getRecord(serializer, plan, value).getIDLValue();
+	}
+
+	RecordMap getRecord(GsonSerializer serializer, IDLTypePlan plan, Object value) {
+		RecordMap valueMap = new RecordMap(plan);
+
+		Counter counter = serializer.counter;
+
+		if (counter != null)
+			counter.enter(this.labels.length);
+
+		for (int i = 0; i < this.labels.length; i++) {
+			int index = plan.indexOf(this.labels[i].getId());
+
+			if (index < 0 || plan.plans[index] == null)
+				continue;
+
+			Object item = this.fields.get(value, i);
+
+			// Gson skips null fields
+			if (item == null)
+				continue;
+
+			IDLTypePlan itemPlan = plan.plans[index];
+
+			valueMap.put(index, getValue(serializer, itemPlan, this.slots[i], item), itemPlan.idlType);
+		}
+
+		if (counter != null)
+			counter.exit();
+
+		return valueMap;
+	}
+
+	Map<Label, Object> getVariant(IDLTypePlan plan, Object value) {
+		Label label = this.constantLabels[((Enum<?>) value).ordinal()];
+
+		int index = plan.indexOf(label.getId());
+
+		if (index < 0)
+			throw CandidError.create(CandidError.CandidErrorCode.CUSTOM, "Label " + label + " is not part of VARIANT");
+
+		Map<Label, Object> valueMap = new TreeMap<Label, Object>();
+		valueMap.put(plan.labels[index], null);
+
+		return valueMap;
+	}
+
+	static Object getValue(GsonSerializer serializer, IDLTypePlan plan, Slot slot, Object value) {
+		switch (slot.kind) {
+		case SCALAR:
+			if (value instanceof String && serializer.counter != null)
+				serializer.counter.bytes(((String) value).length());
+
+			return value;
+		case ENUM:
+		case POJO:
+			PojoCodec codec = get(slot.valueClass);
+
+			if (codec != null && plan.labels != null && (codec.constants != null) == (plan.type == Type.VARIANT)) {
+				if (codec.constants != null)
+					return codec.getVariant(plan, value);
+
+				return codec.getRecord(serializer, plan, value);
+			}
+
+			// class without codec or expected type that differs from class schema
+			IDLValueWriter writer = new IDLValueWriter(serializer, plan);
+			serializer.gson.toJson(value, slot.valueClass, writer);
+			return writer.get().getValue();
+		case OPTIONAL:
+			Optional<?> optionalValue = (Optional<?>) value;
+
+			if (!optionalValue.isPresent())
+				return Optional.empty();
+
+			return Optional.ofNullable(getValue(serializer, plan.innerPlan, slot.item, optionalValue.get()));
+		default:
+			Object[] items = slot.kind == Kind.LIST ? ((List<?>) value).toArray() : (Object[]) value;
+
+			return getArray(serializer, plan, slot.item, items);
+		}
+	}
+
+	static Object getArray(GsonSerializer serializer, IDLTypePlan plan, Slot slot, Object[] items) {
+		IDLTypePlan innerPlan = plan.innerPlan;
+
+		Counter counter = serializer.counter;
+
+		if (plan.blob) {
+			if (counter != null)
+				counter.bytes(items.length);
+
+			byte[] bytes = new byte[items.length];
+
+			for (int i = 0; i < items.length; i++)
+				bytes[i] = GsonSerializer.getNumber(items[i]).byteValue();
+
+			return bytes;
+		}
+
+		Object[] arrayValue;
+
+		if (plan.primitiveArray) {
+			if (counter != null)
+				counter.items(items.length);
+
+			arrayValue = PrimitiveArrays.create(innerPlan.type, items.length);
+
+			for (int i = 0; i < items.length; i++)
+				if (items[i] != null)
+					arrayValue[i] = PrimitiveArrays.getValue(innerPlan.type, items[i]);
+
+			return arrayValue;
+		}
+
+		if (counter != null)
+			counter.enter(items.length);
+
+		arrayValue = new Object[items.length];
+
+		for (int i = 0; i < items.length; i++)
+			if (items[i] != null)
+				arrayValue[i] = getValue(serializer, innerPlan, slot, items[i]);
+
+		if (counter != null)
+			counter.exit();
+
+		return arrayValue;
+	}
+
+	// value is RECORD or VARIANT map, OPT is unwrapped the same way JSON conversion does
+	Object getPojo(GsonDeserializer deserializer, Object value) {
+		return this.getPojo(deserializer, value, null);
+	}
+
+	// fields of target are updated in place, nested POJOs, ArrayLists and arrays of equal length are reused
+	Object getPojo(GsonDeserializer deserializer, Object value, Object target) {
+		if (value instanceof Optional)
+			value = ((Optional<?>) value).orElse(null);
+
+		if (value == null)
+			return null;
+
+		if (this.constants != null)
+			return this.getConstant(value);
+
+		if (!(value instanceof Map))
+			throw CandidError.create(CandidError.CandidErrorCode.CUSTOM,
+					"Cannot convert " + value.getClass().getName() + " to class " + this.valueClass.getName());
+
+		Map<?, ?> valueMap = (Map<?, ?>) value;
+
+		Counter counter = deserializer.counter;
+
+		if (counter != null)
+			counter.enter(valueMap.size());
+
+		Object pojo = target != null ? target : this.fields.create();
+
+		for (int i = 0; i < this.labels.length; i++) {
+			Object item = valueMap.get(this.labels[i]);
+
+			// absent fields keep their initial value
+			if (item == null && !valueMap.containsKey(this.labels[i]))
+				continue;
+
+			if (target != null && this.slots[i].kind != Kind.SCALAR && this.slots[i].kind != Kind.ENUM)
+				item = getValue(deserializer, this.slots[i], item, this.fields.get(pojo, i));
+			else
+				item = getValue(deserializer, this.slots[i], item, null);
+
+			if (item == null && this.primitive[i])
+				continue;
+
+			this.fields.set(pojo, i, item);
+		}
+
+		if (counter != null)
+			counter.exit();
+
+		return pojo;
+	}
+
+	Object getConstant(Object value) {
+		if (value instanceof Map) {
+			Map<?, ?> valueMap = (Map<?, ?>) value;
+
+			if (valueMap.size() == 1) {
+				long id = ((Label) valueMap.keySet().iterator().next()).getId();
+
+				for (int i = 0; i < this.constantLabels.length; i++)
+					if (this.constantLabels[i].getId() == id)
+						return this.constants[i];
+			}
+		} else if (value instanceof String) {
+			// TEXT is read as constant name, same as Gson does
+			for (int i = 0; i < this.constantLabels.length; i++)
+				if (LabelCache.DEFAULT.getName(this.constantLabels[i]).equals(value))
+					return this.constants[i];
+		}
+
+		throw CandidError.create(CandidError.CandidErrorCode.CUSTOM,
+				"Cannot convert " + value + " to enum " + this.valueClass.getName());
+	}
+
+	// current is previous field or item value to reuse, null if new one is created
+	static Object getValue(GsonDeserializer deserializer, Slot slot, Object value, Object current) {
+		if (value instanceof Optional && slot.kind != Kind.OPTIONAL)
+			value = ((Optional<?>) value).orElse(null);
+
+		if (value == null)
+			return null;
+
+		switch (slot.kind) {
+		case SCALAR:
+			if (value instanceof String && deserializer.counter != null)
+				deserializer.counter.bytes(((String) value).length());
+
+			return getScalar(deserializer, slot.valueClass, value);
+		case ENUM:
+		case POJO:
+			PojoCodec codec = get(slot.valueClass);
+
+			if (codec != null)
+				return codec.getPojo(deserializer, value, current != null && current.getClass() == slot.valueClass ? current : null);
+
+			IDLTypePlan plan = deserializer.typeCache.getPlan(slot.valueClass);
+
+			return deserializer.getPojo(IDLValue.create(value, plan.idlType), plan, slot.valueClass);
+		case OPTIONAL:
+			if (value instanceof Optional)
+				value = ((Optional<?>) value).orElse(null);
+
+			Optional<?> currentOptional = current instanceof Optional ? (Optional<?>) current : Optional.empty();
+
+			Object optionalValue = getValue(deserializer, slot.item, value, currentOptional.orElse(null));
+
+			// POJO updated in place keeps its Optional
+			if (optionalValue != null && currentOptional.isPresent() && optionalValue == currentOptional.get())
+				return currentOptional;
+
+			return Optional.ofNullable(optionalValue);
+		default:
+			return getArray(deserializer, slot, PrimitiveArrays.toArray(value), current);
+		}
+	}
+
+	// current is reused if it is ArrayList, or array of the same length and class
+	static Object getArray(GsonDeserializer deserializer, Slot slot, Object[] items, Object current) {
+		Counter counter = deserializer.counter;
+
+		if (counter != null)
+			counter.enter(items.length);
+
+		Object result;
+
+		if (slot.kind == Kind.LIST) {
+			List<Object> listValue;
+
+			if (current instanceof ArrayList) {
+				// items of List field are replaced in place with values of its item class
+				@SuppressWarnings("unchecked")
+				List<Object> currentList = (ArrayList<Object>) current;
+
+				listValue = currentList;
+
+				for (int i = 0; i < items.length; i++) {
+					if (i < listValue.size())
+						listValue.set(i, getValue(deserializer, slot.item, items[i], listValue.get(i)));
+					else
+						listValue.add(getValue(deserializer, slot.item, items[i], null));
+				}
+
+				if (listValue.size() > items.length)
+					listValue.subList(items.length, listValue.size()).clear();
+			} else {
+				listValue = new ArrayList<Object>(items.length);
+
+				for (Object item : items)
+					listValue.add(getValue(deserializer, slot.item, item, null));
+			}
+
+			result = listValue;
+		} else {
+			Object[] arrayValue;
+
+			if (current instanceof Object[] && ((Object[]) current).length == items.length
+					&& current.getClass().getComponentType() == slot.valueClass)
+				arrayValue = (Object[]) current;
+			else
+				arrayValue = (Object[]) Array.newInstance(slot.valueClass, items.length);
+
+			for (int i = 0; i < items.length; i++)
+				arrayValue[i] = getValue(deserializer, slot.item, items[i], arrayValue[i]);
+
+			result = arrayValue;
+		}
+
+		if (counter != null)
+			counter.exit();
+
+		return result;
+	}
+
+	// Candid value to field class, numbers are narrowed the same way Gson reads JSON numbers
+	static Object getScalar(GsonDeserializer deserializer, Class<?> valueClass, Object value) {
+		if (valueClass.isInstance(value))
+			return value;
+
+		if (valueClass == Boolean.class)
+			return GsonSerializer.getBoolean(value);
+		if (valueClass == String.class)
+			return value instanceof Principal ? deserializer.getText((Principal) value) : value.toString();
+		if (valueClass == BigInteger.class)
+			return GsonSerializer.getBigInteger(value);
+		if (valueClass == Principal.class)
+			return deserializer.getPrincipal(value.toString());
+
+		Number number = GsonSerializer.getNumber(value);
+
+		if (valueClass == Long.class)
+			return number.longValue();
+		if (valueClass == Integer.class)
+			return number.intValue();
+		if (valueClass == Short.class)
+			return number.shortValue();
+		if (valueClass == Byte.class)
+			return number.byteValue();
+		if (valueClass == Float.class)
+			return number.floatValue();
+
+		return number.doubleValue();
+	}
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2021 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.ic4j.candid.gson;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.Arrays;
+
+import org.ic4j.candid.CandidError;
+import org.ic4j.candid.types.Type;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/*
+ * Fast paths for VEC of fixed width primitive types, values are converted in a single loop
+ * without IDLValue or JsonPrimitive per item. Candid values are typed boxed arrays (Long[], Double[], ...),
+ * on output primitive arrays (long[], int[], double[], ...) are accepted as well.
+ */
+final class PrimitiveArrays {
+	static final int INITIAL_SIZE = 16;
+
+	PrimitiveArrays() {
+	}
+
+	static boolean isFixedWidth(Type type) {
+		switch (type) {
+		case BOOL:
+		case INT8:
+		case INT16:
+		case INT32:
+		case INT64:
+		case NAT8:
+		case NAT16:
+		case NAT32:
+		case NAT64:
+		case FLOAT32:
+		case FLOAT64:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	static Object[] create(Type type, int size) {
+		switch (type) {
+		case BOOL:
+			return new Boolean[size];
+		case INT8:
+		case NAT8:
+			return new Byte[size];
+		case INT16:
+		case NAT16:
+			return new Short[size];
+		case INT32:
+		case NAT32:
+			return new Integer[size];
+		case INT64:
+		case NAT64:
+			return new Long[size];
+		case FLOAT32:
+			return new Float[size];
+		case FLOAT64:
+			return new Double[size];
+		default:
+			return new Object[size];
+		}
+	}
+
+	// same conversion as GsonSerializer.getPrimitiveIDLValue, value is Boolean, Number or String
+	static Object getValue(Type type, Object value) {
+		switch (type) {
+		case BOOL:
+			return GsonSerializer.getBoolean(value);
+		case INT8:
+		case NAT8:
+			return GsonSerializer.getNumber(value).byteValue();
+		case INT16:
+		case NAT16:
+			return GsonSerializer.getNumber(value).shortValue();
+		case INT32:
+		case NAT32:
+			return GsonSerializer.getNumber(value).intValue();
+		case INT64:
+		case NAT64:
+			return GsonSerializer.getNumber(value).longValue();
+		case FLOAT32:
+			return GsonSerializer.getNumber(value).floatValue();
+		case FLOAT64:
+			return GsonSerializer.getNumber(value).doubleValue();
+		default:
+			throw CandidError.create(CandidError.CandidErrorCode.CUSTOM, "Cannot convert type " + type.name());
+		}
+	}
+
+	static Object[] getArray(Type type, JsonArray arrayNode) {
+		Object[] arrayValue = create(type, arrayNode.size());
+
+		for (int i = 0; i < arrayValue.length; i++) {
+			JsonElement item = arrayNode.get(i);
+
+			if (!item.isJsonPrimitive())
+				throw CandidError.create(CandidError.CandidErrorCode.CUSTOM, "Cannot convert type " + type.name());
+
+			JsonPrimitive primitive = (JsonPrimitive) item;
+
+			if (primitive.isBoolean())
+				arrayValue[i] = getValue(type, primitive.getAsBoolean());
+			else if (primitive.isNumber())
+				arrayValue[i] = getValue(type, primitive.getAsNumber());
+			else
+				arrayValue[i] = getValue(type, primitive.getAsString());
+		}
+
+		return arrayValue;
+	}
+
+	// reads next item, null if JSON token needs the generic conversion
+	static Object read(Type type, JsonReader reader) throws IOException {
+		JsonToken token = reader.peek();
+
+		if (type == Type.BOOL)
+			return token == JsonToken.BOOLEAN ? reader.nextBoolean() : null;
+
+		if (token != JsonToken.NUMBER)
+			return null;
+
+		switch (type) {
+		case INT8:
+		case NAT8:
+			return (byte) nextInt(reader);
+		case INT16:
+		case NAT16:
+			return (short) nextInt(reader);
+		case INT32:
+		case NAT32:
+			return nextInt(reader);
+		case INT64:
+		case NAT64:
+			return nextLong(reader);
+		case FLOAT32:
+			return GsonSerializer.getNumber(reader.nextString()).floatValue();
+		default:
+			try {
+				return reader.nextDouble();
+			} catch (NumberFormatException e) {
+				return GsonSerializer.getNumber(reader.nextString()).doubleValue();
+			}
+		}
+	}
+
+	// JsonReader keeps the number buffered if it does not fit, then it is converted the same way as LazilyParsedNumber
+	static int nextInt(JsonReader reader) throws IOException {
+		try {
+			return reader.nextInt();
+		} catch (NumberFormatException e) {
+			return GsonSerializer.getNumber(reader.nextString()).intValue();
+		}
+	}
+
+	static long nextLong(JsonReader reader) throws IOException {
+		try {
+			return reader.nextLong();
+		} catch (NumberFormatException e) {
+			return GsonSerializer.getNumber(reader.nextString()).longValue();
+		}
+	}
+
+	static Object[] grow(Object[] arrayValue) {
+		return Arrays.copyOf(arrayValue, Math.max(INITIAL_SIZE, arrayValue.length << 1));
+	}
+
+	// Object[] view of primitive arrays
+	static Object[] toArray(Object value) {
+		if (value instanceof Object[])
+			return (Object[]) value;
+
+		int size = Array.getLength(value);
+		Object[] arrayValue = new Object[size];
+
+		for (int i = 0; i < size; i++)
+			arrayValue[i] = Array.get(value, i);
+
+		return arrayValue;
+	}
+
+	static void write(Type type, Object value, JsonWriter writer) throws IOException {
+		writer.beginArray();
+
+		if (value instanceof long[]) {
+			for (long item : (long[]) value)
+				writer.value(item);
+		} else if (value instanceof int[]) {
+			for (int item : (int[]) value)
+				writer.value(item);
+		} else if (value instanceof short[]) {
+			for (short item : (short[]) value)
+				writer.value(item);
+		} else if (value instanceof double[]) {
+			for (double item : (double[]) value)
+				writer.value(item);
+		} else if (value instanceof float[]) {
+			for (float item : (float[]) value)
+				writer.value((Float) item);
+		} else if (value instanceof boolean[]) {
+			for (boolean item : (boolean[]) value)
+				writer.value(item);
+		} else {
+			for (Object item : (Object[]) value) {
+				if (item == null)
+					writer.nullValue();
+				else if (type == Type.BOOL)
+					writer.value((Boolean) item);
+				else if (type == Type.FLOAT32)
+					writer.value((Float) item);
+				else if (type == Type.FLOAT64)
+					writer.value(((Double) item).doubleValue());
+				else
+					writer.value(((Number) item).longValue());
+			}
+		}
+
+		writer.endArray();
+	}
+
+	static JsonArray getJsonArray(Object value) {
+		JsonArray arrayNode = new JsonArray(Array.getLength(value));
+
+		if (value instanceof long[]) {
+			for (long item : (long[]) value)
+				arrayNode.add(item);
+		} else if (value instanceof int[]) {
+			for (int item : (int[]) value)
+				arrayNode.add(item);
+		} else if (value instanceof short[]) {
+			for (short item : (short[]) value)
+				arrayNode.add(item);
+		} else if (value instanceof double[]) {
+			for (double item : (double[]) value)
+				arrayNode.add(item);
+		} else if (value instanceof float[]) {
+			for (float item : (float[]) value)
+				arrayNode.add(item);
+		} else if (value instanceof boolean[]) {
+			for (boolean item : (boolean[]) value)
+				arrayNode.add(item);
+		} else {
+			for (Object item : (Object[]) value) {
+				if (item instanceof Boolean)
+					arrayNode.add((Boolean) item);
+				else
+					arrayNode.add((Number) item);
+			}
+		}
+
+		return arrayNode;
+	}
+}
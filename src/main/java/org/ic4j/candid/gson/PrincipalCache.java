@@ -0,0 +1,203 @@
+/*
+ * Copyright 2021 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.candid.gson;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.ic4j.types.Principal;
+
+/*
+ * Bounded LRU cache of Principal text parsing and formatting, so principals that repeat across values
+ * are decoded from base32 and checksummed once. Entries are split into stripes by hash, each stripe is an access ordered
+ * LinkedHashMap under its own lock, each direction holds up to maxSize entries.
+ * Converters do not use it unless it is set, one cache can be shared by any number of them.
+ */
+public final class PrincipalCache {
+	public static final int DEFAULT_MAX_SIZE = 4096;
+
+	static final int MAX_STRIPES = 16;
+
+	static final PrincipalCache DEFAULT = new PrincipalCache(DEFAULT_MAX_SIZE);
+
+	final int maxSize;
+
+	// text to Principal and Principal to text, same stripe count
+	final Stripe<String, Principal>[] principals;
+	final Stripe<Principal, String>[] texts;
+
+	final LongAdder hits = new LongAdder();
+	final LongAdder misses = new LongAdder();
+
+	PrincipalCache(int maxSize) {
+		if (maxSize < 0)
+			throw new IllegalArgumentException("Cache size cannot be negative");
+
+		this.maxSize = maxSize;
+
+		// every stripe holds at least one entry, so small caches have fewer stripes
+		int stripes = 1;
+
+		while (stripes < MAX_STRIPES && stripes * 2 <= maxSize)
+			stripes <<= 1;
+
+		this.principals = stripes(stripes, maxSize / stripes);
+		this.texts = stripes(stripes, maxSize / stripes);
+	}
+
+	// generic arrays cannot be created, every element is Stripe<K, V>, so the cast is safe
+	@SuppressWarnings("unchecked")
+	static <K, V> Stripe<K, V>[] stripes(int count, int maxSize) {
+		Stripe<K, V>[] stripes = (Stripe<K, V>[]) new Stripe<?, ?>[count];
+
+		for (int i = 0; i < count; i++)
+			stripes[i] = new Stripe<K, V>(maxSize);
+
+		return stripes;
+	}
+
+	public static PrincipalCache create(int maxSize) {
+		return new PrincipalCache(maxSize);
+	}
+
+	public static PrincipalCache getDefault() {
+		return DEFAULT;
+	}
+
+	public Principal getPrincipal(String text) {
+		Stripe<String, Principal> stripe = this.principals[this.indexOf(text)];
+
+		Principal principal;
+
+		synchronized (stripe) {
+			principal = stripe.get(text);
+		}
+
+		if (principal != null) {
+			this.hits.increment();
+			return principal;
+		}
+
+		this.misses.increment();
+
+		// parsed outside of the lock, invalid text is not cached
+		principal = Principal.fromString(text);
+
+		synchronized (stripe) {
+			stripe.put(text, principal);
+		}
+
+		return principal;
+	}
+
+	public String getText(Principal principal) {
+		Stripe<Principal, String> stripe = this.texts[this.indexOf(principal)];
+
+		String text;
+
+		synchronized (stripe) {
+			text = stripe.get(principal);
+		}
+
+		if (text != null) {
+			this.hits.increment();
+			return text;
+		}
+
+		this.misses.increment();
+
+		text = principal.toString();
+
+		synchronized (stripe) {
+			stripe.put(principal, text);
+		}
+
+		return text;
+	}
+
+	int indexOf(Object key) {
+		int hash = key.hashCode();
+
+		return (hash ^ (hash >>> 16)) & (this.principals.length - 1);
+	}
+
+	public void clear() {
+		for (int i = 0; i < this.principals.length; i++) {
+			synchronized (this.principals[i]) {
+				this.principals[i].clear();
+			}
+
+			synchronized (this.texts[i]) {
+				this.texts[i].clear();
+			}
+		}
+	}
+
+	// entries in both directions
+	public int size() {
+		int size = 0;
+
+		for (int i = 0; i < this.principals.length; i++) {
+			synchronized (this.principals[i]) {
+				size += this.principals[i].size();
+			}
+
+			synchronized (this.texts[i]) {
+				size += this.texts[i].size();
+			}
+		}
+
+		return size;
+	}
+
+	public int getMaxSize() {
+		return this.maxSize;
+	}
+
+	public long getHitCount() {
+		return this.hits.sum();
+	}
+
+	public long getMissCount() {
+		return this.misses.sum();
+	}
+
+	public double getHitRate() {
+		long hits = this.hits.sum();
+		long total = hits + this.misses.sum();
+
+		return total == 0 ? 0.0 : (double) hits / total;
+	}
+
+	static final class Stripe<K, V> extends LinkedHashMap<K, V> {
+		private static final long serialVersionUID = 1L;
+
+		final int maxSize;
+
+		Stripe(int maxSize) {
+			super(16, 0.75f, true);
+			this.maxSize = maxSize;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+			return this.size() > this.maxSize;
+		}
+	}
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2021 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.candid.gson;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.ic4j.candid.CandidError;
+import org.ic4j.candid.parser.IDLType;
+import org.ic4j.candid.types.Type;
+
+/*
+ * Field paths compiled against IDLTypePlan, GsonDeserializer converts only the selected labels and VEC items.
+ * Paths are a JSONPath subset, e.g. [*].1.price or $.items[0].name. Segments are field names, tuple label ids, VEC indexes,
+ * or * for every field or item, one VEC is selected either by * or by indexes. OPT values are selected through. Selected JSON has the shape GsonDeserializer gives
+ * to the value with only the selected labels, so tuple fields are renumbered. Parts of the type without inner types are selected whole.
+ */
+public final class Projection {
+	final IDLTypePlan plan;
+
+	// whole subtree
+	boolean all;
+
+	// VEC, every item or items by index
+	Projection items;
+	TreeMap<Integer, Projection> indexes;
+
+	// RECORD and VARIANT, by plan label index, null if label is not selected
+	Projection[] fields;
+
+	Projection(IDLTypePlan plan) {
+		this.plan = plan;
+	}
+
+	public static Projection compile(IDLType idlType, String... paths) {
+		return compile(IDLTypePlan.compile(idlType), paths);
+	}
+
+	public static Projection compile(IDLTypePlan plan, String... paths) {
+		if (plan == null)
+			throw new IllegalArgumentException("IDLType is not defined");
+
+		if (paths == null || paths.length == 0)
+			throw new IllegalArgumentException("Paths are not defined");
+
+		Projection projection = new Projection(plan);
+
+		for (String path : paths)
+			projection.add(parse(path), 0, path);
+
+		return projection;
+	}
+
+	public IDLTypePlan getPlan() {
+		return this.plan;
+	}
+
+	void add(List<String> segments, int position, String path) {
+		if (this.all)
+			return;
+
+		if (position == segments.size()) {
+			// selected whole, children are not needed
+			this.all = true;
+			this.items = null;
+			this.indexes = null;
+			this.fields = null;
+			return;
+		}
+
+		IDLTypePlan plan = unwrap(this.plan);
+
+		if (plan == null || plan.inferred) {
+			this.add(segments, segments.size(), path);
+			return;
+		}
+
+		String segment = segments.get(position);
+
+		switch (plan.type) {
+		case VEC:
+			// paths of one VEC select either every item or items by index
+			if ("*".equals(segment) ? this.indexes != null : this.items != null)
+				throw CandidError.create(CandidError.CandidErrorCode.CUSTOM,
+						"Path " + path + " mixes [*] and VEC indexes");
+
+			if ("*".equals(segment)) {
+				if (this.items == null)
+					this.items = new Projection(plan.innerPlan);
+
+				this.items.add(segments, position + 1, path);
+				return;
+			}
+
+			int index = parseIndex(segment);
+
+			if (index < 0)
+				throw CandidError.create(CandidError.CandidErrorCode.CUSTOM,
+						"Segment " + segment + " of path " + path + " is not VEC index");
+
+			if (this.indexes == null)
+				this.indexes = new TreeMap<Integer, Projection>();
+
+			this.indexes.computeIfAbsent(index, key -> new Projection(plan.innerPlan)).add(segments, position + 1, path);
+			return;
+		case RECORD:
+		case VARIANT:
+			if (this.fields == null)
+				this.fields = new Projection[plan.labels.length];
+
+			if ("*".equals(segment)) {
+				for (int i = 0; i < plan.labels.length; i++)
+					this.getField(plan, i).add(segments, position + 1, path);
+				return;
+			}
+
+			int fieldIndex = -1;
+
+			// tuple label id, then field name
+			if (parseIndex(segment) >= 0)
+				fieldIndex = plan.indexOf((long) parseIndex(segment));
+
+			if (fieldIndex < 0)
+				fieldIndex = plan.indexOf(segment);
+
+			if (fieldIndex < 0)
+				throw CandidError.create(CandidError.CandidErrorCode.CUSTOM,
+						"Field " + segment + " of path " + path + " is not part of type");
+
+			this.getField(plan, fieldIndex).add(segments, position + 1, path);
+			return;
+		default:
+			throw CandidError.create(CandidError.CandidErrorCode.CUSTOM,
+					"Segment " + segment + " of path " + path + " selects from type " + plan.type);
+		}
+	}
+
+	Projection getField(IDLTypePlan plan, int index) {
+		if (this.fields[index] == null)
+			this.fields[index] = new Projection(plan.plans[index]);
+
+		return this.fields[index];
+	}
+
+	// OPT selects through to inner type
+	static IDLTypePlan unwrap(IDLTypePlan plan) {
+		while (plan != null && !plan.inferred && plan.type == Type.OPT)
+			plan = plan.innerPlan;
+
+		return plan;
+	}
+
+	static int parseIndex(String segment) {
+		if (segment.isEmpty() || segment.length() > 9)
+			return -1;
+
+		for (int i = 0; i < segment.length(); i++)
+			if (!Character.isDigit(segment.charAt(i)))
+				return -1;
+
+		return Integer.parseInt(segment);
+	}
+
+	// $.a[0].b, [*].1.price and a.*.b are split into segments
+	static List<String> parse(String path) {
+		if (path == null)
+			throw new IllegalArgumentException("Path is not defined");
+
+		List<String> segments = new ArrayList<String>();
+
+		String value = path.startsWith("$") ? path.substring(1) : path;
+
+		int position = 0;
+
+		while (position < value.length()) {
+			char c = value.charAt(position);
+
+			if (c == '.') {
+				position++;
+				continue;
+			}
+
+			if (c == '[') {
+				int end = value.indexOf(']', position);
+
+				if (end < 0)
+					throw CandidError.create(CandidError.CandidErrorCode.CUSTOM, "Unclosed [ in path " + path);
+
+				segments.add(value.substring(position + 1, end).trim());
+				position = end + 1;
+				continue;
+			}
+
+			int end = position;
+
+			while (end < value.length() && value.charAt(end) != '.' && value.charAt(end) != '[')
+				end++;
+
+			segments.add(value.substring(position, end));
+			position = end;
+		}
+
+		return segments;
+	}
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2021 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+package org.ic4j.candid.gson;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.ic4j.candid.CandidError;
+import org.ic4j.candid.parser.IDLType;
+import org.ic4j.candid.parser.IDLValue;
+import org.ic4j.candid.types.Label;
+import org.ic4j.candid.types.Type;
+
+/*
+ * RECORD and VARIANT value backed by the label arrays of its IDLTypePlan, which are shared by every value of that type.
+ * Each value holds only its own value array. Iteration is in label id order, same as TreeMap with Label keys.
+ * The first put, remove or clear copies the value into the TreeMap it replaces, later calls go to the copy.
+ * Typed VARIANT values have the expected type with all its labels.
+ */
+final class RecordMap extends AbstractMap<Label, Object> {
+	// marks labels without value, null is a valid value
+	static final Object ABSENT = new Object();
+
+	final IDLTypePlan plan;
+	final Object[] values;
+
+	// item types, only kept if plan has inferred items
+	final IDLType[] types;
+
+	int size;
+
+	// null until the map is changed
+	TreeMap<Label, Object> copy;
+
+	RecordMap(IDLTypePlan plan) {
+		this.plan = plan;
+		this.values = new Object[plan.labels.length];
+
+		Arrays.fill(this.values, ABSENT);
+
+		if (plan.typed)
+			this.types = null;
+		else
+			this.types = new IDLType[plan.labels.length];
+	}
+
+	void put(int index, IDLValue item) {
+		this.put(index, item.getValue(), item.getIDLType());
+	}
+
+	void put(int index, Object value, IDLType idlType) {
+		if (this.values[index] == ABSENT)
+			this.size++;
+
+		this.values[index] = value;
+
+		if (this.types != null)
+			this.types[index] = idlType;
+	}
+
+	// expected type if it describes the value exactly, otherwise type of the labels present
+	IDLType getIDLType() {
+		if (this.types == null && (this.size == this.values.length || this.plan.type != Type.RECORD))
+			return this.plan.idlType;
+
+		Map<Label, IDLType> typeMap = new TreeMap<Label, IDLType>();
+
+		for (int i = 0; i < this.values.length; i++)
+			if (this.values[i] != ABSENT)
+				typeMap.put(this.plan.labels[i], this.types != null ? this.types[i] : this.plan.plans[i].idlType);
+
+		return IDLType.createType(this.plan.type, typeMap);
+	}
+
+	IDLValue getIDLValue() {
+		if (this.plan.absentNone && this.size < this.values.length)
+			for (int i = 0; i < this.values.length; i++)
+				if (this.values[i] == ABSENT && this.plan.plans[i] != null) {
+					if (this.plan.plans[i].type != Type.OPT) {
+						if (this.plan.strict)
+							throw CandidError.create(CandidError.CandidErrorCode.CUSTOM,
+									"Field " + this.plan.names[i] + " is missing from inferred type");
+
+						continue;
+					}
+
+					this.values[i] = Optional.empty();
+					this.size++;
+
+					if (this.types != null)
+						this.types[i] = this.plan.plans[i].idlType;
+				}
+
+		return IDLValue.create(this, this.getIDLType());
+	}
+
+	TreeMap<Label, Object> getCopy() {
+		if (this.copy == null) {
+			TreeMap<Label, Object> copy = new TreeMap<Label, Object>();
+
+			for (int i = 0; i < this.values.length; i++)
+				if (this.values[i] != ABSENT)
+					copy.put(this.plan.labels[i], this.values[i]);
+
+			this.copy = copy;
+		}
+
+		return this.copy;
+	}
+
+	@Override
+	public Object put(Label key, Object value) {
+		return this.getCopy().put(key, value);
+	}
+
+	@Override
+	public Object remove(Object key) {
+		return this.getCopy().remove(key);
+	}
+
+	@Override
+	public void clear() {
+		this.getCopy().clear();
+	}
+
+	@Override
+	public int size() {
+		if (this.copy != null)
+			return this.copy.size();
+
+		return this.size;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		if (this.copy != null)
+			return this.copy.containsKey(key);
+
+		int index = this.indexOf(key);
+
+		return index >= 0 && this.values[index] != ABSENT;
+	}
+
+	@Override
+	public Object get(Object key) {
+		if (this.copy != null)
+			return this.copy.get(key);
+
+		int index = this.indexOf(key);
+
+		if (index < 0 || this.values[index] == ABSENT)
+			return null;
+
+		return this.values[index];
+	}
+
+	int indexOf(Object key) {
+		if (!(key instanceof Label))
+			return -1;
+
+		return this.plan.indexOf(((Label) key).getId());
+	}
+
+	@Override
+	public Set<Map.Entry<Label, Object>> entrySet() {
+		if (this.copy != null)
+			return this.copy.entrySet();
+
+		return new AbstractSet<Map.Entry<Label, Object>>() {
+			@Override
+			public int size() {
+				return RecordMap.this.size;
+			}
+
+			@Override
+			public Iterator<Map.Entry<Label, Object>> iterator() {
+				return new Iterator<Map.Entry<Label, Object>>() {
+					int index = next(0);
+
+					int next(int index) {
+						while (index < RecordMap.this.values.length && RecordMap.this.values[index] == ABSENT)
+							index++;
+
+						return index;
+					}
+
+					@Override
+					public boolean hasNext() {
+						return this.index < RecordMap.this.values.length;
+					}
+
+					@Override
+					public Map.Entry<Label, Object> next() {
+						if (!this.hasNext())
+							throw new NoSuchElementException();
+
+						Map.Entry<Label, Object> entry = new AbstractMap.SimpleImmutableEntry<Label, Object>(
+								RecordMap.this.plan.labels[this.index], RecordMap.this.values[this.index]);
+
+						this.index = this.next(this.index + 1);
+
+						return entry;
+					}
+				};
+			}
+		};
+	}
+}
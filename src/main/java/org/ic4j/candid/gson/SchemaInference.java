@@ -0,0 +1,482 @@
+/*
+ * Copyright 2021 Exilor Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+
+
+package org.ic4j.candid.gson;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.ic4j.candid.CandidError;
+import org.ic4j.candid.parser.IDLType;
+import org.ic4j.candid.parser.IDLValue;
+import org.ic4j.candid.types.Label;
+import org.ic4j.candid.types.Type;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/*
+ * Schema of untyped JSON values, inferred once per value instead of once per item.
+ * Array item type is merged from the first sampleSize items, remaining items are only checked against it, then the whole value
+ * is converted by the compiled plan. Items that do not fit either fail conversion or widen the type.
+ * Inferred plans are cached by shape key, built from field names and token kinds of the value, or of its first item for arrays.
+ * Values of cached shapes are converted by the cached plan right away, inferred plans are strict, so an item that does not fit
+ * fails conversion, and only then the value is checked item by item and widened.
+ * Numbers are inferred as INT, or FLOAT64 if they have fraction or exponent, missing and null fields as OPT.
+ */
+public final class SchemaInference {
+	public static final int DEFAULT_SAMPLE_SIZE = 64;
+	public static final int DEFAULT_MAX_SIZE = 256;
+
+	// longer shape keys are not cached
+	static final int MAX_KEY_LENGTH = 1024;
+
+	public enum Mismatch {
+		FAIL, WIDEN
+	}
+
+	final int sampleSize;
+	final Mismatch mismatch;
+	final int maxSize;
+
+	final ConcurrentHashMap<String, IDLTypePlan> plans = new ConcurrentHashMap<String, IDLTypePlan>();
+
+	final AtomicInteger size = new AtomicInteger();
+	final LongAdder hits = new LongAdder();
+	final LongAdder misses = new LongAdder();
+
+	SchemaInference(int sampleSize, Mismatch mismatch, int maxSize) {
+		if (sampleSize < 1)
+			throw new IllegalArgumentException("Sample size must be positive");
+
+		if (maxSize < 0)
+			throw new IllegalArgumentException("Cache size cannot be negative");
+
+		this.sampleSize = sampleSize;
+		this.mismatch = mismatch == null ? Mismatch.WIDEN : mismatch;
+		this.maxSize = maxSize;
+	}
+
+	public static SchemaInference create() {
+		return new SchemaInference(DEFAULT_SAMPLE_SIZE, Mismatch.WIDEN, DEFAULT_MAX_SIZE);
+	}
+
+	public static SchemaInference create(int sampleSize, Mismatch mismatch) {
+		return new SchemaInference(sampleSize, mismatch, DEFAULT_MAX_SIZE);
+	}
+
+	public static SchemaInference create(int sampleSize, Mismatch mismatch, int maxSize) {
+		return new SchemaInference(sampleSize, mismatch, maxSize);
+	}
+
+	// plan that fits the whole value
+	public IDLTypePlan getPlan(JsonElement value) {
+		String key = getShapeKey(value);
+
+		IDLTypePlan plan = key == null ? null : this.plans.get(key);
+
+		if (plan == null)
+			return this.getInferredPlan(key, value);
+
+		this.hits.increment();
+
+		return this.store(key, this.check(plan, value, 0));
+	}
+
+	// cached plan converts the value in one pass, items are checked only if conversion fails
+	// FAIL applies only to items past the sample, so value that does not fit cached plan is inferred again
+	IDLValue convert(GsonSerializer serializer, JsonElement value) {
+		String key = getShapeKey(value);
+
+		IDLTypePlan plan = key == null ? null : this.plans.get(key);
+
+		if (plan == null)
+			return serializer.getIDLValue(this.getInferredPlan(key, value), value);
+
+		this.hits.increment();
+
+		try {
+			return serializer.getIDLValue(plan, value);
+		} catch (CandidError e) {
+			if (Limits.isExceeded(e))
+				throw e;
+		}
+
+		if (this.mismatch == Mismatch.FAIL)
+			return serializer.getIDLValue(this.getInferredPlan(key, value), value);
+
+		return serializer.getIDLValue(this.store(key, this.check(plan, value, 0)), value);
+	}
+
+	// sampled items fit by construction, remaining ones are checked
+	IDLTypePlan getInferredPlan(String key, JsonElement value) {
+		this.misses.increment();
+
+		IDLTypePlan plan = compile(this.infer(value));
+
+		int start;
+
+		if (value.isJsonArray())
+			start = Math.min(this.sampleSize, value.getAsJsonArray().size());
+		else
+			start = 1;
+
+		return this.store(key, this.check(plan, value, start));
+	}
+
+	IDLTypePlan store(String key, IDLTypePlan plan) {
+		if (key != null && plan != this.plans.get(key)) {
+			if (this.plans.containsKey(key))
+				this.plans.put(key, plan);
+			else if (this.reserve() && this.plans.putIfAbsent(key, plan) != null)
+				this.size.decrementAndGet();
+		}
+
+		return plan;
+	}
+
+	IDLTypePlan check(IDLTypePlan plan, JsonElement value, int start) {
+		if (value.isJsonArray() && plan.type == Type.VEC && !plan.inferred) {
+			JsonArray arrayNode = (JsonArray) value;
+
+			for (int i = start; i < arrayNode.size(); i++) {
+				JsonElement item = arrayNode.get(i);
+
+				if (fits(plan.innerPlan, item))
+					continue;
+
+				if (this.mismatch == Mismatch.FAIL)
+					throw CandidError.create(CandidError.CandidErrorCode.CUSTOM,
+							"Item " + i + " does not match inferred type " + plan.innerPlan.type);
+
+				// widened type accepts every value the previous one did, so checked items stay valid
+				plan = compile(IDLType.createType(Type.VEC, merge(plan.innerPlan.idlType, this.infer(item))));
+			}
+
+			return plan;
+		}
+
+		if (start > 0 || fits(plan, value))
+			return plan;
+
+		if (this.mismatch == Mismatch.FAIL)
+			throw CandidError.create(CandidError.CandidErrorCode.CUSTOM,
+					"Value does not match inferred type " + plan.type);
+
+		return compile(merge(plan.idlType, this.infer(value)));
+	}
+
+	public IDLType infer(JsonElement value) {
+		if (value == null || value.isJsonNull())
+			return IDLType.createType(Type.NULL);
+
+		if (value.isJsonPrimitive()) {
+			JsonPrimitive primitiveValue = (JsonPrimitive) value;
+
+			if (primitiveValue.isBoolean())
+				return IDLType.createType(Type.BOOL);
+			else if (primitiveValue.isString())
+				return IDLType.createType(Type.TEXT);
+			else if (isIntegral(primitiveValue))
+				return IDLType.createType(Type.INT);
+			else
+				return IDLType.createType(Type.FLOAT64);
+		}
+
+		if (value.isJsonArray()) {
+			JsonArray arrayNode = (JsonArray) value;
+
+			IDLType innerType = null;
+
+			for (int i = 0; i < arrayNode.size() && i < this.sampleSize; i++)
+				innerType = merge(innerType, this.infer(arrayNode.get(i)));
+
+			// empty array, item type is left to inference
+			if (innerType == null)
+				return IDLType.createType(Type.VEC);
+
+			return IDLType.createType(Type.VEC, innerType);
+		}
+
+		Map<Label, IDLType> typeMap = new TreeMap<Label, IDLType>();
+
+		for (Map.Entry<String, JsonElement> entry : ((JsonObject) value).entrySet())
+			typeMap.put(LabelCache.DEFAULT.getLabel(entry.getKey()), this.infer(entry.getValue()));
+
+		return IDLType.createType(Type.RECORD, typeMap);
+	}
+
+	// narrowest type both types fit in, null type is unknown
+	static IDLType merge(IDLType first, IDLType second) {
+		if (first == null)
+			return second;
+
+		if (second == null)
+			return first;
+
+		Type firstType = first.getType();
+		Type secondType = second.getType();
+
+		if (firstType == Type.NULL)
+			return secondType == Type.NULL ? first : optional(second);
+
+		if (secondType == Type.NULL)
+			return optional(first);
+
+		if (firstType == Type.OPT || secondType == Type.OPT) {
+			IDLType firstInner = firstType == Type.OPT ? first.getInnerType() : first;
+			IDLType secondInner = secondType == Type.OPT ? second.getInnerType() : second;
+
+			return optional(merge(firstInner, secondInner));
+		}
+
+		if (firstType == Type.VEC && secondType == Type.VEC) {
+			IDLType innerType = merge(first.getInnerType(), second.getInnerType());
+
+			return innerType == null ? first : IDLType.createType(Type.VEC, innerType);
+		}
+
+		if (firstType == Type.RECORD && secondType == Type.RECORD) {
+			Map<Label, IDLType> typeMap = new TreeMap<Label, IDLType>();
+
+			for (Map.Entry<Label, IDLType> entry : first.getTypeMap().entrySet()) {
+				IDLType secondField = second.getTypeMap().get(entry.getKey());
+
+				typeMap.put(entry.getKey(),
+						secondField == null ? optional(entry.getValue()) : merge(entry.getValue(), secondField));
+			}
+
+			for (Map.Entry<Label, IDLType> entry : second.getTypeMap().entrySet())
+				if (!typeMap.containsKey(entry.getKey()))
+					typeMap.put(entry.getKey(), optional(entry.getValue()));
+
+			return IDLType.createType(Type.RECORD, typeMap);
+		}
+
+		if (firstType == secondType)
+			return first;
+
+		if ((firstType == Type.INT || firstType == Type.FLOAT64) && (secondType == Type.INT || secondType == Type.FLOAT64))
+			return IDLType.createType(Type.FLOAT64);
+
+		throw CandidError.create(CandidError.CandidErrorCode.CUSTOM,
+				"Cannot widen type " + firstType + " to " + secondType);
+	}
+
+	static IDLType optional(IDLType idlType) {
+		if (idlType == null)
+			return IDLType.createType(Type.OPT);
+
+		if (idlType.getType() == Type.OPT)
+			return idlType;
+
+		// opt of unknown type
+		if (idlType.getType() == Type.NULL)
+			return IDLType.createType(Type.OPT);
+
+		return IDLType.createType(Type.OPT, idlType);
+	}
+
+	// value can be converted by plan without losing data
+	static boolean fits(IDLTypePlan plan, JsonElement value) {
+		if (plan == null)
+			return true;
+
+		boolean isNull = value == null || value.isJsonNull();
+
+		// item type is unknown until there is an item
+		if (plan.inferred) {
+			boolean isEmpty = !isNull && value.isJsonArray() && value.getAsJsonArray().isEmpty();
+
+			if (plan.type == Type.VEC)
+				return isEmpty;
+			else if (plan.type == Type.OPT)
+				return isNull || isEmpty;
+			else
+				return true;
+		}
+
+		switch (plan.type) {
+		case NULL:
+			return isNull;
+		case OPT:
+			return isNull || fits(plan.innerPlan, value);
+		case BOOL:
+			return !isNull && value.isJsonPrimitive() && ((JsonPrimitive) value).isBoolean();
+		case TEXT:
+			return !isNull && value.isJsonPrimitive() && ((JsonPrimitive) value).isString();
+		case INT:
+			return !isNull && value.isJsonPrimitive() && ((JsonPrimitive) value).isNumber()
+					&& isIntegral((JsonPrimitive) value);
+		case FLOAT64:
+			return !isNull && value.isJsonPrimitive() && ((JsonPrimitive) value).isNumber();
+		case VEC:
+			if (isNull || !value.isJsonArray())
+				return false;
+
+			for (JsonElement item : (JsonArray) value)
+				if (!fits(plan.innerPlan, item))
+					return false;
+
+			return true;
+		case RECORD:
+			if (isNull || !value.isJsonObject())
+				return false;
+
+			JsonObject objectNode = (JsonObject) value;
+
+			int matched = 0;
+
+			for (Map.Entry<String, JsonElement> entry : objectNode.entrySet()) {
+				int index = plan.indexOf(entry.getKey());
+
+				if (index < 0 || !fits(plan.plans[index], entry.getValue()))
+					return false;
+
+				matched++;
+			}
+
+			// missing fields have to be optional
+			if (matched < plan.labels.length)
+				for (int i = 0; i < plan.labels.length; i++)
+					if (plan.plans[i].type != Type.OPT && !objectNode.has(plan.names[i]))
+						return false;
+
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	static boolean isIntegral(JsonPrimitive value) {
+		String number = value.getAsString();
+
+		return number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0;
+	}
+
+	// absent optional fields of inferred records are converted to none, so every item matches the VEC item type
+	static IDLTypePlan compile(IDLType idlType) {
+		IDLTypePlan plan = IDLTypePlan.compile(idlType);
+
+		setStrict(plan);
+
+		return plan;
+	}
+
+	static void setStrict(IDLTypePlan plan) {
+		if (plan == null)
+			return;
+
+		plan.strict = true;
+
+		if (plan.inferred)
+			return;
+
+		if (plan.type == Type.RECORD) {
+			plan.absentNone = true;
+
+			for (IDLTypePlan fieldPlan : plan.plans)
+				setStrict(fieldPlan);
+		} else
+			setStrict(plan.innerPlan);
+	}
+
+	// null if the key would be too long
+	static String getShapeKey(JsonElement value) {
+		StringBuilder builder = new StringBuilder();
+
+		appendShape(value, builder);
+
+		return builder.length() > MAX_KEY_LENGTH ? null : builder.toString();
+	}
+
+	static void appendShape(JsonElement value, StringBuilder builder) {
+		if (builder.length() > MAX_KEY_LENGTH)
+			return;
+
+		if (value == null || value.isJsonNull())
+			builder.append('z');
+		else if (value.isJsonPrimitive()) {
+			JsonPrimitive primitiveValue = (JsonPrimitive) value;
+
+			if (primitiveValue.isBoolean())
+				builder.append('b');
+			else if (primitiveValue.isString())
+				builder.append('s');
+			else
+				builder.append(isIntegral(primitiveValue) ? 'i' : 'f');
+		} else if (value.isJsonArray()) {
+			JsonArray arrayNode = (JsonArray) value;
+
+			builder.append('[');
+
+			if (!arrayNode.isEmpty())
+				appendShape(arrayNode.get(0), builder);
+
+			builder.append(']');
+		} else {
+			builder.append('{');
+
+			// names are length prefixed, so names with separators do not make keys of other shapes
+			for (Map.Entry<String, JsonElement> entry : ((JsonObject) value).entrySet()) {
+				builder.append(entry.getKey().length()).append('#').append(entry.getKey()).append(':');
+				appendShape(entry.getValue(), builder);
+				builder.append(',');
+			}
+
+			builder.append('}');
+		}
+	}
+
+	boolean reserve() {
+		if (this.size.incrementAndGet() <= this.maxSize)
+			return true;
+
+		this.size.decrementAndGet();
+		return false;
+	}
+
+	public void clear() {
+		this.plans.clear();
+		this.size.set(0);
+	}
+
+	public int size() {
+		return Math.min(this.size.get(), this.maxSize);
+	}
+
+	public int getSampleSize() {
+		return this.sampleSize;
+	}
+
+	public Mismatch getMismatch() {
+		return this.mismatch;
+	}
+
+	public long getHitCount() {
+		return this.hits.sum();
+	}
+
+	public long getMissCount() {
+		return this.misses.sum();
+	}
+}
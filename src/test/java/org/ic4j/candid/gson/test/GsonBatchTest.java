@@ -0,0 +1,208 @@
+package org.ic4j.candid.gson.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+
+import org.ic4j.candid.CandidError;
+import org.ic4j.candid.gson.BatchFormat;
+import org.ic4j.candid.gson.GsonBatchDecoder;
+import org.ic4j.candid.gson.GsonBatchEncoder;
+import org.ic4j.candid.gson.GsonDeserializer;
+import org.ic4j.candid.gson.GsonSerializer;
+import org.ic4j.candid.gson.Limits;
+import org.ic4j.candid.parser.IDLArgs;
+import org.ic4j.candid.parser.IDLType;
+import org.ic4j.candid.types.Label;
+import org.ic4j.candid.types.Type;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public final class GsonBatchTest {
+	static final int SIZE = 10;
+
+	final IDLType idlType = getIDLType();
+
+	@Test
+	public void testEncoder() throws Exception {
+		StringBuilder ndjson = new StringBuilder();
+
+		for (int i = 0; i < SIZE; i++)
+			ndjson.append(getJson(i)).append('\n');
+
+		try (GsonBatchEncoder encoder = GsonBatchEncoder.create(
+				new ByteArrayInputStream(ndjson.toString().getBytes(StandardCharsets.UTF_8)), BatchFormat.NDJSON, idlType)) {
+			encoder.setMaxCount(4);
+
+			List<JsonArray> chunks = this.readChunks(encoder);
+
+			Assertions.assertEquals(3, chunks.size());
+			Assertions.assertEquals(2, chunks.get(2).size());
+			this.assertItems(chunks);
+		}
+
+		JsonArray arrayNode = new JsonArray();
+
+		for (int i = 0; i < SIZE; i++)
+			arrayNode.add(getJson(i));
+
+		byte[] json = arrayNode.toString().getBytes(StandardCharsets.UTF_8);
+
+		int chunkSize;
+
+		try (GsonBatchEncoder encoder = GsonBatchEncoder.create(new ByteArrayInputStream(json), BatchFormat.ARRAY, idlType)) {
+			chunkSize = encoder.next().length;
+		}
+
+		// byte limit splits elements across chunks, each chunk fits the limit
+		try (GsonBatchEncoder encoder = GsonBatchEncoder.create(new ByteArrayInputStream(json), BatchFormat.ARRAY, idlType)) {
+			encoder.setMaxBytes(chunkSize * 2 / 3);
+
+			List<JsonArray> chunks = this.readChunks(encoder);
+
+			Assertions.assertTrue(chunks.size() >= 2);
+			this.assertItems(chunks);
+		}
+
+		// configured serializer converts every element with its settings
+		GsonSerializer serializer = GsonSerializer.create(idlType);
+
+		try (GsonBatchEncoder encoder = GsonBatchEncoder.create(new ByteArrayInputStream(json), BatchFormat.ARRAY, serializer)) {
+			this.assertItems(this.readChunks(encoder));
+		}
+
+		serializer.setLimits(Limits.create(8, 4, 1, 1024));
+
+		try (GsonBatchEncoder encoder = GsonBatchEncoder.create(new ByteArrayInputStream(json), BatchFormat.ARRAY, serializer)) {
+			CandidError error = Assertions.assertThrows(CandidError.class, () -> encoder.next());
+
+			Assertions.assertTrue(Limits.isExceeded(error), error.getMessage());
+		}
+
+		Assertions.assertThrows(IllegalArgumentException.class,
+				() -> GsonBatchEncoder.create(new ByteArrayInputStream(json), BatchFormat.ARRAY, GsonSerializer.create()));
+	}
+
+	@Test
+	public void testDecoder() throws Exception {
+		JsonArray arrayNode = new JsonArray();
+
+		for (int i = 0; i < SIZE; i++)
+			arrayNode.add(getJson(i));
+
+		List<byte[]> pages = new ArrayList<byte[]>();
+
+		try (GsonBatchEncoder encoder = GsonBatchEncoder.create(
+				new ByteArrayInputStream(arrayNode.toString().getBytes(StandardCharsets.UTF_8)), BatchFormat.ARRAY, idlType)) {
+			encoder.setMaxCount(3);
+
+			while (encoder.hasNext())
+				pages.add(encoder.next());
+		}
+
+		IDLType pageType = IDLType.createType(Type.VEC, idlType);
+
+		// vec pages flattened to one line per item
+		GsonBatchDecoder decoder = GsonBatchDecoder.create(pageType, BatchFormat.NDJSON);
+		decoder.setFlatten(true);
+
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+		Assertions.assertEquals(SIZE, decoder.write(pages.iterator(), outputStream));
+
+		String[] lines = new String(outputStream.toByteArray(), StandardCharsets.UTF_8).split("\n");
+
+		Assertions.assertEquals(SIZE, lines.length);
+
+		for (int i = 0; i < SIZE; i++)
+			Assertions.assertEquals(getJson(i), JsonParser.parseString(lines[i]));
+
+		// parallel pages keep their order
+		decoder = GsonBatchDecoder.create(pageType, BatchFormat.ARRAY);
+		decoder.setFlatten(true);
+		decoder.setParallelism(2, new ForkJoinPool(2));
+
+		StringWriter writer = new StringWriter();
+
+		Assertions.assertEquals(SIZE, decoder.write(pages.iterator(), writer));
+		Assertions.assertEquals(arrayNode, JsonParser.parseString(writer.toString()));
+
+		// pages as separate array elements
+		decoder = GsonBatchDecoder.create(pageType, BatchFormat.ARRAY);
+
+		writer = new StringWriter();
+
+		Assertions.assertEquals(pages.size(), decoder.write(pages.iterator(), writer));
+		Assertions.assertEquals(3, JsonParser.parseString(writer.toString()).getAsJsonArray().get(0).getAsJsonArray().size());
+
+		// configured deserializer writes every response with its settings
+		GsonDeserializer deserializer = GsonDeserializer.create(pageType);
+		deserializer.setLimits(Limits.create(8, 2, 1 << 10, 1 << 10));
+
+		GsonBatchDecoder configured = GsonBatchDecoder.create(deserializer, BatchFormat.ARRAY);
+
+		CandidError error = Assertions.assertThrows(CandidError.class, () -> configured.write(pages.iterator(), new StringWriter()));
+
+		Assertions.assertTrue(Limits.isExceeded(error), error.getMessage());
+
+		deserializer.setLimits(null);
+		configured.setFlatten(true);
+
+		writer = new StringWriter();
+
+		Assertions.assertEquals(SIZE, configured.write(pages.iterator(), writer));
+		Assertions.assertEquals(arrayNode, JsonParser.parseString(writer.toString()));
+
+		Assertions.assertThrows(IllegalArgumentException.class, () -> GsonBatchDecoder.create(GsonDeserializer.create(), BatchFormat.ARRAY));
+	}
+
+	List<JsonArray> readChunks(GsonBatchEncoder encoder) {
+		GsonDeserializer deserializer = GsonDeserializer.create(encoder.getIDLType());
+
+		List<JsonArray> chunks = new ArrayList<JsonArray>();
+
+		while (encoder.hasNext())
+			chunks.add((JsonArray) IDLArgs.fromBytes(encoder.next()).getArgs().get(0).getValue(deserializer, JsonElement.class));
+
+		return chunks;
+	}
+
+	void assertItems(List<JsonArray> chunks) {
+		int i = 0;
+
+		for (JsonArray chunk : chunks)
+			for (JsonElement item : chunk)
+				Assertions.assertEquals(getJson(i++), item);
+
+		Assertions.assertEquals(SIZE, i);
+	}
+
+	static IDLType getIDLType() {
+		Map<Label, IDLType> typeMap = new TreeMap<Label, IDLType>();
+
+		typeMap.put(Label.createNamedLabel("bar"), IDLType.createType(Type.BOOL));
+		typeMap.put(Label.createNamedLabel("foo"), IDLType.createType(Type.INT));
+
+		return IDLType.createType(Type.RECORD, typeMap);
+	}
+
+	static JsonObject getJson(int i) {
+		JsonObject objectNode = new JsonObject();
+
+		objectNode.addProperty("bar", i % 2 == 0);
+		objectNode.addProperty("foo", 42 + i);
+
+		return objectNode;
+	}
+}
@@ -0,0 +1,167 @@
+package org.ic4j.candid.gson.test;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.ic4j.candid.gson.GsonDeserializer;
+import org.ic4j.candid.gson.GsonSerializer;
+import org.ic4j.candid.parser.IDLArgs;
+import org.ic4j.candid.parser.IDLType;
+import org.ic4j.candid.parser.IDLValue;
+import org.ic4j.candid.types.Label;
+import org.ic4j.candid.types.Type;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+public final class GsonConcurrencyTest {
+	static final int THREADS = 64;
+	static final int ITERATIONS = 200;
+
+	// one instance of each converter shared by all threads and target classes
+	final GsonSerializer pojoSerializer = GsonSerializer.create(GsonSerializer.getIDLType(GsonPojo.class));
+	final GsonSerializer nestedSerializer = GsonSerializer.create(GsonSerializer.getIDLType(GsonNestedPojo.class));
+	final GsonDeserializer deserializer = GsonDeserializer.create();
+	final GsonDeserializer jsonDeserializer = GsonDeserializer.create(GsonSerializer.getIDLType(GsonNestedPojo.class));
+
+	@Test
+	public void test() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		CountDownLatch start = new CountDownLatch(1);
+
+		try {
+			List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+
+			for (int i = 0; i < THREADS; i++) {
+				final int thread = i;
+
+				results.add(executor.submit(() -> {
+					start.await();
+
+					for (int j = 0; j < ITERATIONS; j++) {
+						if ((thread + j) % 2 == 0)
+							this.testPojo(thread * ITERATIONS + j);
+						else
+							this.testNestedPojo(thread * ITERATIONS + j);
+					}
+
+					return ITERATIONS;
+				}));
+			}
+
+			start.countDown();
+
+			int total = 0;
+
+			for (Future<Integer> result : results)
+				total += result.get(60, TimeUnit.SECONDS);
+
+			Assertions.assertEquals(THREADS * ITERATIONS, total);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	void testPojo(int seed) {
+		GsonPojo pojo = createPojo(seed);
+
+		IDLValue idlValue = this.roundTrip(IDLValue.create(pojo, this.pojoSerializer));
+
+		Assertions.assertEquals(pojo, idlValue.getValue(this.deserializer, GsonPojo.class));
+	}
+
+	@Test
+	public void testParallel() {
+		Map<Label, IDLType> typeMap = new TreeMap<Label, IDLType>();
+
+		typeMap.put(Label.createNamedLabel("bar"), IDLType.createType(Type.BOOL));
+		typeMap.put(Label.createNamedLabel("foo"), IDLType.createType(Type.INT));
+
+		// nested VECs are split as well
+		IDLType idlType = IDLType.createType(Type.VEC,
+				IDLType.createType(Type.VEC, IDLType.createType(Type.RECORD, typeMap)));
+
+		JsonArray jsonValue = new JsonArray();
+
+		for (int i = 0; i < 20; i++) {
+			JsonArray arrayNode = new JsonArray();
+
+			for (int j = 0; j < 1000; j++) {
+				JsonObject objectNode = new JsonObject();
+
+				objectNode.addProperty("bar", j % 3 == 0);
+				objectNode.addProperty("foo", i * 1000 + j);
+
+				arrayNode.add(objectNode);
+			}
+
+			jsonValue.add(arrayNode);
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(4);
+
+		try {
+			GsonSerializer serializer = GsonSerializer.create(idlType);
+			serializer.setParallelism(10, pool);
+
+			GsonDeserializer deserializer = GsonDeserializer.create(idlType);
+			deserializer.setParallelism(10, pool);
+
+			IDLValue idlValue = this.roundTrip(IDLValue.create(jsonValue, serializer));
+
+			Assertions.assertEquals(jsonValue, idlValue.getValue(deserializer, JsonElement.class));
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	void testNestedPojo(int seed) {
+		GsonNestedPojo pojo = new GsonNestedPojo();
+
+		pojo.name = "nested" + seed;
+		pojo.count = (long) seed;
+		pojo.child = createPojo(seed);
+		pojo.items = new ArrayList<GsonPojo>();
+
+		for (int i = 0; i < seed % 5; i++)
+			pojo.items.add(createPojo(seed + i));
+
+		IDLValue idlValue = this.roundTrip(IDLValue.create(pojo, this.nestedSerializer));
+
+		Assertions.assertEquals(pojo, idlValue.getValue(this.deserializer, GsonNestedPojo.class));
+
+		JsonElement jsonResult = idlValue.getValue(this.jsonDeserializer, JsonElement.class);
+
+		Assertions.assertEquals(pojo.name, jsonResult.getAsJsonObject().get("name").getAsString());
+	}
+
+	IDLValue roundTrip(IDLValue idlValue) {
+		List<IDLValue> args = new ArrayList<IDLValue>();
+		args.add(idlValue);
+
+		byte[] buf = IDLArgs.create(args).toBytes();
+
+		return IDLArgs.fromBytes(buf).getArgs().get(0);
+	}
+
+	static GsonPojo createPojo(int seed) {
+		GsonPojo pojo = new GsonPojo();
+
+		pojo.bar = seed % 3 == 0;
+		pojo.foo = BigInteger.valueOf(seed);
+
+		return pojo;
+	}
+}
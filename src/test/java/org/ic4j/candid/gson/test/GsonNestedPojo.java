@@ -0,0 +1,57 @@
+package org.ic4j.candid.gson.test;
+
+import java.util.List;
+
+import com.google.gson.annotations.Expose;
+import com.google.gson.annotations.SerializedName;
+
+public class GsonNestedPojo {
+	@SerializedName("name")
+	public String name;
+
+	@SerializedName("count")
+	public Long count;
+
+	@SerializedName("child")
+	public GsonPojo child;
+
+	@SerializedName("items")
+	public List<GsonPojo> items;
+
+	@Expose(serialize = false, deserialize = false)
+	public String dummy;
+
+	// Just for testing purposes, JUnit uses equals
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		GsonNestedPojo other = (GsonNestedPojo) obj;
+		if (name == null) {
+			if (other.name != null)
+				return false;
+		} else if (!name.equals(other.name))
+			return false;
+		if (count == null) {
+			if (other.count != null)
+				return false;
+		} else if (!count.equals(other.count))
+			return false;
+		if (child == null) {
+			if (other.child != null)
+				return false;
+		} else if (!child.equals(other.child))
+			return false;
+		if (items == null) {
+			if (other.items != null)
+				return false;
+		} else if (!items.equals(other.items))
+			return false;
+		return true;
+	}
+
+}
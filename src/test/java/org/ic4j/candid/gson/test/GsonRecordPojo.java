@@ -0,0 +1,39 @@
+package org.ic4j.candid.gson.test;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.Optional;
+
+import org.ic4j.candid.gson.CandidRecord;
+
+import com.google.gson.annotations.Expose;
+import com.google.gson.annotations.SerializedName;
+
+// IDLCodec generated at compile time
+@CandidRecord
+public class GsonRecordPojo {
+	@SerializedName("name")
+	public String name;
+
+	@SerializedName("count")
+	public long count;
+
+	@SerializedName("side")
+	public GsonTest.GsonSide side;
+
+	@SerializedName("amount")
+	public Optional<BigInteger> amount;
+
+	@SerializedName("tags")
+	public List<String> tags;
+
+	@SerializedName("items")
+	public GsonPojo[] items;
+
+	@Expose(serialize = false, deserialize = false)
+	public String dummy;
+
+	transient int hash;
+
+	static int instances;
+}
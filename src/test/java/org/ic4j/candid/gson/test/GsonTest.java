@@ -2,31 +2,60 @@ package org.ic4j.candid.gson.test;
 
 import java.io.IOException;
 import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.math.BigInteger;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.ServiceLoader;
 import java.util.TreeMap;
 
+import org.ic4j.candid.gson.BlobFormat;
 import org.ic4j.candid.gson.GsonDeserializer;
 import org.ic4j.candid.gson.GsonSerializer;
+import org.ic4j.candid.gson.HistogramInstrumentation;
+import org.ic4j.candid.gson.IDLCodec;
+import org.ic4j.candid.gson.IDLTypeCache;
+import org.ic4j.candid.gson.IDLTypePlan;
+import org.ic4j.candid.gson.IDLTypeProvider;
+import org.ic4j.candid.gson.Instrumentation;
+import org.ic4j.candid.gson.LabelCache;
+import org.ic4j.candid.gson.LazyJson;
+import org.ic4j.candid.gson.Limits;
+import org.ic4j.candid.gson.PrincipalCache;
+import org.ic4j.candid.gson.Projection;
+import org.ic4j.candid.gson.SchemaInference;
+import org.ic4j.candid.CandidError;
 import org.ic4j.candid.parser.IDLArgs;
 import org.ic4j.candid.parser.IDLType;
 import org.ic4j.candid.parser.IDLValue;
 import org.ic4j.candid.types.Label;
 import org.ic4j.candid.types.Type;
+import org.ic4j.types.Principal;
 import org.json.JSONException;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
 import org.skyscreamer.jsonassert.JSONAssert;
 import org.skyscreamer.jsonassert.JSONCompareMode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.Expose;
+import com.google.gson.annotations.SerializedName;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 public final class GsonTest {
 	static Logger LOG;
@@ -54,29 +83,12 @@ public final class GsonTest {
 		IDLType idlType = IDLType.createType(Type.VEC, IDLType.createType(Type.RECORD, typeMap));
 
 		this.testJson(SIMPLE_ARRAY_NODE_FILE, idlType);
+		this.testJsonReader(SIMPLE_ARRAY_NODE_FILE, idlType);
 
-		Map<Label,IDLType> rootRecord = new TreeMap<Label,IDLType>();
-		rootRecord.put(Label.createUnnamedLabel(0l), IDLType.createType(Type.NAT32));
-		
-		Map<Label,IDLType> offerRecord = new TreeMap<Label,IDLType>();
-		offerRecord.put(Label.createNamedLabel("locked"), IDLType.createType(Type.OPT));
-		offerRecord.put(Label.createNamedLabel("seller"), IDLType.createType(Type.PRINCIPAL));
-		offerRecord.put(Label.createNamedLabel("price"), IDLType.createType(Type.NAT64));
-		
-		rootRecord.put(Label.createUnnamedLabel(1l), IDLType.createType(Type.RECORD, offerRecord));
-		
-		Map<Label,IDLType> typeVariant = new TreeMap<Label,IDLType>();
-		
-		Map<Label,IDLType> nonfungibleRecord = new TreeMap<Label,IDLType>();
-		nonfungibleRecord.put(Label.createNamedLabel("metadata"), IDLType.createType(Type.OPT));
-		
-		typeVariant.put(Label.createNamedLabel("nonfungible"), IDLType.createType(Type.RECORD,nonfungibleRecord));
-		
-		rootRecord.put(Label.createUnnamedLabel(2l), IDLType.createType(Type.VARIANT, typeVariant));
-		
-		idlType = IDLType.createType(Type.VEC, IDLType.createType(Type.RECORD, rootRecord));
+		idlType = getTradeIDLType();
 		
 		this.testJson(TRADE_ARRAY_NODE_FILE, idlType);
+		this.testJsonReader(TRADE_ARRAY_NODE_FILE, idlType);
 
 		GsonPojo pojo = new GsonPojo();
 
@@ -98,10 +110,881 @@ public final class GsonTest {
 		
 	}
 
+	@Test
+	public void testNestedPojo() {
+		GsonNestedPojo pojo = new GsonNestedPojo();
+
+		pojo.name = "nested";
+		pojo.count = 7l;
+		pojo.dummy = "ignored";
+
+		pojo.child = new GsonPojo();
+		pojo.child.bar = false;
+		pojo.child.foo = BigInteger.valueOf(1);
+
+		pojo.items = new ArrayList<GsonPojo>();
+
+		for (int i = 0; i < 3; i++) {
+			GsonPojo item = new GsonPojo();
+			item.bar = i % 2 == 0;
+			item.foo = BigInteger.valueOf(i);
+			pojo.items.add(item);
+		}
+
+		IDLValue idlValue = IDLValue.create(pojo, GsonSerializer.create(GsonSerializer.getIDLType(GsonNestedPojo.class)));
+		List<IDLValue> args = new ArrayList<IDLValue>();
+		args.add(idlValue);
+
+		IDLArgs idlArgs = IDLArgs.create(args);
+
+		byte[] buf = idlArgs.toBytes();
+
+		GsonNestedPojo pojoResult = IDLArgs.fromBytes(buf).getArgs().get(0)
+				.getValue(GsonDeserializer.create(), GsonNestedPojo.class);
+
+		Assertions.assertEquals(pojo, pojoResult);
+		Assertions.assertNull(pojoResult.dummy);
+	}
+
+	@Test
+	public void testIDLTypeCache() {
+		IDLTypeCache cache = IDLTypeCache.create(1);
+
+		cache.warm(GsonPojo.class);
+
+		IDLType idlType = cache.get(GsonPojo.class);
+
+		Assertions.assertSame(idlType, cache.get(GsonPojo.class));
+		Assertions.assertEquals(Type.RECORD, idlType.getType());
+		Assertions.assertEquals(2, idlType.getTypeMap().size());
+		Assertions.assertEquals(1, cache.getMissCount());
+		Assertions.assertEquals(2, cache.getHitCount());
+
+		// cache is full, new class evicts the stored one
+		cache.get(String.class);
+		cache.get(String.class);
+		Assertions.assertEquals(1, cache.size());
+		Assertions.assertEquals(2, cache.getMissCount());
+
+		Assertions.assertNotSame(idlType, cache.get(GsonPojo.class));
+		Assertions.assertEquals(3, cache.getMissCount());
+
+		cache.clear();
+		Assertions.assertEquals(0, cache.size());
+		Assertions.assertNotSame(idlType, cache.get(GsonPojo.class));
+
+		// public accessor returns copies, changes do not reach the shared schema
+		GsonSerializer.getIDLType(GsonPojo.class).getTypeMap().clear();
+
+		Assertions.assertEquals(2, GsonSerializer.getIDLType(GsonPojo.class).getTypeMap().size());
+	}
+
+	@Test
+	public void testIDLTypePlan() throws IOException {
+		Map<Label, IDLType> typeMap = new TreeMap<Label, IDLType>();
+
+		typeMap.put(Label.createNamedLabel("bar"), IDLType.createType(Type.BOOL));
+		typeMap.put(Label.createNamedLabel("foo"), IDLType.createType(Type.INT));
+
+		IDLType idlType = IDLType.createType(Type.VEC, IDLType.createType(Type.RECORD, typeMap));
+
+		// one plan shared by serializer and deserializer
+		IDLTypePlan plan = IDLTypePlan.compile(idlType);
+
+		Assertions.assertSame(idlType, plan.getIDLType());
+
+		JsonElement jsonValue = readNode(SIMPLE_ARRAY_NODE_FILE);
+
+		IDLValue idlValue = IDLValue.create(jsonValue, GsonSerializer.create(plan));
+
+		List<IDLValue> args = new ArrayList<IDLValue>();
+		args.add(idlValue);
+
+		byte[] buf = IDLArgs.create(args).toBytes();
+
+		JsonElement jsonResult = IDLArgs.fromBytes(buf).getArgs().get(0)
+				.getValue(GsonDeserializer.create(plan), JsonElement.class);
+
+		Assertions.assertEquals(jsonValue, jsonResult);
+
+		// record values can be changed the same way as TreeMap
+		Map<Label, Object> recordValue = (Map<Label, Object>) ((Object[]) idlValue.getValue())[0];
+
+		recordValue.put(Label.createNamedLabel("baz"), "text");
+		recordValue.remove(Label.createNamedLabel("bar"));
+
+		Assertions.assertEquals("text", recordValue.get(Label.createNamedLabel("baz")));
+		Assertions.assertFalse(recordValue.containsKey(Label.createNamedLabel("bar")));
+		Assertions.assertEquals(2, recordValue.size());
+
+		IDLTypeCache cache = IDLTypeCache.create(1);
+
+		Assertions.assertSame(cache.getPlan(GsonPojo.class), cache.getPlan(GsonPojo.class));
+	}
+
+	@Test
+	public void testPrimitiveArray() throws IOException {
+		IDLType idlType = IDLType.createType(Type.VEC, IDLType.createType(Type.NAT64));
+
+		JsonElement jsonValue = JsonParser.parseString("[44000000000,19500000000,0]");
+
+		this.testJson(jsonValue, idlType);
+
+		IDLValue idlValue = GsonSerializer.create(idlType).serialize(new StringReader(jsonValue.toString()));
+
+		Assertions.assertArrayEquals(new Long[] { 44000000000l, 19500000000l, 0l }, (Object[]) idlValue.getValue());
+
+		idlType = IDLType.createType(Type.VEC, IDLType.createType(Type.FLOAT64));
+
+		this.testJson(JsonParser.parseString("[1.5,-2.25,3.0]"), idlType);
+
+		// primitive arrays are accepted on output
+		StringWriter writer = new StringWriter();
+
+		GsonDeserializer.create(idlType).deserialize(IDLValue.create(new double[] { 1.5, 2.0 }, idlType), writer);
+
+		Assertions.assertEquals("[1.5,2.0]", writer.toString());
+
+		idlType = IDLType.createType(Type.VEC, IDLType.createType(Type.INT32));
+
+		JsonElement jsonResult = GsonDeserializer.create(idlType).deserialize(IDLValue.create(new int[] { 1, 2 }, idlType), JsonElement.class);
+
+		Assertions.assertEquals("[1,2]", jsonResult.toString());
+	}
+
+	@Test
+	public void testBlob() {
+		IDLType idlType = IDLType.createType(Type.VEC, IDLType.createType(Type.NAT8));
+
+		this.testJson(JsonParser.parseString("\"AQL/\""), idlType);
+
+		IDLValue idlValue = GsonSerializer.create(idlType).serialize(new StringReader("[1,2,255]"));
+
+		Assertions.assertArrayEquals(new byte[] { 1, 2, -1 }, (byte[]) idlValue.getValue());
+
+		GsonDeserializer deserializer = GsonDeserializer.create(idlType);
+
+		deserializer.setBlobFormat(BlobFormat.ARRAY);
+
+		Assertions.assertEquals("[1,2,255]", deserializer.deserialize(idlValue, JsonElement.class).toString());
+
+		// Base64 larger than one write chunk
+		byte[] bytes = new byte[10000];
+		new Random(42).nextBytes(bytes);
+
+		StringWriter writer = new StringWriter();
+
+		GsonDeserializer.create(idlType).deserialize(IDLValue.create(bytes, idlType), writer);
+
+		Assertions.assertEquals("\"" + Base64.getEncoder().encodeToString(bytes) + "\"", writer.toString());
+	}
+
+	@Test
+	public void testRecordMap() {
+		Map<Label, IDLType> typeMap = new TreeMap<Label, IDLType>();
+
+		typeMap.put(Label.createNamedLabel("bar"), IDLType.createType(Type.BOOL));
+		typeMap.put(Label.createNamedLabel("foo"), IDLType.createType(Type.INT));
+
+		IDLType idlType = IDLType.createType(Type.RECORD, typeMap);
+
+		GsonSerializer serializer = GsonSerializer.create(idlType);
+
+		IDLValue idlValue = serializer.serialize(JsonParser.parseString("{\"foo\":42,\"bar\":true}"));
+
+		// complete records share expected type
+		Assertions.assertSame(idlType, idlValue.getIDLType());
+
+		Map<Label, Object> valueMap = (Map<Label, Object>) idlValue.getValue();
+
+		Assertions.assertEquals(2, valueMap.size());
+		Assertions.assertEquals(Boolean.TRUE, valueMap.get(Label.createNamedLabel("bar")));
+		Assertions.assertEquals(BigInteger.valueOf(42), valueMap.get(Label.createNamedLabel("foo")));
+		Assertions.assertEquals(new ArrayList<Label>(typeMap.keySet()), new ArrayList<Label>(valueMap.keySet()));
+		Assertions.assertEquals(new TreeMap<Label, Object>(valueMap), valueMap);
+
+		// missing fields are left out of value type
+		idlValue = serializer.serialize(JsonParser.parseString("{\"foo\":42}"));
+
+		Assertions.assertEquals(1, idlValue.getIDLType().getTypeMap().size());
+		Assertions.assertFalse(((Map<Label, Object>) idlValue.getValue()).containsKey(Label.createNamedLabel("bar")));
+	}
+
+	@Test
+	public void testLabelCache() {
+		LabelCache cache = LabelCache.create(2);
+
+		Label label = cache.getLabel("bar");
+
+		Assertions.assertSame(label, cache.getLabel("bar"));
+		Assertions.assertEquals(Label.createNamedLabel("bar"), label);
+		Assertions.assertEquals("bar", cache.getName(label));
+
+		String name = cache.getName(Label.createIdLabel(4895187l));
+
+		Assertions.assertEquals("4895187", name);
+		Assertions.assertSame(name, cache.getName(Label.createIdLabel(4895187l)));
+
+		Assertions.assertEquals(2, cache.getHitCount());
+		Assertions.assertEquals(2, cache.getMissCount());
+
+		// cache is full, new name evicts the oldest entry once both were passed by the clock
+		Label fooLabel = cache.getLabel("foo");
+
+		Assertions.assertEquals(Label.createNamedLabel("foo"), fooLabel);
+		Assertions.assertSame(fooLabel, cache.getLabel("foo"));
+		Assertions.assertEquals(2, cache.size());
+		Assertions.assertNotSame(label, cache.getLabel("bar"));
+
+		cache.clear();
+		Assertions.assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testSchemaInference() {
+		SchemaInference inference = SchemaInference.create(2, SchemaInference.Mismatch.WIDEN);
+
+		GsonSerializer serializer = GsonSerializer.create();
+		serializer.setSchemaInference(inference);
+
+		// third item is past the sample, it widens price to FLOAT64 and seller to OPT
+		IDLValue idlValue = serializer.serialize(JsonParser.parseString(
+				"[{\"seller\":\"a\",\"price\":1},{\"seller\":\"b\",\"price\":2},{\"price\":2.5}]"));
+
+		IDLType innerType = idlValue.getIDLType().getInnerType();
+
+		Assertions.assertEquals(Type.VEC, idlValue.getIDLType().getType());
+		Assertions.assertEquals(Type.FLOAT64, innerType.getTypeMap().get(Label.createNamedLabel("price")).getType());
+		Assertions.assertEquals(Type.OPT, innerType.getTypeMap().get(Label.createNamedLabel("seller")).getType());
+
+		Object[] arrayValue = (Object[]) idlValue.getValue();
+
+		Assertions.assertEquals(3, arrayValue.length);
+		Assertions.assertEquals(Optional.empty(), ((Map<Label, Object>) arrayValue[2]).get(Label.createNamedLabel("seller")));
+
+		// same shape is served from cache
+		serializer.serialize(JsonParser.parseString("[{\"seller\":\"c\",\"price\":3}]"));
+
+		Assertions.assertEquals(1, inference.getHitCount());
+		Assertions.assertEquals(1, inference.size());
+
+		// cached plan fails on an unknown field, value is widened and converted again
+		idlValue = serializer.serialize(JsonParser.parseString(
+				"[{\"seller\":\"d\",\"price\":4},{\"seller\":\"e\",\"price\":5,\"qty\":1}]"));
+
+		Assertions.assertEquals(2, inference.getHitCount());
+		Assertions.assertEquals(Type.OPT, idlValue.getIDLType().getInnerType().getTypeMap()
+				.get(Label.createNamedLabel("qty")).getType());
+
+		this.testJson(SIMPLE_ARRAY_NODE_FILE, serializer.serialize(readNodeValue(SIMPLE_ARRAY_NODE_FILE)).getIDLType());
+
+		serializer.setSchemaInference(SchemaInference.create(2, SchemaInference.Mismatch.FAIL));
+
+		Assertions.assertThrows(CandidError.class, () -> serializer
+				.serialize(JsonParser.parseString("[{\"price\":1},{\"price\":2},{\"price\":\"3\"}]")));
+
+		// sampled items are inferred again when cached plan of the same shape does not fit
+		serializer.serialize(JsonParser.parseString("[{\"a\":1}]"));
+
+		idlValue = serializer.serialize(JsonParser.parseString("[{\"a\":1},{\"a\":1.5}]"));
+
+		Assertions.assertEquals(Type.FLOAT64, idlValue.getIDLType().getInnerType().getTypeMap()
+				.get(Label.createNamedLabel("a")).getType());
+
+		// field names with separators have shape keys of their own
+		serializer.serialize(JsonParser.parseString("{\"a\":\"x\",\"b\":1}"));
+
+		idlValue = serializer.serialize(JsonParser.parseString("{\"a:s,b\":1}"));
+
+		Assertions.assertEquals(Type.INT, idlValue.getIDLType().getTypeMap().get(Label.createNamedLabel("a:s,b")).getType());
+	}
+
+	JsonElement readNodeValue(String fileName) {
+		try {
+			return readNode(fileName);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Test
+	public void testLazyJson() throws IOException {
+		JsonElement jsonValue = readNode(TRADE_ARRAY_NODE_FILE);
+
+		IDLType idlType = getTradeIDLType();
+
+		List<IDLValue> args = new ArrayList<IDLValue>();
+		args.add(IDLValue.create(jsonValue, GsonSerializer.create(idlType)));
+
+		IDLValue idlValue = IDLArgs.fromBytes(IDLArgs.create(args).toBytes()).getArgs().get(0);
+
+		GsonDeserializer deserializer = GsonDeserializer.create(idlType);
+
+		LazyJson lazyJson = idlValue.getValue(deserializer, LazyJson.class);
+
+		Assertions.assertTrue(lazyJson.isJsonArray());
+		Assertions.assertEquals(2, lazyJson.size());
+
+		// tuple items are arrays, offer record is an object
+		LazyJson offer = lazyJson.get(1).get(1);
+
+		Assertions.assertTrue(offer.isJsonObject());
+		Assertions.assertEquals(19500000000l, offer.get("price").getAsLong());
+		Assertions.assertEquals("22w4c-cyaaa-aaaab-qacka-cai", offer.get("seller").getAsString());
+		Assertions.assertTrue(offer.get("locked").isJsonNull());
+		Assertions.assertNull(offer.get("missing"));
+
+		// accessed items are kept
+		Assertions.assertSame(offer, lazyJson.get(1).get(1));
+
+		Assertions.assertEquals(deserializer.deserialize(idlValue, JsonElement.class), lazyJson.getAsJsonElement());
+	}
+
+	@Test
+	public void testProjection() throws IOException {
+		IDLType idlType = getTradeIDLType();
+
+		List<IDLValue> args = new ArrayList<IDLValue>();
+		args.add(IDLValue.create(readNode(TRADE_ARRAY_NODE_FILE), GsonSerializer.create(idlType)));
+
+		IDLValue idlValue = IDLArgs.fromBytes(IDLArgs.create(args).toBytes()).getArgs().get(0);
+
+		GsonDeserializer deserializer = GsonDeserializer.create(idlType);
+
+		// selected tuple field keeps its record shape
+		JsonElement jsonResult = deserializer.deserialize(idlValue, deserializer.createProjection("[*].1.price"));
+
+		Assertions.assertEquals(JsonParser.parseString("[[{\"price\":44000000000}],[{\"price\":19500000000}]]"), jsonResult);
+
+		jsonResult = deserializer.deserialize(idlValue, Projection.compile(idlType, "$[1].0", "[1][2]"));
+
+		Assertions.assertEquals(JsonParser.parseString("[[1025,{\"nonfungible\":{\"metadata\":null}}]]"), jsonResult);
+
+		Assertions.assertThrows(CandidError.class, () -> deserializer.createProjection("[*].1.amount"));
+		Assertions.assertThrows(CandidError.class, () -> deserializer.createProjection("[*].0", "[1].1"));
+
+		// blob items are selected by index
+		IDLType vecType = IDLType.createType(Type.VEC, IDLType.createType(Type.NAT8));
+
+		idlValue = GsonSerializer.create(vecType).serialize(JsonParser.parseString("[1,2,3]"));
+
+		Assertions.assertEquals(JsonParser.parseString("[2]"),
+				deserializer.deserialize(idlValue, Projection.compile(vecType, "[1]")));
+	}
+
+	@Test
+	public void testInstrumentation() throws IOException {
+		HistogramInstrumentation instrumentation = HistogramInstrumentation.create();
+
+		GsonSerializer serializer = GsonSerializer.create(getTradeIDLType());
+		serializer.setInstrumentation(instrumentation);
+
+		IDLValue idlValue = serializer.serialize(readNode(TRADE_ARRAY_NODE_FILE));
+
+		GsonDeserializer deserializer = GsonDeserializer.create(getTradeIDLType());
+		deserializer.setInstrumentation(instrumentation);
+		deserializer.deserialize(idlValue, JsonElement.class);
+
+		Assertions.assertEquals(1, instrumentation.getCallCount(Instrumentation.Operation.SERIALIZE));
+		Assertions.assertEquals(1, instrumentation.getCallCount(Instrumentation.Operation.DESERIALIZE));
+		Assertions.assertTrue(instrumentation.getMaxLatency(Instrumentation.Operation.SERIALIZE) > 0);
+
+		// values are counted while they are converted, same items on both sides
+		long nodes = instrumentation.getNodeCount(Instrumentation.Operation.SERIALIZE);
+
+		Assertions.assertTrue(nodes > 0);
+		Assertions.assertEquals(nodes, instrumentation.getNodeCount(Instrumentation.Operation.DESERIALIZE));
+		Assertions.assertEquals(nodes, instrumentation.toMap().get("serialize.nodes.max"));
+
+		// lazy views and projections are measured too
+		deserializer.deserializeLazy(idlValue);
+		deserializer.deserialize(idlValue, deserializer.createProjection("[*].1.price"));
+
+		Assertions.assertEquals(3, instrumentation.getCallCount(Instrumentation.Operation.DESERIALIZE));
+
+		// hit rates come from caches converters use
+		PrincipalCache principalCache = PrincipalCache.create(16);
+
+		deserializer.setPrincipalCache(principalCache);
+		deserializer.deserialize(idlValue, JsonElement.class);
+		deserializer.deserialize(idlValue, JsonElement.class);
+
+		Assertions.assertEquals(principalCache.getHitRate(), instrumentation.getPrincipalCacheHitRate());
+		Assertions.assertTrue(instrumentation.getPrincipalCacheHitRate() > 0);
+
+		instrumentation.reset();
+		Assertions.assertEquals(0, instrumentation.getNodeCount(Instrumentation.Operation.SERIALIZE));
+	}
+
+	@Test
+	public void testGson() {
+		// adapter without declared type, records with its fields are inferred
+		Gson inferredGson = new GsonBuilder().registerTypeAdapter(BigInteger.class, new TypeAdapter<BigInteger>() {
+			@Override
+			public void write(JsonWriter out, BigInteger value) throws IOException {
+				out.value(value.toString());
+			}
+
+			@Override
+			public BigInteger read(JsonReader in) throws IOException {
+				return new BigInteger(in.nextString());
+			}
+		}).create();
+
+		Assertions.assertNull(GsonSerializer.getIDLType(BigInteger.class, inferredGson));
+		Assertions.assertNull(GsonSerializer.getIDLType(GsonPojo.class, inferredGson).getTypeMap());
+		Assertions.assertNotNull(GsonSerializer.getIDLType(GsonPojo.class).getTypeMap());
+
+		Gson customGson = new GsonBuilder().registerTypeAdapter(BigInteger.class, new BigIntegerTextAdapter()).create();
+
+		IDLType idlType = GsonSerializer.getIDLType(GsonPojo.class, customGson);
+
+		Assertions.assertEquals(Type.TEXT, idlType.getTypeMap().get(Label.createNamedLabel("foo")).getType());
+
+		GsonPojo pojo = new GsonPojo();
+
+		pojo.bar = true;
+		pojo.foo = BigInteger.valueOf(42);
+
+		IDLValue idlValue = IDLValue.create(pojo, GsonSerializer.create(customGson));
+
+		Assertions.assertEquals(Type.TEXT, idlValue.getIDLType().getTypeMap().get(Label.createNamedLabel("foo")).getType());
+
+		List<IDLValue> args = new ArrayList<IDLValue>();
+		args.add(idlValue);
+
+		// deserializer reflects GsonPojo schema with customGson adapters
+		GsonPojo pojoResult = IDLArgs.fromBytes(IDLArgs.create(args).toBytes()).getArgs().get(0)
+				.getValue(GsonDeserializer.create(customGson), GsonPojo.class);
+
+		Assertions.assertEquals(pojo, pojoResult);
+
+		// raw JSON written by adapter is converted as its tokens
+		Gson rawGson = new GsonBuilder().registerTypeAdapter(BigInteger.class, new TypeAdapter<BigInteger>() {
+			@Override
+			public void write(JsonWriter out, BigInteger value) throws IOException {
+				out.jsonValue(value.toString());
+			}
+
+			@Override
+			public BigInteger read(JsonReader in) throws IOException {
+				return new BigInteger(in.nextString());
+			}
+		}).create();
+
+		Map<Label, Object> rawValue = IDLValue.create(pojo, GsonSerializer.create(rawGson)).getValue();
+
+		Assertions.assertEquals(BigInteger.valueOf(42), rawValue.get(Label.createNamedLabel("foo")));
+	}
+
+	@Test
+	public void testNat() {
+		Map<Label, IDLType> typeMap = new TreeMap<Label, IDLType>();
+		typeMap.put(Label.createNamedLabel("small"), IDLType.createType(Type.NAT));
+		typeMap.put(Label.createNamedLabel("big"), IDLType.createType(Type.NAT));
+		typeMap.put(Label.createNamedLabel("min"), IDLType.createType(Type.INT));
+		typeMap.put(Label.createNamedLabel("text"), IDLType.createType(Type.NAT));
+
+		IDLType idlType = IDLType.createType(Type.RECORD, typeMap);
+
+		String json = "{\"big\":123456789012345678901234567890,\"min\":-9223372036854775808,\"small\":42,\"text\":\"18446744073709551615\"}";
+
+		// values that fit in long are parsed without BigInteger parser, larger ones are promoted
+		for (IDLValue idlValue : new IDLValue[] { GsonSerializer.create(idlType).serialize(new StringReader(json)),
+				GsonSerializer.create(idlType).serialize(JsonParser.parseString(json)) }) {
+			Map<Label, Object> valueMap = idlValue.getValue();
+
+			Assertions.assertEquals(BigInteger.valueOf(42), valueMap.get(Label.createNamedLabel("small")));
+			Assertions.assertEquals(new BigInteger("123456789012345678901234567890"), valueMap.get(Label.createNamedLabel("big")));
+			Assertions.assertEquals(BigInteger.valueOf(Long.MIN_VALUE), valueMap.get(Label.createNamedLabel("min")));
+			Assertions.assertEquals(new BigInteger("18446744073709551615"), valueMap.get(Label.createNamedLabel("text")));
+
+			GsonDeserializer deserializer = GsonDeserializer.create(idlType);
+
+			JsonElement jsonResult = deserializer.deserialize(idlValue, JsonElement.class);
+
+			Assertions.assertEquals(42l, jsonResult.getAsJsonObject().get("small").getAsLong());
+			Assertions.assertEquals(new BigInteger("123456789012345678901234567890"), jsonResult.getAsJsonObject().get("big").getAsBigInteger());
+
+			StringWriter writer = new StringWriter();
+			deserializer.deserialize(idlValue, writer);
+
+			Assertions.assertEquals(JsonParser.parseString(json.replace("\"18446744073709551615\"", "18446744073709551615")),
+					JsonParser.parseString(writer.toString()));
+		}
+	}
+
+	@Test
+	public void testPrincipalCache() {
+		PrincipalCache principalCache = PrincipalCache.create(2);
+
+		IDLType idlType = IDLType.createType(Type.VEC, IDLType.createType(Type.PRINCIPAL));
+
+		String json = "[\"aaaaa-aa\",\"aaaaa-aa\",\"aaaaa-aa\"]";
+
+		GsonSerializer serializer = GsonSerializer.create(idlType);
+		serializer.setPrincipalCache(principalCache);
+
+		IDLValue idlValue = serializer.serialize(JsonParser.parseString(json));
+
+		Object[] principals = idlValue.getValue();
+
+		Assertions.assertEquals(Principal.fromString("aaaaa-aa"), principals[2]);
+		Assertions.assertEquals(2, principalCache.getHitCount());
+		Assertions.assertEquals(1, principalCache.getMissCount());
+
+		GsonDeserializer deserializer = GsonDeserializer.create(idlType);
+		deserializer.setPrincipalCache(principalCache);
+
+		Assertions.assertEquals(JsonParser.parseString(json), deserializer.deserialize(idlValue, JsonElement.class));
+
+		// Gson TypeAdapters read principal text from the same cache
+		long hitCount = principalCache.getHitCount();
+
+		Assertions.assertEquals("aaaaa-aa", deserializer.deserialize(idlValue, String[].class)[2]);
+		Assertions.assertEquals(hitCount + 3, principalCache.getHitCount());
+
+		// least recently used entries are evicted
+		for (String text : new String[] { "2vxsx-fae", "rrkah-fqaaa-aaaaa-aaaaq-cai", "ryjl3-tyaaa-aaaaa-aaaba-cai" })
+			Assertions.assertEquals(text, principalCache.getPrincipal(text).toString());
+
+		Assertions.assertTrue(principalCache.size() <= 2 * principalCache.getMaxSize());
+
+		Assertions.assertThrows(IllegalArgumentException.class, () -> PrincipalCache.create(-1));
+	}
+
+	@Test
+	public void testLimits() {
+		Limits limits = Limits.create(8, 4, 16, 32);
+
+		StringBuilder deep = new StringBuilder();
+
+		for (int i = 0; i < 10; i++)
+			deep.append('[');
+		for (int i = 0; i < 10; i++)
+			deep.append(']');
+
+		GsonSerializer serializer = GsonSerializer.create();
+		serializer.setLimits(limits);
+
+		// nested arrays over depth fail in tree and streaming conversion
+		assertLimitExceeded(() -> serializer.serialize(JsonParser.parseString(deep.toString())));
+		assertLimitExceeded(() -> serializer.serialize(new StringReader(deep.toString())));
+
+		// long array fails while it is read
+		assertLimitExceeded(() -> serializer.serialize(new StringReader("[1,2,3,4,5]")));
+		assertLimitExceeded(() -> serializer.serialize(new StringReader("\"" + new String(new char[40]).replace('\0', 'a') + "\"")));
+
+		// counters are per call, so the same serializer converts values within limits
+		IDLValue idlValue = serializer.serialize(new StringReader("{\"a\":[1,2],\"b\":\"text\"}"));
+
+		Assertions.assertEquals(Type.RECORD, idlValue.getType());
+
+		IDLType idlType = IDLType.createType(Type.VEC, IDLType.createType(Type.VEC, IDLType.createType(Type.TEXT)));
+
+		Object[] items = new Object[4];
+
+		for (int i = 0; i < items.length; i++)
+			items[i] = new Object[] { "a", "b", "c", "d" };
+
+		IDLValue largeValue = IDLValue.create(items, idlType);
+
+		GsonDeserializer deserializer = GsonDeserializer.create(idlType);
+
+		Assertions.assertEquals(4, deserializer.deserialize(largeValue, JsonElement.class).getAsJsonArray().size());
+
+		deserializer.setLimits(limits);
+
+		// 4 + 16 items are over 16 nodes
+		assertLimitExceeded(() -> deserializer.deserialize(largeValue, JsonElement.class));
+		assertLimitExceeded(() -> deserializer.deserialize(largeValue, new StringWriter()));
+
+		// Gson TypeAdapters, projections and lazy views count the same items
+		assertLimitExceeded(() -> deserializer.deserialize(largeValue, String[][].class));
+		assertLimitExceeded(() -> deserializer.deserialize(largeValue, deserializer.createProjection("[*]")));
+		assertLimitExceeded(() -> deserializer.deserializeLazy(largeValue).getAsJsonElement());
+
+		// POJO field accessors fail on the list with 5 items
+		GsonNestedPojo pojo = new GsonNestedPojo();
+
+		pojo.name = "limits";
+		pojo.items = new ArrayList<GsonPojo>();
+
+		for (int i = 0; i < 5; i++) {
+			GsonPojo item = new GsonPojo();
+			item.bar = true;
+			item.foo = BigInteger.valueOf(i);
+			pojo.items.add(item);
+		}
+
+		GsonSerializer pojoSerializer = GsonSerializer.create(GsonSerializer.getIDLType(GsonNestedPojo.class));
+
+		IDLValue pojoValue = pojoSerializer.serialize(pojo);
+
+		pojoSerializer.setLimits(Limits.create(8, 4, 64, 1024));
+
+		assertLimitExceeded(() -> pojoSerializer.serialize(pojo));
+
+		GsonDeserializer pojoDeserializer = GsonDeserializer.create();
+		pojoDeserializer.setLimits(Limits.create(8, 4, 64, 1024));
+
+		assertLimitExceeded(() -> pojoDeserializer.deserialize(pojoValue, GsonNestedPojo.class));
+		assertLimitExceeded(() -> pojoDeserializer.deserializeInto(pojoValue, new GsonNestedPojo()));
+
+		Assertions.assertThrows(IllegalArgumentException.class, () -> Limits.create(0, 1, 1, 1));
+	}
+
+	static void assertLimitExceeded(Executable executable) {
+		CandidError error = Assertions.assertThrows(CandidError.class, executable);
+
+		Assertions.assertTrue(Limits.isExceeded(error), error.getMessage());
+		Assertions.assertTrue(error.getMessage().startsWith(Limits.LIMIT_EXCEEDED), error.getMessage());
+	}
+
+	@Test
+	public void testPojoCodec() {
+		IDLType idlType = GsonSerializer.getIDLType(GsonOrder.class);
+
+		Assertions.assertEquals(Type.VARIANT, idlType.getTypeMap().get(Label.createNamedLabel("side")).getType());
+		Assertions.assertEquals(Type.FLOAT64, idlType.getTypeMap().get(Label.createNamedLabel("limit")).getInnerType().getType());
+		Assertions.assertEquals(Type.INT64, idlType.getTypeMap().get(Label.createNamedLabel("fills")).getInnerType().getType());
+
+		GsonOrder order = new GsonOrder();
+
+		order.id = 7;
+		order.side = GsonSide.SELL;
+		order.limit = Optional.of(12.5);
+		order.tags = new ArrayList<String>();
+		order.tags.add("fx");
+		order.fills = new Long[] { 100l, 200l };
+		order.owner = new GsonPojo();
+		order.owner.bar = true;
+		order.owner.foo = BigInteger.valueOf(42);
+		order.note = "ignored";
+
+		IDLValue idlValue = IDLValue.create(order, GsonSerializer.create(idlType));
+
+		// enum is VARIANT with label of its SerializedName
+		Map<Label, Object> side = (Map<Label, Object>) ((Map<Label, Object>) idlValue.getValue()).get(Label.createNamedLabel("side"));
+		Assertions.assertTrue(side.containsKey(Label.createNamedLabel("sell")));
+
+		List<IDLValue> args = new ArrayList<IDLValue>();
+		args.add(idlValue);
+
+		GsonOrder orderResult = IDLArgs.fromBytes(IDLArgs.create(args).toBytes()).getArgs().get(0)
+				.getValue(GsonDeserializer.create(), GsonOrder.class);
+
+		Assertions.assertEquals(7, orderResult.id);
+		Assertions.assertEquals(GsonSide.SELL, orderResult.side);
+		Assertions.assertEquals(Optional.of(12.5), orderResult.limit);
+		Assertions.assertEquals(order.tags, orderResult.tags);
+		Assertions.assertArrayEquals(order.fills, orderResult.fills);
+		Assertions.assertEquals(order.owner, orderResult.owner);
+		Assertions.assertNull(orderResult.note);
+
+		// absent fields keep initial value
+		order.limit = Optional.empty();
+		order.owner = null;
+
+		orderResult = IDLValue.create(order, GsonSerializer.create(idlType)).getValue(GsonDeserializer.create(), GsonOrder.class);
+
+		Assertions.assertEquals(Optional.empty(), orderResult.limit);
+		Assertions.assertNull(orderResult.owner);
+	}
+
+	@Test
+	public void testDeserializeInto() {
+		IDLType idlType = GsonSerializer.getIDLType(GsonOrder.class);
+
+		GsonOrder order = new GsonOrder();
+
+		order.id = 7;
+		order.side = GsonSide.BUY;
+		order.tags = new ArrayList<String>();
+		order.tags.add("fx");
+		order.fills = new Long[] { 100l, 200l };
+		order.owner = new GsonPojo();
+		order.owner.bar = true;
+		order.owner.foo = BigInteger.valueOf(42);
+
+		GsonDeserializer deserializer = GsonDeserializer.create();
+
+		GsonOrder target = new GsonOrder();
+		target.tags = new ArrayList<String>();
+		target.tags.add("old");
+		target.tags.add("stale");
+		target.fills = new Long[2];
+		target.owner = new GsonPojo();
+
+		List<String> tags = target.tags;
+		Long[] fills = target.fills;
+		GsonPojo owner = target.owner;
+
+		IDLValue idlValue = IDLValue.create(order, GsonSerializer.create(idlType));
+
+		// nested objects, lists and arrays of same size are updated in place
+		Assertions.assertSame(target, deserializer.deserializeInto(idlValue, target));
+		Assertions.assertEquals(7, target.id);
+		Assertions.assertEquals(GsonSide.BUY, target.side);
+		Assertions.assertSame(tags, target.tags);
+		Assertions.assertEquals(order.tags, target.tags);
+		Assertions.assertSame(fills, target.fills);
+		Assertions.assertArrayEquals(order.fills, target.fills);
+		Assertions.assertSame(owner, target.owner);
+		Assertions.assertEquals(order.owner, target.owner);
+
+		order.fills = new Long[] { 300l };
+		order.id = 8;
+
+		deserializer.deserializeInto(IDLValue.create(order, GsonSerializer.create(idlType)), target);
+
+		Assertions.assertEquals(8, target.id);
+		Assertions.assertArrayEquals(order.fills, target.fills);
+		Assertions.assertSame(owner, target.owner);
+
+		// custom Gson cannot update target
+		Assertions.assertThrows(CandidError.class,
+				() -> GsonDeserializer.create(new GsonBuilder().create()).deserializeInto(idlValue, new GsonOrder()));
+	}
+
+	@Test
+	public void testCandidRecord() {
+		// codec is generated and registered by CandidRecordProcessor
+		IDLCodec<?> generated = null;
+
+		for (IDLCodec<?> codec : ServiceLoader.load(IDLCodec.class))
+			if (codec.getValueClass() == GsonRecordPojo.class)
+				generated = codec;
+
+		Assertions.assertNotNull(generated);
+
+		IDLType idlType = GsonSerializer.getIDLType(GsonRecordPojo.class);
+
+		Assertions.assertEquals("GsonRecordPojo", idlType.getName());
+		Assertions.assertEquals(Type.INT, idlType.getTypeMap().get(Label.createNamedLabel("amount")).getInnerType().getType());
+		Assertions.assertEquals(Type.RECORD, idlType.getTypeMap().get(Label.createNamedLabel("items")).getInnerType().getType());
+		Assertions.assertFalse(idlType.getTypeMap().containsKey(Label.createNamedLabel("dummy")));
+		Assertions.assertFalse(idlType.getTypeMap().containsKey(Label.createNamedLabel("hash")));
+
+		// generated and reflected schema have the same fields and literal scalar and enum types
+		IDLType reflected = IDLTypeCache.create(16, new GsonBuilder().create()).get(GsonRecordPojo.class);
+
+		Assertions.assertEquals(reflected.getTypeMap().keySet(), idlType.getTypeMap().keySet());
+		Assertions.assertFalse(reflected.getTypeMap().containsKey(Label.createNamedLabel("instances")));
+		Assertions.assertEquals(Type.INT64, idlType.getTypeMap().get(Label.createNamedLabel("count")).getType());
+		Assertions.assertEquals("GsonSide", idlType.getTypeMap().get(Label.createNamedLabel("side")).getName());
+		Assertions.assertEquals(reflected.getTypeMap().get(Label.createNamedLabel("side")).getTypeMap().keySet(),
+				idlType.getTypeMap().get(Label.createNamedLabel("side")).getTypeMap().keySet());
+
+		GsonRecordPojo pojo = new GsonRecordPojo();
+
+		pojo.name = "record";
+		pojo.count = 3;
+		pojo.side = GsonSide.BUY;
+		pojo.amount = Optional.of(BigInteger.TEN);
+		pojo.tags = new ArrayList<String>();
+		pojo.tags.add("a");
+		pojo.items = new GsonPojo[] { new GsonPojo() };
+		pojo.items[0].bar = true;
+		pojo.items[0].foo = BigInteger.ONE;
+		pojo.dummy = "ignored";
+
+		List<IDLValue> args = new ArrayList<IDLValue>();
+		args.add(IDLValue.create(pojo, GsonSerializer.create(idlType)));
+
+		GsonRecordPojo pojoResult = IDLArgs.fromBytes(IDLArgs.create(args).toBytes()).getArgs().get(0)
+				.getValue(GsonDeserializer.create(), GsonRecordPojo.class);
+
+		Assertions.assertEquals("record", pojoResult.name);
+		Assertions.assertEquals(3, pojoResult.count);
+		Assertions.assertEquals(GsonSide.BUY, pojoResult.side);
+		Assertions.assertEquals(pojo.amount, pojoResult.amount);
+		Assertions.assertEquals(pojo.tags, pojoResult.tags);
+		Assertions.assertArrayEquals(pojo.items, pojoResult.items);
+		Assertions.assertNull(pojoResult.dummy);
+	}
+
+	enum GsonSide {
+		@SerializedName("buy")
+		BUY,
+		@SerializedName("sell")
+		SELL
+	}
+
+	static final class GsonOrder {
+		@SerializedName("id")
+		private long id;
+
+		@SerializedName("side")
+		GsonSide side;
+
+		@SerializedName("limit")
+		Optional<Double> limit;
+
+		@SerializedName("tags")
+		List<String> tags;
+
+		@SerializedName("fills")
+		Long[] fills;
+
+		@SerializedName("owner")
+		GsonPojo owner;
+
+		@Expose(serialize = false, deserialize = false)
+		String note;
+	}
+
+	static final class BigIntegerTextAdapter extends TypeAdapter<BigInteger> implements IDLTypeProvider {
+		@Override
+		public void write(JsonWriter out, BigInteger value) throws IOException {
+			out.value(value.toString());
+		}
+
+		@Override
+		public BigInteger read(JsonReader in) throws IOException {
+			return new BigInteger(in.nextString());
+		}
+
+		@Override
+		public IDLType getIDLType() {
+			return IDLType.createType(Type.TEXT);
+		}
+	}
+
+	static IDLType getTradeIDLType() {
+		Map<Label,IDLType> rootRecord = new TreeMap<Label,IDLType>();
+		rootRecord.put(Label.createUnnamedLabel(0l), IDLType.createType(Type.NAT32));
+		
+		Map<Label,IDLType> offerRecord = new TreeMap<Label,IDLType>();
+		offerRecord.put(Label.createNamedLabel("locked"), IDLType.createType(Type.OPT));
+		offerRecord.put(Label.createNamedLabel("seller"), IDLType.createType(Type.PRINCIPAL));
+		offerRecord.put(Label.createNamedLabel("price"), IDLType.createType(Type.NAT64));
+		
+		rootRecord.put(Label.createUnnamedLabel(1l), IDLType.createType(Type.RECORD, offerRecord));
+		
+		Map<Label,IDLType> typeVariant = new TreeMap<Label,IDLType>();
+		
+		Map<Label,IDLType> nonfungibleRecord = new TreeMap<Label,IDLType>();
+		nonfungibleRecord.put(Label.createNamedLabel("metadata"), IDLType.createType(Type.OPT));
+		
+		typeVariant.put(Label.createNamedLabel("nonfungible"), IDLType.createType(Type.RECORD,nonfungibleRecord));
+		
+		rootRecord.put(Label.createUnnamedLabel(2l), IDLType.createType(Type.VARIANT, typeVariant));
+		
+		return IDLType.createType(Type.VEC, IDLType.createType(Type.RECORD, rootRecord));
+	}
+
 	void testJson(String fileName, IDLType idlType) {
 		try {
-			JsonElement jsonValue = readNode(fileName);
+			this.testJson(readNode(fileName), idlType);
+		} catch (IOException e) {
+			LOG.error(e.getLocalizedMessage(), e);
+			Assertions.fail(e.getMessage());
+		}
+	}
 
+	void testJson(JsonElement jsonValue, IDLType idlType) {
+		try {
 			IDLValue idlValue;
 			
 			if(idlType == null)				
@@ -121,6 +1004,43 @@ public final class GsonTest {
 
 			JSONAssert.assertEquals(jsonValue.toString(), jsonResult.toString(), JSONCompareMode.LENIENT);
 
+			StringWriter writer = new StringWriter();
+
+			GsonDeserializer.create(idlValue.getIDLType()).deserialize(IDLArgs.fromBytes(buf).getArgs().get(0), writer);
+
+			Assertions.assertEquals(jsonResult.toString(), writer.toString());
+
+		} catch (JSONException e) {
+			LOG.error(e.getLocalizedMessage(), e);
+			Assertions.fail(e.getMessage());
+		}
+	}
+
+	void testJsonReader(String fileName, IDLType idlType) {
+		try {
+			JsonElement jsonValue = readNode(fileName);
+
+			IDLValue idlValue;
+
+			try (Reader reader = Files.newBufferedReader(Paths.get(getClass().getClassLoader().getResource(fileName).getPath()))) {
+				if (idlType == null)
+					idlValue = GsonSerializer.create().serialize(reader);
+				else
+					idlValue = GsonSerializer.create(idlType).serialize(reader);
+			}
+
+			List<IDLValue> args = new ArrayList<IDLValue>();
+			args.add(idlValue);
+
+			IDLArgs idlArgs = IDLArgs.create(args);
+
+			byte[] buf = idlArgs.toBytes();
+
+			JsonElement jsonResult = IDLArgs.fromBytes(buf).getArgs().get(0)
+					.getValue(GsonDeserializer.create(idlValue.getIDLType()), JsonElement.class);
+
+			JSONAssert.assertEquals(jsonValue.toString(), jsonResult.toString(), JSONCompareMode.LENIENT);
+
 		} catch (IOException e) {
 			LOG.error(e.getLocalizedMessage(), e);
 			Assertions.fail(e.getMessage());